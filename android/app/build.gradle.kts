@@ -30,6 +30,11 @@ android {
         versionName = flutter.versionName
     }
 
+    testOptions {
+        // The VPN core only calls android.util.Log on debug paths; stubs return defaults.
+        unitTests.isReturnDefaultValues = true
+    }
+
     buildTypes {
         release {
             // TODO: Add your own signing config for the release build.
@@ -47,6 +52,8 @@ dependencies {
     implementation("com.squareup.okhttp3:okhttp:4.10.0")
     implementation("org.nanohttpd:nanohttpd:2.2.0")
     implementation("net.ripe.commons:commons-ip-math:1.22")
+
+    testImplementation("junit:junit:4.13.2")
 }
 
 flutter {
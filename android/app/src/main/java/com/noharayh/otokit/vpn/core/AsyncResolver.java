@@ -0,0 +1,115 @@
+package com.noharayh.otokit.vpn.core;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves host names on a small pool of daemon threads and hands the result back to
+ * an {@link EventLoop}, so a slow lookup never stalls a selector thread. A stuck
+ * lookup only holds one pool thread; requests whose deadline passed while queued are
+ * failed without a lookup.
+ */
+public class AsyncResolver {
+
+    static final int THREAD_COUNT = 4;
+
+    // Not final, so tests can put a resolver with a stand-in Lookup in its place.
+    public static AsyncResolver Instance = new AsyncResolver(THREAD_COUNT, new Lookup() {
+        @Override
+        public InetAddress lookup(String host) throws IOException {
+            return InetAddress.getByName(host);
+        }
+    });
+
+    private final ExecutorService m_Executor;
+    private final Lookup m_Lookup;
+
+    public AsyncResolver(int threadCount, Lookup lookup) {
+        m_Lookup = lookup;
+        m_Executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private final AtomicInteger m_Count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "AsyncResolverThread-" + m_Count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Looks up {@code host} off the loop; the callback then runs on {@code eventLoop}.
+     *
+     * @param deadlineNanos the {@link System#nanoTime()} after which the lookup is no
+     *                      longer wanted.
+     */
+    public void resolve(final String host, final long deadlineNanos, final EventLoop eventLoop, final Callback callback) {
+        m_Executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                InetAddress address = null;
+                Exception error = null;
+                if (System.nanoTime() - deadlineNanos >= 0) {
+                    error = new SocketTimeoutException("Resolving " + host + " timed out in queue");
+                } else {
+                    try {
+                        address = m_Lookup.lookup(host);
+                    } catch (Exception e) {
+                        error = e;
+                    }
+                }
+                final InetAddress result = address;
+                final Exception failure = error;
+                eventLoop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (result != null) {
+                            callback.onResolved(result);
+                        } else {
+                            callback.onFailed(failure);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return true if {@code host} is an IPv4 or IPv6 literal, which parses without any
+     * lookup and needs no pool thread.
+     */
+    public static boolean isLiteral(String host) {
+        if (host.indexOf(':') >= 0) {
+            return true;
+        }
+        int dots = 0;
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c == '.') {
+                dots++;
+            } else if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return dots == 3;
+    }
+
+    /**
+     * Blocking name lookup, replaceable to stand in for a slow or broken resolver.
+     */
+    public interface Lookup {
+        InetAddress lookup(String host) throws IOException;
+    }
+
+    public interface Callback {
+        void onResolved(InetAddress address);
+
+        void onFailed(Exception e);
+    }
+}
@@ -0,0 +1,320 @@
+package com.noharayh.otokit.vpn.core;
+
+import com.noharayh.otokit.vpn.tcpip.CommonMethods;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+
+/**
+ * LRU cache of upstream DNS answers keyed by (qname, qtype, qclass, EDNS state),
+ * including negative (NXDOMAIN / NODATA) answers. The EDNS state keeps an answer
+ * carrying an OPT record (and DNSSEC records for DO) away from clients that did not
+ * ask for one, and the other way round. Entries are stored as raw messages and
+ * served with their TTLs counted down to the time left.
+ */
+public class DnsCache {
+
+    static final int MAX_ENTRY_COUNT = 2048;
+    static final int MAX_MEMORY_BYTES = 512 * 1024;
+    static final int MAX_TTL_SECONDS = 3600;
+    static final int DEFAULT_NEGATIVE_TTL_SECONDS = 30;
+    static final int MAX_NEGATIVE_TTL_SECONDS = 300;
+    static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private final LinkedHashMap<Key, Entry> m_Entries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+    private final Key m_ProbeKey = new Key();
+    private int m_MemoryBytes;
+    private long m_HitCount;
+    private long m_MissCount;
+    private long m_SavedNanos;
+
+    /**
+     * Writes the cached answer for the question whose name starts at {@code nameOffset}
+     * into the DNS message at {@code messageOffset} of the same array. The question
+     * section already in place is kept, so only the header and the records behind it
+     * are copied. The transaction ID is left for the caller to restore.
+     *
+     * @param edns the query's {@link com.noharayh.otokit.vpn.dns.DnsView#getEdnsState()}.
+     * @return size of the answer message, or 0 on a miss.
+     */
+    public synchronized int lookup(byte[] data, int messageOffset, int nameOffset, int nameLength,
+                                   short type, short clazz, byte edns, int capacity) {
+        m_ProbeKey.set(data, nameOffset, nameLength, type, clazz, edns);
+        Entry entry = m_Entries.get(m_ProbeKey);
+        if (entry == null) {
+            m_MissCount++;
+            return 0;
+        }
+
+        long now = System.nanoTime();
+        if (now - entry.ExpireNanos >= 0) {
+            remove(entry.CacheKey);
+            m_MissCount++;
+            return 0;
+        }
+        if (entry.Message.length > capacity || entry.QuestionEnd != nameOffset - messageOffset + nameLength + 4) {
+            m_MissCount++;
+            return 0;
+        }
+
+        byte[] message = entry.Message;
+        System.arraycopy(message, 0, data, messageOffset, 12);
+        System.arraycopy(message, entry.QuestionEnd, data, messageOffset + entry.QuestionEnd, message.length - entry.QuestionEnd);
+
+        int elapsedSeconds = (int) ((now - entry.StoredNanos) / 1000000000L);
+        for (int i = 0; i < entry.TtlOffsets.length; i++) {
+            int ttl = Math.max(0, entry.Ttls[i] - elapsedSeconds);
+            CommonMethods.writeInt(data, messageOffset + entry.TtlOffsets[i], ttl);
+        }
+
+        m_HitCount++;
+        m_SavedNanos += entry.UpstreamNanos;
+        return message.length;
+    }
+
+    /**
+     * Caches an upstream answer.
+     *
+     * @param edns       the answer's {@link com.noharayh.otokit.vpn.dns.DnsView#getEdnsState()}.
+     * @param ttlOffsets offsets, relative to the message, of every record TTL to count down.
+     * @param ttlSeconds lifetime of the entry, 0 to skip caching.
+     */
+    public synchronized void put(byte[] data, int messageOffset, int messageLength, int nameOffset, int nameLength,
+                                 short type, short clazz, byte edns, int[] ttlOffsets, int ttlCount, int ttlSeconds, long upstreamNanos) {
+        if (ttlSeconds <= 0) {
+            return;
+        }
+
+        Entry entry = new Entry();
+        byte[] name = new byte[nameLength];
+        System.arraycopy(data, nameOffset, name, 0, nameLength);
+        entry.CacheKey = new Key();
+        entry.CacheKey.set(name, 0, nameLength, type, clazz, edns);
+        entry.Message = new byte[messageLength];
+        System.arraycopy(data, messageOffset, entry.Message, 0, messageLength);
+        entry.QuestionEnd = nameOffset - messageOffset + nameLength + 4;
+        entry.TtlOffsets = new int[ttlCount];
+        entry.Ttls = new int[ttlCount];
+        for (int i = 0; i < ttlCount; i++) {
+            entry.TtlOffsets[i] = ttlOffsets[i];
+            entry.Ttls[i] = CommonMethods.readInt(data, messageOffset + ttlOffsets[i]);
+        }
+        entry.StoredNanos = System.nanoTime();
+        entry.ExpireNanos = entry.StoredNanos + Math.min(ttlSeconds, MAX_TTL_SECONDS) * 1000000000L;
+        entry.UpstreamNanos = upstreamNanos;
+        entry.Size = ENTRY_OVERHEAD_BYTES + nameLength + messageLength + ttlCount * 8;
+
+        remove(entry.CacheKey);
+        insert(entry);
+    }
+
+    private void insert(Entry entry) {
+        m_Entries.put(entry.CacheKey, entry);
+        m_MemoryBytes += entry.Size;
+
+        Iterator<Entry> iterator = m_Entries.values().iterator();
+        while ((m_Entries.size() > MAX_ENTRY_COUNT || m_MemoryBytes > MAX_MEMORY_BYTES) && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            m_MemoryBytes -= eldest.Size;
+        }
+    }
+
+    /**
+     * Writes the live entries, least recently used first, with wall clock expiry.
+     */
+    synchronized void save(DataOutputStream out, long nowMillis) throws IOException {
+        long now = System.nanoTime();
+        int count = 0;
+        for (Entry entry : m_Entries.values()) {
+            if (entry.ExpireNanos - now > 0) {
+                count++;
+            }
+        }
+
+        out.writeInt(count);
+        for (Entry entry : m_Entries.values()) {
+            if (entry.ExpireNanos - now <= 0) {
+                continue;
+            }
+            Key key = entry.CacheKey;
+            out.writeLong(nowMillis + (entry.ExpireNanos - now) / 1000000L);
+            out.writeLong(nowMillis - (now - entry.StoredNanos) / 1000000L);
+            out.writeLong(entry.UpstreamNanos);
+            out.writeShort(key.Type);
+            out.writeShort(key.Class);
+            out.writeByte(key.Edns);
+            out.writeShort(key.Length);
+            out.write(key.Name, key.Offset, key.Length);
+            out.writeShort(entry.Message.length);
+            out.write(entry.Message);
+            out.writeShort(entry.QuestionEnd);
+            out.writeShort(entry.TtlOffsets.length);
+            for (int i = 0; i < entry.TtlOffsets.length; i++) {
+                out.writeShort(entry.TtlOffsets[i]);
+                out.writeInt(entry.Ttls[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads entries written by {@link #save}. Entries that expired meanwhile, or
+     * that were cached again since start, are skipped.
+     *
+     * @return number of entries restored.
+     */
+    synchronized int restore(ByteBuffer in, long nowMillis) {
+        long now = System.nanoTime();
+        int count = in.getInt();
+        int restored = 0;
+        for (int i = 0; i < count; i++) {
+            long expireMillis = in.getLong();
+            long storedMillis = in.getLong();
+            long upstreamNanos = in.getLong();
+            short type = in.getShort();
+            short clazz = in.getShort();
+            byte edns = in.get();
+            byte[] name = new byte[in.getShort() & 0xFFFF];
+            in.get(name);
+            byte[] message = new byte[in.getShort() & 0xFFFF];
+            in.get(message);
+            int questionEnd = in.getShort() & 0xFFFF;
+            int ttlCount = in.getShort() & 0xFFFF;
+            int[] ttlOffsets = new int[ttlCount];
+            int[] ttls = new int[ttlCount];
+            boolean valid = questionEnd <= message.length && expireMillis > nowMillis;
+            for (int j = 0; j < ttlCount; j++) {
+                ttlOffsets[j] = in.getShort() & 0xFFFF;
+                ttls[j] = in.getInt();
+                valid &= ttlOffsets[j] + 4 <= message.length;
+            }
+
+            Entry entry = new Entry();
+            entry.CacheKey = new Key();
+            entry.CacheKey.set(name, 0, name.length, type, clazz, edns);
+            if (!valid || m_Entries.containsKey(entry.CacheKey)) {
+                continue;
+            }
+            entry.Message = message;
+            entry.QuestionEnd = questionEnd;
+            entry.TtlOffsets = ttlOffsets;
+            entry.Ttls = ttls;
+            entry.StoredNanos = now - Math.max(0, nowMillis - storedMillis) * 1000000L;
+            entry.ExpireNanos = now + (expireMillis - nowMillis) * 1000000L;
+            entry.UpstreamNanos = upstreamNanos;
+            entry.Size = ENTRY_OVERHEAD_BYTES + name.length + message.length + ttlCount * 8;
+            insert(entry);
+            restored++;
+        }
+        return restored;
+    }
+
+    private void remove(Key key) {
+        Entry old = m_Entries.remove(key);
+        if (old != null) {
+            m_MemoryBytes -= old.Size;
+        }
+    }
+
+    public synchronized void clear() {
+        m_Entries.clear();
+        m_MemoryBytes = 0;
+    }
+
+    public synchronized int size() {
+        return m_Entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return m_HitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return m_MissCount;
+    }
+
+    public synchronized double getHitRatio() {
+        long total = m_HitCount + m_MissCount;
+        return total == 0 ? 0 : (double) m_HitCount / total;
+    }
+
+    /**
+     * @return upstream round-trip time avoided by answering from the cache.
+     */
+    public synchronized long getSavedNanos() {
+        return m_SavedNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ENGLISH, "DnsCache entries=%d bytes=%d hit=%d miss=%d ratio=%.2f saved=%dms",
+                m_Entries.size(), m_MemoryBytes, m_HitCount, m_MissCount, getHitRatio(), m_SavedNanos / 1000000L);
+    }
+
+    static class Key {
+        byte[] Name;
+        int Offset;
+        int Length;
+        short Type;
+        short Class;
+        byte Edns;
+        int Hash;
+
+        void set(byte[] name, int offset, int length, short type, short clazz, byte edns) {
+            Name = name;
+            Offset = offset;
+            Length = length;
+            Type = type;
+            Class = clazz;
+            Edns = edns;
+            int hash = (type * 31 + clazz) * 31 + edns;
+            for (int i = 0; i < length; i++) {
+                hash = hash * 31 + toLower(name[offset + i]);
+            }
+            Hash = hash;
+        }
+
+        private static int toLower(byte b) {
+            return (b >= 'A' && b <= 'Z') ? b + 32 : b;
+        }
+
+        @Override
+        public int hashCode() {
+            return Hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            if (Hash != other.Hash || Type != other.Type || Class != other.Class || Edns != other.Edns
+                    || Length != other.Length) {
+                return false;
+            }
+            for (int i = 0; i < Length; i++) {
+                if (toLower(Name[Offset + i]) != toLower(other.Name[other.Offset + i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static class Entry {
+        Key CacheKey;
+        byte[] Message;
+        int QuestionEnd;
+        int[] TtlOffsets;
+        int[] Ttls;
+        long StoredNanos;
+        long ExpireNanos;
+        long UpstreamNanos;
+        int Size;
+    }
+}
@@ -1,51 +1,121 @@
 package com.noharayh.otokit.vpn.core;
 
 import android.util.Log;
-import android.util.SparseArray;
-import com.noharayh.otokit.vpn.dns.DnsPacket;
-import com.noharayh.otokit.vpn.dns.Question;
-import com.noharayh.otokit.vpn.dns.Resource;
-import com.noharayh.otokit.vpn.dns.ResourcePointer;
+import com.noharayh.otokit.vpn.dns.DnsView;
 import com.noharayh.otokit.vpn.tcpip.CommonMethods;
 import com.noharayh.otokit.vpn.tcpip.IPHeader;
 import com.noharayh.otokit.vpn.tcpip.UDPHeader;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 
-public class DnsProxy implements Runnable {
+/**
+ * Forwards DNS queries that are not answered locally over a non-blocking
+ * {@link DatagramChannel} registered on a shared {@link EventLoop}.
+ */
+public class DnsProxy implements EventLoop.Handler {
 
-    private static final ConcurrentHashMap<Integer, String> IPDomainMaps = new ConcurrentHashMap<Integer, String>();
-    private static final ConcurrentHashMap<String, Integer> DomainIPMaps = new ConcurrentHashMap<String, Integer>();
+    private static final DnsCache AnswerCache = new DnsCache();
+    private static final TimerWheel RaceTimer = new TimerWheel("DnsRaceTimerThread", 20 * 1000000L, 64);
+    private static final int ADDRESS_CACHE_SIZE = 8;
+    private static final int MAX_RECEIVES_PER_EVENT = 32;
+    private static final int MAX_CLAIM_ATTEMPTS = 4;
+    private static final int MAX_FREE_STATES = 256;
     private final long QUERY_TIMEOUT_NS = 10 * 1000000000L;
     public boolean Stopped;
-    private DatagramSocket m_Client;
-    private Thread m_ReceivedThread;
-    private short m_QueryID;
-    private SparseArray<QueryState> m_QueryArray;
+    private final EventLoop m_EventLoop;
+    private DatagramChannel m_Client;
+    private volatile boolean m_Protected;
+    private final PendingQueryTable<QueryState> m_PendingQueries = new PendingQueryTable<QueryState>();
+    // Outstanding queries by question, for coalescing.
+    private final ConcurrentHashMap<QuestionKey, QueryState> m_InFlight = new ConcurrentHashMap<QuestionKey, QueryState>();
+    private final AtomicLong m_CoalescedCount = new AtomicLong();
+    private final AtomicLong m_RejectedCount = new AtomicLong();
+    private final int[] m_TtlOffsets = new int[3 * DnsView.MAX_RECORD_COUNT];
+    private final DnsUpstreams m_Upstreams;
+    // Recycled QueryStates, guarded by itself.
+    private final QueryState[] m_FreeStates = new QueryState[MAX_FREE_STATES];
+    private int m_FreeStateCount;
+
+    // Receive side, only touched on the event loop thread.
+    private final byte[] m_ReceiveBuffer = new byte[28 + DnsView.MAX_MESSAGE_LENGTH];
+    private final IPHeader m_ReceiveIPHeader;
+    private final UDPHeader m_ReceiveUDPHeader;
+    private final ByteBuffer m_ReceiveChannelBuffer;
+    private final DnsView m_ReceiveView = new DnsView();
+    private final DnsTcpUpstream m_TcpUpstream;
+
+    // Send side, only touched on the VPN thread.
+    private ByteBuffer m_SendBuffer;
+    // Shared with the TCP query path; entries are immutable, so a racy read is safe.
+    private final RemoteAddress[] m_AddressCache = new RemoteAddress[ADDRESS_CACHE_SIZE];
+
+    public DnsProxy(EventLoop eventLoop) throws IOException {
+        this(eventLoop, 53);
+    }
 
-    public DnsProxy() throws IOException {
-        m_QueryArray = new SparseArray<QueryState>();
-        m_Client = new DatagramSocket(0);
+    /**
+     * @param upstreamPort port of the raced resolvers and of TCP retries, not 53 only in tests.
+     */
+    DnsProxy(EventLoop eventLoop, int upstreamPort) throws IOException {
+        m_EventLoop = eventLoop;
+        m_Client = DatagramChannel.open();
+        m_Client.configureBlocking(false);
+        m_Client.socket().bind(new InetSocketAddress(0));
+        m_Upstreams = new DnsUpstreams(ProxyConfig.Instance.getDnsList(), upstreamPort);
+        m_TcpUpstream = new DnsTcpUpstream(eventLoop, this, upstreamPort);
+
+        m_ReceiveIPHeader = new IPHeader(m_ReceiveBuffer, 0);
+        m_ReceiveIPHeader.Default();
+        m_ReceiveUDPHeader = new UDPHeader(m_ReceiveBuffer, 20);
+
+        ByteBuffer buffer = ByteBuffer.wrap(m_ReceiveBuffer);
+        buffer.position(28);
+        m_ReceiveChannelBuffer = buffer.slice();
     }
 
     public static String reverseLookup(int ip) {
-        return IPDomainMaps.get(ip);
+        return FakeIpPool.Instance.reverseLookup(ip);
+    }
+
+    public static DnsCache getAnswerCache() {
+        return AnswerCache;
     }
 
     public synchronized void start() {
-        m_ReceivedThread = new Thread(this);
-        m_ReceivedThread.setName("DnsProxyThread");
-        m_ReceivedThread.start();
+        m_EventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    m_Client.register(m_EventLoop.getSelector(), SelectionKey.OP_READ, DnsProxy.this);
+                } catch (Exception e) {
+                    Log.e(Constant.TAG, "Register DNS channel failed", e);
+                    stop();
+                }
+            }
+        });
     }
 
     public synchronized void stop() {
         Stopped = true;
+        Log.d(Constant.TAG, AnswerCache.toString());
+        Log.d(Constant.TAG, m_Upstreams.toString());
+        Log.d(Constant.TAG, "DnsProxy coalesced " + m_CoalescedCount.get() + " queries, rejected "
+                + m_RejectedCount.get() + " stray answers");
+        m_EventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                m_TcpUpstream.closeAll();
+            }
+        });
         if (m_Client != null) {
             try {
                 m_Client.close();
@@ -58,200 +128,760 @@ public class DnsProxy implements Runnable {
     }
 
     @Override
-    public void run() {
+    public void onSelected(SelectionKey key) {
         try {
-            byte[] RECEIVE_BUFFER = new byte[2000];
-            IPHeader ipHeader = new IPHeader(RECEIVE_BUFFER, 0);
-            ipHeader.Default();
-            UDPHeader udpHeader = new UDPHeader(RECEIVE_BUFFER, 20);
-
-            ByteBuffer dnsBuffer = ByteBuffer.wrap(RECEIVE_BUFFER);
-            dnsBuffer.position(28);
-            dnsBuffer = dnsBuffer.slice();
-
-            DatagramPacket packet = new DatagramPacket(RECEIVE_BUFFER, 28, RECEIVE_BUFFER.length - 28);
-
-            while (m_Client != null && !m_Client.isClosed()) {
-
-                packet.setLength(RECEIVE_BUFFER.length - 28);
-                m_Client.receive(packet);
+            for (int i = 0; i < MAX_RECEIVES_PER_EVENT; i++) {
+                m_ReceiveChannelBuffer.clear();
+                SocketAddress source = m_Client.receive(m_ReceiveChannelBuffer);
+                if (source == null) {
+                    break;
+                }
 
-                dnsBuffer.clear();
-                dnsBuffer.limit(packet.getLength());
                 try {
-                    DnsPacket dnsPacket = DnsPacket.FromBytes(dnsBuffer);
-                    if (dnsPacket != null) {
-                        OnDnsResponseReceived(ipHeader, udpHeader, dnsPacket);
+                    if (m_ReceiveView.wrap(m_ReceiveBuffer, 28, m_ReceiveChannelBuffer.position())) {
+                        int sourceIP = CommonMethods.readInt(((InetSocketAddress) source).getAddress().getAddress(), 0);
+                        OnDnsResponseReceived(m_ReceiveIPHeader, m_ReceiveUDPHeader, m_ReceiveView, sourceIP);
                     }
                 } catch (Exception e) {
                     Log.e(Constant.TAG, "Exception when reading DNS packet", e);
                 }
             }
-        } catch (Exception e) {
-            Log.e(Constant.TAG, "Exception in DnsResolver main loop", e);
-        } finally {
-            Log.d(Constant.TAG, "DnsResolver Thread Exited.");
+        } catch (IOException e) {
+            Log.e(Constant.TAG, "Exception in DnsProxy receive", e);
             this.stop();
         }
     }
 
-    private int getFirstIP(DnsPacket dnsPacket) {
-        for (int i = 0; i < dnsPacket.Header.ResourceCount; i++) {
-            Resource resource = dnsPacket.Resources[i];
-            if (resource.Type == 1) {
-                int ip = CommonMethods.readInt(resource.Data, 0);
-                return ip;
-            }
+    /**
+     * Called by {@link DnsTcpUpstream} on the event loop thread for every answer read.
+     */
+    void onTcpResponse(byte[] data, int offset, int length, int sourceIP) {
+        System.arraycopy(data, offset, m_ReceiveBuffer, 28, length);
+        if (m_ReceiveView.wrap(m_ReceiveBuffer, 28, length)) {
+            OnDnsResponseReceived(m_ReceiveIPHeader, m_ReceiveUDPHeader, m_ReceiveView, sourceIP);
         }
-        return 0;
     }
 
-    private void tamperDnsResponse(byte[] rawPacket, DnsPacket dnsPacket, int newIP) {
-        Question question = dnsPacket.Questions[0];
+    private void tamperDnsResponse(DnsView dnsView, int newIP) {
+        dnsView.setAnswerCount((short) 1);
+        dnsView.setAuthorityCount((short) 0);
+        dnsView.setAdditionalCount((short) 0);
+
+        byte[] data = dnsView.getData();
+        int offset = dnsView.getQuestionEnd();
+        CommonMethods.writeShort(data, offset, (short) 0xC00C);
+        CommonMethods.writeShort(data, offset + 2, dnsView.getQuestionType());
+        CommonMethods.writeShort(data, offset + 4, dnsView.getQuestionClass());
+        CommonMethods.writeInt(data, offset + 6, ProxyConfig.Instance.getDnsTTL());
+        CommonMethods.writeShort(data, offset + 10, (short) 4);
+        CommonMethods.writeInt(data, offset + 12, newIP);
+
+        dnsView.setLength(offset + 16 - dnsView.getOffset());
+    }
 
-        dnsPacket.Header.setResourceCount((short) 1);
-        dnsPacket.Header.setAResourceCount((short) 0);
-        dnsPacket.Header.setEResourceCount((short) 0);
+    private void OnDnsResponseReceived(IPHeader ipHeader, UDPHeader udpHeader, DnsView dnsView, int sourceIP) {
+        QueryState state = m_PendingQueries.get(dnsView.getID());
+        if (state == null || !state.accepts(dnsView, sourceIP)) {
+            // Late, spoofed or for an ID that has been reused since.
+            m_RejectedCount.incrementAndGet();
+            return;
+        }
 
-        ResourcePointer rPointer = new ResourcePointer(rawPacket, question.Offset() + question.Length());
-        rPointer.setDomain((short) 0xC00C);
-        rPointer.setType(question.Type);
-        rPointer.setClass(question.Class);
-        rPointer.setTTL(ProxyConfig.Instance.getDnsTTL());
-        rPointer.setDataLength((short) 4);
-        rPointer.setIP(newIP);
+        if (dnsView.isTruncated() && !state.TcpRetried) {
+            // Ask the same upstream again over TCP, the query stays pending meanwhile.
+            state.TcpRetried = true;
+            m_TcpUpstream.send(sourceIP, state.m_Query, 0, state.m_QueryLength);
+            return;
+        }
 
-        dnsPacket.Size = 12 + question.Length() + 16;
-    }
+        if (state.Race != null) {
+            int rcode = dnsView.getFlags() & 0x0F;
+            boolean valid = rcode != 2 && rcode != 5; // SERVFAIL and REFUSED lose the race.
+            boolean won = state.Race.onAnswer(sourceIP, valid, System.nanoTime());
+            if (state.Race.isSettled()) {
+                removeQuery(state);
+            }
+            if (!won) {
+                return;
+            }
+        } else if (!removeQuery(state)) {
+            // Timed out meanwhile.
+            return;
+        }
 
-    private int getOrCreateFakeIP(String domainString) {
-        Integer fakeIP = DomainIPMaps.get(domainString);
-        if (fakeIP == null) {
-            int hashIP = domainString.hashCode();
-            do {
-                fakeIP = ProxyConfig.FAKE_NETWORK_IP | (hashIP & 0x0000FFFF);
-                hashIP++;
-            } while (IPDomainMaps.containsKey(fakeIP));
+        cacheResponse(dnsView, System.nanoTime() - state.QueryNanoTime);
 
-            DomainIPMaps.put(domainString, fakeIP);
-            IPDomainMaps.put(fakeIP, domainString);
+        // The leader stays with the timer until its deadline, followers are done here.
+        ArrayList<QueryState> followers = takeFollowers(state);
+        // Truncating is destructive, so everyone who can take the full answer goes first.
+        int length = dnsView.getLength();
+        for (int pass = 0; pass < 2; pass++) {
+            boolean truncated = pass == 1;
+            if (state.fits(length) != truncated) {
+                sendResponse(state, ipHeader, udpHeader, dnsView);
+            }
+            if (followers != null) {
+                for (int i = 0; i < followers.size(); i++) {
+                    QueryState follower = followers.get(i);
+                    if (follower.fits(length) != truncated) {
+                        sendResponse(follower, ipHeader, udpHeader, dnsView);
+                    }
+                }
+            }
         }
-        return fakeIP;
+        recycleAll(followers);
     }
 
-    private void OnDnsResponseReceived(IPHeader ipHeader, UDPHeader udpHeader, DnsPacket dnsPacket) {
-        QueryState state = null;
-        synchronized (m_QueryArray) {
-            state = m_QueryArray.get(dnsPacket.Header.ID);
-            if (state != null) {
-                m_QueryArray.remove(dnsPacket.Header.ID);
-            }
+    private void sendResponse(QueryState state, IPHeader ipHeader, UDPHeader udpHeader, DnsView dnsView) {
+        dnsView.setID(state.ClientQueryID);
+        if (state.TcpClient != null) {
+            state.TcpClient.sendResponse(dnsView.getData(), dnsView.getOffset(), dnsView.getLength());
+            return;
         }
 
-        if (state != null) {
-            dnsPacket.Header.setID(state.ClientQueryID);
-            ipHeader.setSourceIP(state.RemoteIP);
-            ipHeader.setDestinationIP(state.ClientIP);
-            ipHeader.setProtocol(IPHeader.UDP);
-            ipHeader.setTotalLength(20 + 8 + dnsPacket.Size);
-            udpHeader.setSourcePort(state.RemotePort);
-            udpHeader.setDestinationPort(state.ClientPort);
-            udpHeader.setTotalLength(8 + dnsPacket.Size);
+        if (!state.fits(dnsView.getLength())) {
+            dnsView.truncate();
+        }
+        int dnsSize = dnsView.getLength();
+        ipHeader.setSourceIP(state.RemoteIP);
+        ipHeader.setDestinationIP(state.ClientIP);
+        ipHeader.setProtocol(IPHeader.UDP);
+        ipHeader.setTotalLength(20 + 8 + dnsSize);
+        udpHeader.setSourcePort(state.RemotePort);
+        udpHeader.setDestinationPort(state.ClientPort);
+        udpHeader.setTotalLength(8 + dnsSize);
+
+        LocalVpnService.Instance.sendUDPPacket(ipHeader, udpHeader);
+    }
 
-            LocalVpnService.Instance.sendUDPPacket(ipHeader, udpHeader);
+    /**
+     * Stops new queries from joining {@code state} and returns those that already did.
+     */
+    private ArrayList<QueryState> takeFollowers(QueryState state) {
+        if (state.Question != null) {
+            m_InFlight.remove(state.Question, state);
         }
+        return state.closeFollowers();
     }
 
-    private int getIPFromCache(String domain) {
-        Integer ip = DomainIPMaps.get(domain);
-        if (ip == null) {
-            return 0;
+    /**
+     * @return false if the query was already removed, by its timeout for instance.
+     */
+    private boolean removeQuery(QueryState state) {
+        return m_PendingQueries.release(state.QueryID, state);
+    }
+
+    private void cacheResponse(DnsView dnsView, long upstreamNanos) {
+        int flags = dnsView.getFlags() & 0xFFFF;
+        int opCode = (flags >> 11) & 0x0F;
+        boolean truncated = (flags & 0x0200) != 0;
+        int rcode = flags & 0x0F;
+        if (dnsView.getQuestionCount() != 1 || opCode != 0 || truncated || (rcode != 0 && rcode != 3)) {
+            return;
+        }
+
+        byte[] data = dnsView.getData();
+        int messageOffset = dnsView.getOffset();
+        int ttlCount = 0;
+        int answerCount = 0;
+        int answerTtl = Integer.MAX_VALUE;
+        int negativeTtl = DnsCache.DEFAULT_NEGATIVE_TTL_SECONDS;
+        byte edns = DnsView.EDNS_NONE;
+        dnsView.resetRecords();
+        while (dnsView.nextRecord()) {
+            int type = dnsView.getRecordType();
+            if (type == DnsView.TYPE_OPT) { // OPT pseudo record, its TTL field holds EDNS flags.
+                edns = DnsView.toEdnsState(dnsView.getRecordTtl());
+                continue;
+            }
+            m_TtlOffsets[ttlCount++] = dnsView.getRecordTtlOffset() - messageOffset;
+            if (dnsView.getRecordSection() == DnsView.SECTION_ANSWER) {
+                answerCount++;
+                answerTtl = Math.min(answerTtl, dnsView.getRecordTtl());
+            } else if (dnsView.getRecordSection() == DnsView.SECTION_AUTHORITY && type == 6 && dnsView.getRecordDataLength() >= 22) {
+                // RFC 2308: negative answers live for min(SOA TTL, SOA MINIMUM).
+                int minimumOffset = dnsView.getRecordDataOffset() + dnsView.getRecordDataLength() - 4;
+                negativeTtl = Math.min(dnsView.getRecordTtl(), CommonMethods.readInt(data, minimumOffset));
+            }
+        }
+        if (dnsView.isMalformed()) {
+            return;
+        }
+
+        int ttlSeconds;
+        if (rcode == 0 && answerCount > 0) {
+            ttlSeconds = answerTtl;
         } else {
-            return ip;
+            ttlSeconds = Math.min(negativeTtl, DnsCache.MAX_NEGATIVE_TTL_SECONDS);
         }
+
+        AnswerCache.put(data, messageOffset, dnsView.getLength(),
+                dnsView.getQuestionNameOffset(), dnsView.getQuestionNameLength(),
+                dnsView.getQuestionType(), dnsView.getQuestionClass(), edns,
+                m_TtlOffsets, ttlCount, ttlSeconds, upstreamNanos);
     }
 
-    private boolean interceptDns(IPHeader ipHeader, UDPHeader udpHeader, DnsPacket dnsPacket) {
-        Question question = dnsPacket.Questions[0];
+    private int answerFromCache(DnsView dnsView, int capacity) {
+        if (dnsView.getQuestionCount() != 1) {
+            return 0;
+        }
+
+        short clientQueryID = dnsView.getID();
+        int size = AnswerCache.lookup(dnsView.getData(), dnsView.getOffset(),
+                dnsView.getQuestionNameOffset(), dnsView.getQuestionNameLength(),
+                dnsView.getQuestionType(), dnsView.getQuestionClass(), dnsView.getEdnsState(), capacity);
+        if (size == 0) {
+            return 0;
+        }
 
+        dnsView.setID(clientQueryID);
         if (ProxyConfig.IS_DEBUG)
-            Log.d(Constant.TAG, "DNS Query " + question.Domain);
+            Log.d(Constant.TAG, "DNS cache hit: " + dnsView.getQuestionDomain());
+        return size;
+    }
+
+    private void replyToClient(IPHeader ipHeader, UDPHeader udpHeader, int dnsSize) {
+        int sourceIP = ipHeader.getSourceIP();
+        short sourcePort = udpHeader.getSourcePort();
+        ipHeader.setSourceIP(ipHeader.getDestinationIP());
+        ipHeader.setDestinationIP(sourceIP);
+        ipHeader.setTotalLength(20 + 8 + dnsSize);
+        udpHeader.setSourcePort(udpHeader.getDestinationPort());
+        udpHeader.setDestinationPort(sourcePort);
+        udpHeader.setTotalLength(8 + dnsSize);
+        LocalVpnService.Instance.sendUDPPacket(ipHeader, udpHeader);
+    }
 
-        if (question.Type == 1) {
-            if (ProxyConfig.Instance.needProxy(question.Domain)) {
-                int fakeIP = getOrCreateFakeIP(question.Domain);
-                tamperDnsResponse(ipHeader.m_Data, dnsPacket, fakeIP);
+    private int interceptDns(DnsView dnsView) {
+        if (ProxyConfig.IS_DEBUG)
+            Log.d(Constant.TAG, "DNS Query " + dnsView.getQuestionDomain());
+
+        if (dnsView.getQuestionType() == 1) {
+            byte[] data = dnsView.getData();
+            int nameOffset = dnsView.getQuestionNameOffset();
+            int nameLength = dnsView.getQuestionNameLength();
+            if (ProxyConfig.Instance.needProxy(data, nameOffset, nameLength)) {
+                int fakeIP = FakeIpPool.Instance.getOrCreate(data, nameOffset, nameLength);
+                if (fakeIP == 0) {
+                    // Pool exhausted or name too long, let the query go upstream instead.
+                    return 0;
+                }
+                tamperDnsResponse(dnsView, fakeIP);
 
                 if (ProxyConfig.IS_DEBUG)
                     Log.d(Constant.TAG, "interceptDns FakeDns: " +
-                            question.Domain + " " +
+                            dnsView.getQuestionDomain() + " " +
                             CommonMethods.ipIntToString(fakeIP));
+                return dnsView.getLength();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Answers from the fake IP pool or the cache by writing over the query in place.
+     *
+     * @return size of the answer, or 0 if the query has to go upstream.
+     */
+    private int answerLocally(DnsView dnsView, int capacity) {
+        int size = interceptDns(dnsView);
+        if (size == 0) {
+            size = answerFromCache(dnsView, capacity);
+        }
+        return size;
+    }
+
+    public void onDnsRequestReceived(IPHeader ipHeader, UDPHeader udpHeader, DnsView dnsView) {
+        int clientUdpSize = dnsView.limitUdpPayloadSize(ProxyConfig.Instance.getMTU() - 28);
+        int size = answerLocally(dnsView, clientUdpSize);
+        if (size > 0) {
+            replyToClient(ipHeader, udpHeader, size);
+            return;
+        }
+
+        QueryState state = obtainQueryState();
+        state.ClientQueryID = dnsView.getID();
+        state.QueryNanoTime = System.nanoTime();
+        state.ClientIP = ipHeader.getSourceIP();
+        state.ClientPort = udpHeader.getSourcePort();
+        state.ClientUdpSize = clientUdpSize;
+        state.RemoteIP = ipHeader.getDestinationIP();
+        state.RemotePort = udpHeader.getDestinationPort();
+        if (!registerQuery(state, dnsView)) {
+            return;
+        }
+
+        if (state.Race != null) {
+            state.Race.start(state.QueryNanoTime);
+        } else {
+            byte[] data = dnsView.getData();
+            if (m_SendBuffer == null || m_SendBuffer.array() != data) {
+                m_SendBuffer = ByteBuffer.wrap(data);
+            }
+            m_SendBuffer.limit(dnsView.getOffset() + dnsView.getLength());
+            m_SendBuffer.position(dnsView.getOffset());
+            sendQuery(m_SendBuffer, getRemoteAddress(state.RemoteIP, state.RemotePort));
+        }
+    }
 
-                int sourceIP = ipHeader.getSourceIP();
-                short sourcePort = udpHeader.getSourcePort();
-                ipHeader.setSourceIP(ipHeader.getDestinationIP());
-                ipHeader.setDestinationIP(sourceIP);
-                ipHeader.setTotalLength(20 + 8 + dnsPacket.Size);
-                udpHeader.setSourcePort(udpHeader.getDestinationPort());
-                udpHeader.setDestinationPort(sourcePort);
-                udpHeader.setTotalLength(8 + dnsPacket.Size);
-                LocalVpnService.Instance.sendUDPPacket(ipHeader, udpHeader);
+    /**
+     * Handles one query read by a {@link DnsTcpSession} from the TUN side.
+     *
+     * @param dnsView scratch view owned by the calling event loop.
+     * @return size of the answer written over the query in place, 0 if the query was
+     * forwarded and its answer will arrive through {@link DnsTcpSession#sendResponse},
+     * or -1 if the query is malformed.
+     */
+    int onTcpQuery(DnsTcpSession session, DnsView dnsView, byte[] data, int length, int remoteIP) {
+        if (!dnsView.wrap(data, 0, length)) {
+            return -1;
+        }
+        int size = answerLocally(dnsView, data.length);
+        if (size > 0) {
+            return size;
+        }
+
+        dnsView.limitUdpPayloadSize(ProxyConfig.Instance.getMTU() - 28);
+        QueryState state = obtainQueryState();
+        state.ClientQueryID = dnsView.getID();
+        state.QueryNanoTime = System.nanoTime();
+        state.TcpClient = session;
+        state.RemoteIP = remoteIP;
+        state.RemotePort = 53;
+        if (!registerQuery(state, dnsView)) {
+            return 0;
+        }
+
+        if (state.Race != null) {
+            state.Race.start(state.QueryNanoTime);
+        } else {
+            sendQuery(ByteBuffer.wrap(data, 0, length), getRemoteAddress(remoteIP, (short) 53));
+        }
+        return 0;
+    }
+
+    /**
+     * Allocates an upstream ID for the query and tracks it until answered or timed out.
+     *
+     * @return false if nothing has to be sent: the same question is already in flight
+     * and the state waits for that answer, or no ID could be allocated.
+     */
+    private boolean registerQuery(QueryState state, DnsView dnsView) {
+        state.Question = state.m_Key.set(dnsView) ? state.m_Key : null;
+        while (state.Question != null) {
+            QueryState leader = m_InFlight.putIfAbsent(state.Question, state);
+            if (leader == null) {
+                break;
+            }
+            if (leader.addFollower(state)) {
+                m_CoalescedCount.incrementAndGet();
+                return false;
+            }
+            // The leader has just been answered, take its place.
+            m_InFlight.remove(state.Question, leader);
+        }
+
+        if (!claimID(state, dnsView)) {
+            Log.e(Constant.TAG, "No free DNS query ID, dropping query.");
+            ArrayList<QueryState> followers = takeFollowers(state);
+            state.onQueryFailed();
+            failAll(followers);
+            recycleAll(followers);
+            if (state.Question == null) {
+                recycle(state);
+            } else {
+                // Another thread may have read it from m_InFlight as a leader, so it
+                // only goes back at its deadline, like any other leader.
+                state.m_Retired = true;
+                TimerWheel.Shared.schedule(state);
+            }
+            return false;
+        }
+        TimerWheel.Shared.schedule(state);
+        return true;
+    }
+
+    /**
+     * Picks a random free ID, so IDs are neither predictable nor reused in order.
+     */
+    private boolean claimID(QueryState state, DnsView dnsView) {
+        boolean race = ProxyConfig.Instance.isDnsRaceEnabled() && m_Upstreams.size() > 0;
+        for (int i = 0; i < MAX_CLAIM_ATTEMPTS; i++) {
+            int id = m_PendingQueries.nextFreeID();
+            if (id < 0) {
+                return false;
+            }
+            state.QueryID = (short) id;
+            dnsView.setID(state.QueryID);
+            // Kept as sent, header flags and OPT record included, for the race and a TCP retry.
+            state.setQuery(dnsView.getData(), dnsView.getOffset(), dnsView.getLength());
+            state.Race = race ? new RaceState(state.m_Query, state.m_QueryLength) : null;
+            if (m_PendingQueries.claim(id, state)) {
                 return true;
             }
         }
         return false;
     }
 
-    private void clearExpiredQueries() {
-        long now = System.nanoTime();
-        for (int i = m_QueryArray.size() - 1; i >= 0; i--) {
-            QueryState state = m_QueryArray.valueAt(i);
-            if ((now - state.QueryNanoTime) > QUERY_TIMEOUT_NS) {
-                m_QueryArray.removeAt(i);
+    private static void failAll(ArrayList<QueryState> states) {
+        if (states != null) {
+            for (int i = 0; i < states.size(); i++) {
+                states.get(i).onQueryFailed();
             }
         }
     }
 
-    public void onDnsRequestReceived(IPHeader ipHeader, UDPHeader udpHeader, DnsPacket dnsPacket) {
-        if (!interceptDns(ipHeader, udpHeader, dnsPacket)) {
-            QueryState state = new QueryState();
-            state.ClientQueryID = dnsPacket.Header.ID;
-            state.QueryNanoTime = System.nanoTime();
-            state.ClientIP = ipHeader.getSourceIP();
-            state.ClientPort = udpHeader.getSourcePort();
-            state.RemoteIP = ipHeader.getDestinationIP();
-            state.RemotePort = udpHeader.getDestinationPort();
+    private QueryState obtainQueryState() {
+        synchronized (m_FreeStates) {
+            if (m_FreeStateCount > 0) {
+                QueryState state = m_FreeStates[--m_FreeStateCount];
+                m_FreeStates[m_FreeStateCount] = null;
+                return state;
+            }
+        }
+        return new QueryState();
+    }
 
-            m_QueryID++;
-            dnsPacket.Header.setID(m_QueryID);
+    private void recycle(QueryState state) {
+        state.reset();
+        synchronized (m_FreeStates) {
+            if (m_FreeStateCount < MAX_FREE_STATES) {
+                m_FreeStates[m_FreeStateCount++] = state;
+            }
+        }
+    }
 
-            synchronized (m_QueryArray) {
-                clearExpiredQueries();
-                m_QueryArray.put(m_QueryID, state);
+    private void recycleAll(ArrayList<QueryState> states) {
+        if (states != null) {
+            for (int i = 0; i < states.size(); i++) {
+                recycle(states.get(i));
             }
+        }
+    }
 
-            InetSocketAddress remoteAddress = new InetSocketAddress(CommonMethods.ipIntToInet4Address(state.RemoteIP), state.RemotePort);
-            DatagramPacket packet = new DatagramPacket(udpHeader.m_Data, udpHeader.m_Offset + 8, dnsPacket.Size);
-            packet.setSocketAddress(remoteAddress);
+    private InetSocketAddress getRemoteAddress(int ip, short port) {
+        int index = (ip ^ (ip >>> 16) ^ port) & (ADDRESS_CACHE_SIZE - 1);
+        RemoteAddress address = m_AddressCache[index];
+        if (address == null || address.IP != ip || address.Address.getPort() != (port & 0xFFFF)) {
+            address = new RemoteAddress(ip, new InetSocketAddress(CommonMethods.ipIntToInet4Address(ip), port & 0xFFFF));
+            m_AddressCache[index] = address;
+        }
+        return address.Address;
+    }
 
-            try {
-                if (LocalVpnService.Instance.protect(m_Client)) {
-                    m_Client.send(packet);
-                } else {
+    private static final class RemoteAddress {
+        final int IP;
+        final InetSocketAddress Address;
+
+        RemoteAddress(int ip, InetSocketAddress address) {
+            IP = ip;
+            Address = address;
+        }
+    }
+
+    private void sendQuery(ByteBuffer buffer, InetSocketAddress remoteAddress) {
+        try {
+            DatagramChannel client = m_Client;
+            if (client == null) {
+                return;
+            }
+            if (!m_Protected) {
+                m_Protected = LocalVpnService.Instance.protect(client.socket());
+                if (!m_Protected) {
                     Log.e(Constant.TAG, "VPN protect udp socket failed.");
+                    return;
                 }
-            } catch (IOException e) {
-                Log.e(Constant.TAG, "protect", e);
             }
+            if (client.send(buffer, remoteAddress) == 0 && ProxyConfig.IS_DEBUG) {
+                Log.d(Constant.TAG, "DNS query dropped, socket buffer full.");
+            }
+        } catch (IOException e) {
+            Log.e(Constant.TAG, "DNS send failed", e);
         }
     }
 
-    private class QueryState {
+    private class QueryState implements TimerWheel.Timeout {
+        public short QueryID;
         public short ClientQueryID;
         public long QueryNanoTime;
         public int ClientIP;
         public short ClientPort;
         public int RemoteIP;
         public short RemotePort;
+        public int ClientUdpSize;
+        public DnsTcpSession TcpClient;
+        public RaceState Race;
+        volatile boolean TcpRetried;
+        // Points to m_Key while the query is coalescable, null otherwise.
+        QuestionKey Question;
+        private final QuestionKey m_Key = new QuestionKey();
+        // The upstream query, grown as needed and kept across recycling.
+        private byte[] m_Query;
+        private int m_QueryLength;
+        // Identical queries waiting on this one, guarded by this.
+        private ArrayList<QueryState> m_Followers;
+        private boolean m_Answered;
+        // Set by the first timeout, or before scheduling a state that never got an ID.
+        private boolean m_Retired;
+
+        void reset() {
+            TcpClient = null;
+            Race = null;
+            TcpRetried = false;
+            Question = null;
+            m_Followers = null;
+            m_Answered = false;
+            m_Retired = false;
+        }
+
+        void setQuery(byte[] data, int offset, int length) {
+            if (m_Query == null || m_Query.length < length) {
+                m_Query = new byte[Math.max(length, 512)];
+            }
+            System.arraycopy(data, offset, m_Query, 0, length);
+            m_QueryLength = length;
+        }
+
+        boolean fits(int length) {
+            return TcpClient != null || length <= ClientUdpSize;
+        }
+
+        /**
+         * Checks that an answer carrying this query's ID really belongs to it.
+         */
+        boolean accepts(DnsView dnsView, int sourceIP) {
+            if (Question != null && !Question.matches(dnsView)) {
+                return false;
+            }
+            // Raced queries check the source against the upstreams they were sent to.
+            return Race != null || sourceIP == RemoteIP;
+        }
+
+        synchronized boolean addFollower(QueryState follower) {
+            if (m_Answered) {
+                return false;
+            }
+            if (m_Followers == null) {
+                m_Followers = new ArrayList<QueryState>(2);
+            }
+            m_Followers.add(follower);
+            return true;
+        }
+
+        synchronized ArrayList<QueryState> closeFollowers() {
+            m_Answered = true;
+            ArrayList<QueryState> followers = m_Followers;
+            m_Followers = null;
+            return followers;
+        }
+
+        @Override
+        public long getDeadlineNanos() {
+            return QueryNanoTime + QUERY_TIMEOUT_NS;
+        }
+
+        @Override
+        public boolean onTimeout(long now) {
+            if (m_Retired) {
+                recycle(this);
+                return false;
+            }
+            m_Retired = true;
+            boolean removed = removeQuery(this);
+            boolean won = Race != null && Race.onExpired();
+            if (removed && !won) {
+                onQueryFailed();
+                ArrayList<QueryState> followers = takeFollowers(this);
+                failAll(followers);
+                recycleAll(followers);
+            }
+            // Stay one more tick, so a thread that read this state from the pending
+            // table just before it was cleared is done with it before it is reused.
+            return true;
+        }
+
+        private void onQueryFailed() {
+            if (TcpClient != null) {
+                TcpClient.onQueryFailed();
+            }
+        }
+    }
+
+    /**
+     * Sends one query to the configured upstreams in ranked order, starting the
+     * next upstream whenever the previous one stays silent past its stagger delay.
+     * The first valid answer wins; later ones only feed the RTT statistics.
+     */
+    private class RaceState implements TimerWheel.Timeout {
+        private final ByteBuffer m_Query;
+        private final DnsUpstreams.Upstream[] m_Order;
+        private final long[] m_SentNanos;
+        private int m_SentCount;
+        private int m_AnsweredMask;
+        private boolean m_Won;
+        private boolean m_Expired;
+        private long m_NextSendNanos;
+
+        RaceState(byte[] query, int length) {
+            m_Query = ByteBuffer.wrap(query, 0, length);
+            m_Order = new DnsUpstreams.Upstream[m_Upstreams.size()];
+            m_Upstreams.rank(m_Order);
+            m_SentNanos = new long[m_Order.length];
+        }
+
+        void start(long now) {
+            boolean more;
+            synchronized (this) {
+                sendNext(now);
+                more = m_SentCount < m_Order.length;
+            }
+            if (more) {
+                RaceTimer.schedule(this);
+            }
+        }
+
+        private void sendNext(long now) {
+            DnsUpstreams.Upstream upstream = m_Order[m_SentCount];
+            m_SentNanos[m_SentCount] = now;
+            m_SentCount++;
+            m_NextSendNanos = now + m_Upstreams.getStaggerNanos(upstream);
+            m_Upstreams.onSent(upstream);
+            m_Query.rewind();
+            sendQuery(m_Query, upstream.Address);
+        }
+
+        @Override
+        public synchronized long getDeadlineNanos() {
+            return m_NextSendNanos;
+        }
+
+        @Override
+        public synchronized boolean onTimeout(long now) {
+            if (m_Won || m_Expired || m_SentCount == m_Order.length) {
+                return false;
+            }
+            sendNext(now);
+            return m_SentCount < m_Order.length;
+        }
+
+        /**
+         * @return true if this answer should be delivered to the client.
+         */
+        synchronized boolean onAnswer(int ip, boolean valid, long now) {
+            int index = -1;
+            for (int i = 0; i < m_SentCount; i++) {
+                if (m_Order[i].IP == ip && (m_AnsweredMask & (1 << i)) == 0) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return false;
+            }
+
+            m_AnsweredMask |= 1 << index;
+            if (valid) {
+                m_Upstreams.onAnswer(m_Order[index], now - m_SentNanos[index]);
+            } else {
+                m_Upstreams.onLoss(m_Order[index]);
+            }
+
+            if (m_Won || m_Expired) {
+                return false;
+            }
+            if (valid || Integer.bitCount(m_AnsweredMask) == m_Order.length) {
+                m_Won = true;
+                return true;
+            }
+            if (m_SentCount < m_Order.length) {
+                sendNext(now);
+            }
+            return false;
+        }
+
+        synchronized boolean isSettled() {
+            return m_Won && Integer.bitCount(m_AnsweredMask) == m_SentCount;
+        }
+
+        /**
+         * @return true if an answer had already been delivered.
+         */
+        synchronized boolean onExpired() {
+            m_Expired = true;
+            for (int i = 0; i < m_SentCount; i++) {
+                if ((m_AnsweredMask & (1 << i)) == 0) {
+                    m_Upstreams.onLoss(m_Order[i]);
+                }
+            }
+            return m_Won;
+        }
+    }
+
+    /**
+     * Identity of a question for coalescing: lower-cased name, type, class, the RD/CD
+     * flags and the EDNS state, which all change what an upstream answers. Each
+     * QueryState owns one key and refills it when reused, so it must not change
+     * while it sits in the in-flight map.
+     */
+    static final class QuestionKey {
+        static final int MAX_NAME_LENGTH = 255;
+
+        private final byte[] m_Name = new byte[MAX_NAME_LENGTH];
+        private int m_Length;
+        private int m_TypeClass;
+        private int m_Flags;
+        private int m_Hash;
+
+        /**
+         * @return false if the query should not be coalesced.
+         */
+        boolean set(DnsView dnsView) {
+            int length = dnsView.getQuestionNameLength();
+            if (dnsView.getQuestionCount() != 1 || length > MAX_NAME_LENGTH) {
+                return false;
+            }
+            m_TypeClass = ((dnsView.getQuestionType() & 0xFFFF) << 16) | (dnsView.getQuestionClass() & 0xFFFF);
+            m_Flags = (dnsView.getFlags() & 0x0110) | (dnsView.getEdnsState() << 16);
+            int hash = m_TypeClass * 31 + m_Flags;
+            byte[] data = dnsView.getData();
+            int offset = dnsView.getQuestionNameOffset();
+            for (int i = 0; i < length; i++) {
+                byte b = data[offset + i];
+                b = (b >= 'A' && b <= 'Z') ? (byte) (b + 32) : b;
+                m_Name[i] = b;
+                hash = hash * 31 + b;
+            }
+            m_Length = length;
+            m_Hash = hash;
+            return true;
+        }
+
+        boolean matches(DnsView dnsView) {
+            int typeClass = ((dnsView.getQuestionType() & 0xFFFF) << 16) | (dnsView.getQuestionClass() & 0xFFFF);
+            return typeClass == m_TypeClass && dnsView.questionNameEquals(m_Name, 0, m_Length);
+        }
+
+        @Override
+        public int hashCode() {
+            return m_Hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof QuestionKey)) {
+                return false;
+            }
+            QuestionKey other = (QuestionKey) o;
+            if (m_Hash != other.m_Hash || m_TypeClass != other.m_TypeClass
+                    || m_Flags != other.m_Flags || m_Length != other.m_Length) {
+                return false;
+            }
+            for (int i = 0; i < m_Length; i++) {
+                if (m_Name[i] != other.m_Name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 }
@@ -0,0 +1,154 @@
+package com.noharayh.otokit.vpn.core;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of the fake IP pool and the DNS answer cache. It is written by the
+ * VPN thread as it stops and mapped back in the background on the next start, so
+ * a restart does not begin with cold caches. Expiry is kept as wall clock time.
+ * <p>
+ * A CRC32 of everything before it closes the file and is checked before anything is
+ * restored, so a truncated or corrupt snapshot leaves the caches empty rather than
+ * half filled.
+ */
+public class DnsSnapshot {
+
+    public static final String FILE_NAME = "dns_snapshot.bin";
+    static final int MAGIC = 0x4F544B44; // "OTKD"
+    // 2: cache keys carry the EDNS state.
+    // 3: CRC32 trailer.
+    static final int VERSION = 3;
+    static final int HEADER_LENGTH = 16;
+    static final int CHECKSUM_LENGTH = 4;
+
+    public static void save(File file) {
+        save(file, FakeIpPool.Instance, DnsProxy.getAnswerCache());
+    }
+
+    static void save(File file, FakeIpPool pool, DnsCache cache) {
+        long startNanos = System.nanoTime();
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(new FileOutputStream(temp), new CRC32());
+            out = new DataOutputStream(new BufferedOutputStream(checked));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            long nowMillis = System.currentTimeMillis();
+            out.writeLong(nowMillis);
+            pool.save(out);
+            cache.save(out, nowMillis);
+            out.flush();
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(file)) {
+                throw new IOException("Rename " + temp + " failed.");
+            }
+            Log.d(Constant.TAG, String.format(Locale.ENGLISH, "DnsSnapshot saved %d bytes in %dms",
+                    file.length(), (System.nanoTime() - startNanos) / 1000000L));
+        } catch (IOException e) {
+            Log.e(Constant.TAG, "Save DNS snapshot failed", e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the snapshot on a background thread; queries arriving meanwhile simply
+     * miss and go upstream.
+     */
+    public static void loadAsync(final File file) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                load(file);
+            }
+        });
+        thread.setName("DnsSnapshotThread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static void load(File file) {
+        load(file, FakeIpPool.Instance, DnsProxy.getAnswerCache(), System.currentTimeMillis());
+    }
+
+    static void load(File file, FakeIpPool pool, DnsCache cache, long nowMillis) {
+        if (!file.exists()) {
+            Log.d(Constant.TAG, "DnsSnapshot not found, starting cold.");
+            return;
+        }
+
+        long startNanos = System.nanoTime();
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_LENGTH + CHECKSUM_LENGTH
+                    || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                Log.d(Constant.TAG, "DnsSnapshot ignored, unknown format.");
+                return;
+            }
+            int end = buffer.limit() - CHECKSUM_LENGTH;
+            if (buffer.getInt(end) != checksum(buffer, end)) {
+                Log.e(Constant.TAG, "DnsSnapshot ignored, checksum mismatch.");
+                return;
+            }
+            buffer.limit(end);
+
+            long savedMillis = buffer.getLong();
+            int ipCount = pool.restore(buffer);
+            int answerCount = cache.restore(buffer, nowMillis);
+            Log.d(Constant.TAG, String.format(Locale.ENGLISH,
+                    "DnsSnapshot loaded %d fake IPs and %d answers (age %ds) in %dms",
+                    ipCount, answerCount, (nowMillis - savedMillis) / 1000L,
+                    (System.nanoTime() - startNanos) / 1000000L));
+        } catch (Exception e) {
+            Log.e(Constant.TAG, "Load DNS snapshot failed", e);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static int checksum(ByteBuffer buffer, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer source = buffer.duplicate();
+        source.position(0);
+        byte[] chunk = new byte[8192];
+        while (source.position() < length) {
+            int count = Math.min(chunk.length, length - source.position());
+            source.get(chunk, 0, count);
+            crc.update(chunk, 0, count);
+        }
+        return (int) crc.getValue();
+    }
+}
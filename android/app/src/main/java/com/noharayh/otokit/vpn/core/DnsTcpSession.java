@@ -0,0 +1,191 @@
+package com.noharayh.otokit.vpn.core;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+import com.noharayh.otokit.vpn.dns.DnsView;
+
+/**
+ * A DNS-over-TCP (TCP/53) connection from the TUN side, answered by {@link DnsProxy}
+ * instead of being tunnelled. Queries are length prefixed and may be pipelined;
+ * forwarded ones are answered later from the DNS event loop and handed back to
+ * this session's loop.
+ */
+public class DnsTcpSession implements EventLoop.Handler {
+
+    static final int MAX_QUERY_LENGTH = 1024;
+    static final int QUERY_BUFFER_SIZE = 4096;
+
+    private final SocketChannel m_Channel;
+    private final EventLoop m_EventLoop;
+    private final DnsProxy m_DnsProxy;
+    private final int m_RemoteIP;
+    private final DnsView m_View;
+    private final ByteBuffer m_ReadBuffer = ByteBuffer.allocate(2 + MAX_QUERY_LENGTH);
+    // Room for a query plus the answer written over it in place.
+    private final byte[] m_Query = new byte[QUERY_BUFFER_SIZE];
+    private final ArrayDeque<ByteBuffer> m_Pending = new ArrayDeque<ByteBuffer>();
+    private SelectionKey m_Key;
+    private int m_Outstanding;
+    private boolean m_InputClosed;
+    private boolean m_Closed;
+
+    /**
+     * @param dnsView scratch view shared by every session on {@code eventLoop}.
+     */
+    public DnsTcpSession(SocketChannel channel, EventLoop eventLoop, DnsView dnsView, DnsProxy dnsProxy, int remoteIP) {
+        m_Channel = channel;
+        m_EventLoop = eventLoop;
+        m_View = dnsView;
+        m_DnsProxy = dnsProxy;
+        m_RemoteIP = remoteIP;
+    }
+
+    public void start() throws IOException {
+        m_Channel.configureBlocking(false);
+        m_Key = m_Channel.register(m_EventLoop.getSelector(), SelectionKey.OP_READ, this);
+    }
+
+    @Override
+    public void onSelected(SelectionKey key) {
+        try {
+            if (key.isWritable()) {
+                flush();
+            }
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private void read() throws IOException {
+        if (m_Channel.read(m_ReadBuffer) < 0) {
+            m_InputClosed = true;
+            updateInterestOps();
+            closeIfDone();
+            return;
+        }
+
+        m_ReadBuffer.flip();
+        while (m_ReadBuffer.remaining() >= 2) {
+            int length = m_ReadBuffer.getShort(m_ReadBuffer.position()) & 0xFFFF;
+            if (length > MAX_QUERY_LENGTH) {
+                close();
+                return;
+            }
+            if (m_ReadBuffer.remaining() < 2 + length) {
+                break;
+            }
+            m_ReadBuffer.getShort();
+            m_ReadBuffer.get(m_Query, 0, length);
+
+            int size = m_DnsProxy.onTcpQuery(this, m_View, m_Query, length, m_RemoteIP);
+            if (size > 0) {
+                enqueue(m_Query, 0, size);
+            } else if (size == 0) {
+                m_Outstanding++;
+            }
+        }
+        m_ReadBuffer.compact();
+        flush();
+    }
+
+    /**
+     * Delivers the answer of a forwarded query; may be called from any thread.
+     */
+    public void sendResponse(byte[] data, int offset, int length) {
+        final ByteBuffer frame = frame(data, offset, length);
+        m_EventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                m_Outstanding--;
+                if (!m_Closed) {
+                    m_Pending.add(frame);
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        close();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Called when a forwarded query timed out without an answer.
+     */
+    public void onQueryFailed() {
+        m_EventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                m_Outstanding--;
+                closeIfDone();
+            }
+        });
+    }
+
+    private void enqueue(byte[] data, int offset, int length) {
+        m_Pending.add(frame(data, offset, length));
+    }
+
+    private static ByteBuffer frame(byte[] data, int offset, int length) {
+        ByteBuffer frame = ByteBuffer.allocate(2 + length);
+        frame.putShort((short) length);
+        frame.put(data, offset, length);
+        frame.flip();
+        return frame;
+    }
+
+    private void flush() throws IOException {
+        while (!m_Pending.isEmpty()) {
+            ByteBuffer frame = m_Pending.peek();
+            m_Channel.write(frame);
+            if (frame.hasRemaining()) {
+                break;
+            }
+            m_Pending.poll();
+        }
+        updateInterestOps();
+        closeIfDone();
+    }
+
+    private void updateInterestOps() {
+        if (m_Closed || !m_Key.isValid()) {
+            return;
+        }
+        int ops = m_InputClosed ? 0 : SelectionKey.OP_READ;
+        if (!m_Pending.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (m_Key.interestOps() != ops) {
+            m_Key.interestOps(ops);
+        }
+    }
+
+    private void closeIfDone() {
+        if (m_InputClosed && m_Outstanding <= 0 && m_Pending.isEmpty()) {
+            close();
+        }
+    }
+
+    private void close() {
+        if (m_Closed) {
+            return;
+        }
+        m_Closed = true;
+        m_Pending.clear();
+        try {
+            m_Channel.close();
+        } catch (IOException e) {
+            if (ProxyConfig.IS_DEBUG)
+                Log.d(Constant.TAG, "DnsTcpSession close: " + e);
+        }
+    }
+}
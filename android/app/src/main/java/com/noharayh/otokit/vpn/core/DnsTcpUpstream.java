@@ -0,0 +1,212 @@
+package com.noharayh.otokit.vpn.core;
+
+import android.util.Log;
+
+import com.noharayh.otokit.vpn.dns.DnsView;
+import com.noharayh.otokit.vpn.tcpip.CommonMethods;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+/**
+ * Pipelined DNS-over-TCP connections to upstream resolvers, at most one per address,
+ * used to retry queries whose UDP answer came back truncated. Queries are written
+ * back to back without waiting; answers are matched by ID in {@link DnsProxy}.
+ * Everything runs on the event loop of the owning {@link DnsProxy}.
+ */
+public class DnsTcpUpstream {
+
+    static final long IDLE_TIMEOUT_NS = 30 * 1000000000L;
+    static final int MAX_CONNECTION_COUNT = 8;
+    static final int WRITE_BUFFER_SIZE = 16 * 1024;
+
+    private final EventLoop m_EventLoop;
+    private final DnsProxy m_DnsProxy;
+    private final int m_Port;
+    private final ArrayList<Connection> m_Connections = new ArrayList<Connection>();
+
+    public DnsTcpUpstream(EventLoop eventLoop, DnsProxy dnsProxy) {
+        this(eventLoop, dnsProxy, 53);
+    }
+
+    DnsTcpUpstream(EventLoop eventLoop, DnsProxy dnsProxy, int port) {
+        m_EventLoop = eventLoop;
+        m_DnsProxy = dnsProxy;
+        m_Port = port;
+    }
+
+    public void send(int ip, byte[] query, int offset, int length) {
+        Connection connection = null;
+        for (int i = 0; i < m_Connections.size(); i++) {
+            if (m_Connections.get(i).m_IP == ip) {
+                connection = m_Connections.get(i);
+                break;
+            }
+        }
+        if (connection == null) {
+            if (m_Connections.size() >= MAX_CONNECTION_COUNT) {
+                Log.e(Constant.TAG, "Too many DNS TCP connections, dropping retry.");
+                return;
+            }
+            connection = new Connection(ip);
+            if (!connection.connect()) {
+                return;
+            }
+            m_Connections.add(connection);
+        }
+        connection.enqueue(query, offset, length);
+    }
+
+    public void closeAll() {
+        while (!m_Connections.isEmpty()) {
+            m_Connections.get(m_Connections.size() - 1).close();
+        }
+    }
+
+    private class Connection implements EventLoop.Handler, TimerWheel.Timeout {
+        final int m_IP;
+        // Length prefixed queries not written yet, in write mode.
+        private final ByteBuffer m_WriteBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        private final ByteBuffer m_ReadBuffer = ByteBuffer.allocate(2 + DnsView.MAX_MESSAGE_LENGTH);
+        private SocketChannel m_Channel;
+        private SelectionKey m_Key;
+        private boolean m_Connected;
+        private volatile boolean m_Closed;
+        private volatile long m_LastActiveNanos;
+
+        Connection(int ip) {
+            m_IP = ip;
+        }
+
+        boolean connect() {
+            try {
+                m_Channel = SocketChannel.open();
+                m_Channel.configureBlocking(false);
+                if (!LocalVpnService.Instance.protect(m_Channel.socket())) {
+                    throw new IOException("VPN protect tcp socket failed.");
+                }
+                m_Connected = m_Channel.connect(new InetSocketAddress(CommonMethods.ipIntToInet4Address(m_IP), m_Port));
+                m_Key = m_Channel.register(m_EventLoop.getSelector(),
+                        m_Connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+                m_LastActiveNanos = System.nanoTime();
+                TimerWheel.Shared.schedule(this);
+                return true;
+            } catch (IOException e) {
+                Log.e(Constant.TAG, "DNS TCP connect failed", e);
+                close();
+                return false;
+            }
+        }
+
+        void enqueue(byte[] query, int offset, int length) {
+            if (m_WriteBuffer.remaining() < 2 + length) {
+                Log.e(Constant.TAG, "DNS TCP connection backed up, dropping retry.");
+                return;
+            }
+            m_WriteBuffer.putShort((short) length);
+            m_WriteBuffer.put(query, offset, length);
+            m_LastActiveNanos = System.nanoTime();
+            if (m_Connected) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    close();
+                }
+            }
+        }
+
+        @Override
+        public void onSelected(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    if (m_Channel.finishConnect()) {
+                        m_Connected = true;
+                        flush();
+                    }
+                    return;
+                }
+                if (key.isWritable()) {
+                    flush();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read();
+                }
+            } catch (IOException e) {
+                if (ProxyConfig.IS_DEBUG)
+                    Log.d(Constant.TAG, "DNS TCP connection closed: " + e);
+                close();
+            }
+        }
+
+        private void flush() throws IOException {
+            m_WriteBuffer.flip();
+            try {
+                m_Channel.write(m_WriteBuffer);
+            } finally {
+                m_WriteBuffer.compact();
+            }
+            int ops = m_WriteBuffer.position() == 0 ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+            if (m_Key.interestOps() != ops) {
+                m_Key.interestOps(ops);
+            }
+        }
+
+        private void read() throws IOException {
+            if (m_Channel.read(m_ReadBuffer) < 0) {
+                close();
+                return;
+            }
+            m_LastActiveNanos = System.nanoTime();
+
+            m_ReadBuffer.flip();
+            while (m_ReadBuffer.remaining() >= 2) {
+                int length = m_ReadBuffer.getShort(m_ReadBuffer.position()) & 0xFFFF;
+                if (m_ReadBuffer.remaining() < 2 + length) {
+                    break;
+                }
+                int start = m_ReadBuffer.position() + 2;
+                m_DnsProxy.onTcpResponse(m_ReadBuffer.array(), start, length, m_IP);
+                m_ReadBuffer.position(start + length);
+            }
+            m_ReadBuffer.compact();
+        }
+
+        void close() {
+            if (m_Closed) {
+                return;
+            }
+            m_Closed = true;
+            m_Connections.remove(this);
+            m_WriteBuffer.clear();
+            try {
+                if (m_Channel != null) {
+                    m_Channel.close();
+                }
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        @Override
+        public long getDeadlineNanos() {
+            return m_LastActiveNanos + IDLE_TIMEOUT_NS;
+        }
+
+        @Override
+        public boolean onTimeout(long now) {
+            if (!m_Closed) {
+                m_EventLoop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        close();
+                    }
+                });
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.noharayh.otokit.vpn.core;
+
+import com.noharayh.otokit.vpn.tcpip.CommonMethods;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Configured upstream resolvers with smoothed RTT and loss statistics, used to
+ * order and stagger the sends of a raced DNS query.
+ */
+public class DnsUpstreams {
+
+    static final long INITIAL_RTT_NANOS = 200 * 1000000L;
+    static final long MIN_STAGGER_NANOS = 50 * 1000000L;
+    static final long MAX_STAGGER_NANOS = 500 * 1000000L;
+    static final double LOSS_GAIN = 0.125;
+    static final double LOSS_PENALTY = 4.0;
+
+    private final Upstream[] m_Upstreams;
+    private final Upstream[] m_Ranked;
+
+    public DnsUpstreams(List<ProxyConfig.IPAddress> addresses) {
+        this(addresses, 53);
+    }
+
+    DnsUpstreams(List<ProxyConfig.IPAddress> addresses, int port) {
+        m_Upstreams = new Upstream[addresses.size()];
+        for (int i = 0; i < m_Upstreams.length; i++) {
+            m_Upstreams[i] = new Upstream(CommonMethods.ipStringToInt(addresses.get(i).Address), port);
+        }
+        m_Ranked = m_Upstreams.clone();
+    }
+
+    public int size() {
+        return m_Upstreams.length;
+    }
+
+    /**
+     * Copies the upstreams into {@code out}, best first.
+     */
+    public synchronized void rank(Upstream[] out) {
+        Arrays.sort(m_Ranked, RANK_ORDER);
+        System.arraycopy(m_Ranked, 0, out, 0, m_Ranked.length);
+    }
+
+    public Upstream find(int ip) {
+        for (Upstream upstream : m_Upstreams) {
+            if (upstream.IP == ip) {
+                return upstream;
+            }
+        }
+        return null;
+    }
+
+    public synchronized void onSent(Upstream upstream) {
+        upstream.SentCount++;
+    }
+
+    public synchronized void onAnswer(Upstream upstream, long rttNanos) {
+        upstream.AnswerCount++;
+        if (upstream.AnswerCount == 1) {
+            upstream.SrttNanos = rttNanos;
+            upstream.RttVarNanos = rttNanos / 2;
+        } else {
+            // RFC 6298 smoothing.
+            long delta = Math.abs(upstream.SrttNanos - rttNanos);
+            upstream.RttVarNanos += (delta - upstream.RttVarNanos) / 4;
+            upstream.SrttNanos += (rttNanos - upstream.SrttNanos) / 8;
+        }
+        upstream.LossRate -= upstream.LossRate * LOSS_GAIN;
+    }
+
+    public synchronized void onLoss(Upstream upstream) {
+        upstream.LostCount++;
+        upstream.LossRate += (1 - upstream.LossRate) * LOSS_GAIN;
+    }
+
+    /**
+     * @return how long to wait for {@code upstream} before racing the next one.
+     */
+    public synchronized long getStaggerNanos(Upstream upstream) {
+        long stagger = upstream.SrttNanos + 2 * upstream.RttVarNanos;
+        return Math.max(MIN_STAGGER_NANOS, Math.min(MAX_STAGGER_NANOS, stagger));
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("DnsUpstreams");
+        for (Upstream upstream : m_Upstreams) {
+            sb.append(String.format(Locale.ENGLISH, " %s[srtt=%dms loss=%.2f sent=%d ok=%d lost=%d]",
+                    CommonMethods.ipIntToString(upstream.IP), upstream.SrttNanos / 1000000L, upstream.LossRate,
+                    upstream.SentCount, upstream.AnswerCount, upstream.LostCount));
+        }
+        return sb.toString();
+    }
+
+    private static final Comparator<Upstream> RANK_ORDER = new Comparator<Upstream>() {
+        @Override
+        public int compare(Upstream a, Upstream b) {
+            return Double.compare(a.score(), b.score());
+        }
+    };
+
+    public static class Upstream {
+        public final int IP;
+        public final InetSocketAddress Address;
+        long SrttNanos = INITIAL_RTT_NANOS;
+        long RttVarNanos = INITIAL_RTT_NANOS / 2;
+        double LossRate;
+        long SentCount;
+        long AnswerCount;
+        long LostCount;
+
+        Upstream(int ip, int port) {
+            IP = ip;
+            Address = new InetSocketAddress(CommonMethods.ipIntToInet4Address(ip), port);
+        }
+
+        double score() {
+            return SrttNanos * (1 + LOSS_PENALTY * LossRate);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package com.noharayh.otokit.vpn.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Immutable domain matcher compiled from suffix rules. The rules form a trie over
+ * reversed labels ("com" -> "example" -> "www"), flattened into one open addressing
+ * table keyed by (parent node, label), so a name is matched label by label from the
+ * right without allocating.
+ * <p>
+ * Rule syntax: {@code example.com} and {@code .example.com} match the domain and all
+ * its subdomains, {@code *.example.com} only the subdomains, {@code =example.com}
+ * only the domain itself. The most specific matching rule wins.
+ */
+public class DomainTrie {
+
+    public static final int NO_MATCH = -1;
+
+    static final int MAX_LABEL_LENGTH = 63;
+
+    // Per node; node 0 is the root.
+    private final int[] m_SelfValues;
+    private final int[] m_SubValues;
+    // Edge table, a slot is empty when its child is 0.
+    private final int[] m_EdgeParents;
+    private final int[] m_EdgeChildren;
+    private final int[] m_EdgeHashes;
+    private final int[] m_EdgeLabelOffsets;
+    private final byte[] m_Labels;
+    private final int m_Mask;
+    private final int m_RuleCount;
+
+    private DomainTrie(Builder builder) {
+        ArrayList<Builder.Node> nodes = new ArrayList<Builder.Node>();
+        nodes.add(builder.m_Root);
+        int labelBytes = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            for (Builder.Node child : nodes.get(i).Children.values()) {
+                nodes.add(child);
+                labelBytes += 1 + child.Label.length;
+            }
+        }
+
+        int nodeCount = nodes.size();
+        m_SelfValues = new int[nodeCount];
+        m_SubValues = new int[nodeCount];
+        int tableSize = Integer.highestOneBit(Math.max(2, nodeCount * 2 - 1)) << 1;
+        m_Mask = tableSize - 1;
+        m_EdgeParents = new int[tableSize];
+        m_EdgeChildren = new int[tableSize];
+        m_EdgeHashes = new int[tableSize];
+        m_EdgeLabelOffsets = new int[tableSize];
+        m_Labels = new byte[labelBytes];
+        m_RuleCount = builder.m_RuleCount;
+
+        // Nodes were collected breadth first, so a parent always has the lower index.
+        int labelPos = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            Builder.Node node = nodes.get(i);
+            node.Index = i;
+            m_SelfValues[i] = node.SelfValue;
+            m_SubValues[i] = node.SubValue;
+            if (i == 0) {
+                continue;
+            }
+
+            byte[] label = node.Label;
+            m_Labels[labelPos] = (byte) label.length;
+            System.arraycopy(label, 0, m_Labels, labelPos + 1, label.length);
+            int hash = slotHash(node.Parent.Index, labelHash(label, 0, label.length));
+            int slot = hash & m_Mask;
+            while (m_EdgeChildren[slot] != 0) {
+                slot = (slot + 1) & m_Mask;
+            }
+            m_EdgeParents[slot] = node.Parent.Index;
+            m_EdgeChildren[slot] = i;
+            m_EdgeHashes[slot] = hash;
+            m_EdgeLabelOffsets[slot] = labelPos;
+            labelPos += 1 + label.length;
+        }
+    }
+
+    public int getRuleCount() {
+        return m_RuleCount;
+    }
+
+    /**
+     * Matches a wire format name such as a DNS question name.
+     *
+     * @return the value of the most specific matching rule, or {@link #NO_MATCH}.
+     */
+    public int match(byte[] name, int offset, int length) {
+        int end = offset + length;
+        int labelCount = 0;
+        int pos = offset;
+        int len;
+        while (pos < end && (len = name[pos] & 0xFF) != 0) {
+            if ((len & 0xC0) != 0) {
+                return NO_MATCH;
+            }
+            labelCount++;
+            pos += len + 1;
+        }
+        if (pos > end) {
+            return NO_MATCH;
+        }
+
+        int node = 0;
+        int result = NO_MATCH;
+        for (int k = labelCount - 1; k >= 0; k--) {
+            // Names have a handful of labels, rescanning beats keeping an offset array.
+            pos = offset;
+            for (int i = 0; i < k; i++) {
+                pos += (name[pos] & 0xFF) + 1;
+            }
+            len = name[pos] & 0xFF;
+            node = findChild(node, name, pos + 1, len);
+            if (node == 0) {
+                return result;
+            }
+            result = pick(node, k == 0, result);
+        }
+        return result;
+    }
+
+    /**
+     * Matches a dotted host name, ignoring ASCII case and a trailing dot.
+     *
+     * @return the value of the most specific matching rule, or {@link #NO_MATCH}.
+     */
+    public int match(String host) {
+        int end = host.length();
+        if (end > 0 && host.charAt(end - 1) == '.') {
+            end--;
+        }
+
+        int node = 0;
+        int result = NO_MATCH;
+        while (end > 0) {
+            int start = host.lastIndexOf('.', end - 1) + 1;
+            node = findChild(node, host, start, end - start);
+            if (node == 0) {
+                return result;
+            }
+            result = pick(node, start == 0, result);
+            end = start - 1;
+        }
+        return result;
+    }
+
+    private int pick(int node, boolean whole, int result) {
+        int value = whole ? m_SelfValues[node] : m_SubValues[node];
+        return value != NO_MATCH ? value : result;
+    }
+
+    private int findChild(int parent, byte[] name, int offset, int length) {
+        if (length == 0 || length > MAX_LABEL_LENGTH) {
+            return 0;
+        }
+        int hash = slotHash(parent, labelHash(name, offset, length));
+        for (int slot = hash & m_Mask; m_EdgeChildren[slot] != 0; slot = (slot + 1) & m_Mask) {
+            if (m_EdgeHashes[slot] == hash && m_EdgeParents[slot] == parent
+                    && labelEquals(m_EdgeLabelOffsets[slot], name, offset, length)) {
+                return m_EdgeChildren[slot];
+            }
+        }
+        return 0;
+    }
+
+    private int findChild(int parent, String host, int offset, int length) {
+        if (length == 0 || length > MAX_LABEL_LENGTH) {
+            return 0;
+        }
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            char c = host.charAt(offset + i);
+            if (c >= 0x80) {
+                return 0;
+            }
+            hash = hash * 31 + toLower(c);
+        }
+        hash = slotHash(parent, hash);
+        for (int slot = hash & m_Mask; m_EdgeChildren[slot] != 0; slot = (slot + 1) & m_Mask) {
+            if (m_EdgeHashes[slot] == hash && m_EdgeParents[slot] == parent
+                    && labelEquals(m_EdgeLabelOffsets[slot], host, offset, length)) {
+                return m_EdgeChildren[slot];
+            }
+        }
+        return 0;
+    }
+
+    private boolean labelEquals(int labelOffset, byte[] name, int offset, int length) {
+        if ((m_Labels[labelOffset] & 0xFF) != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (m_Labels[labelOffset + 1 + i] != toLower(name[offset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean labelEquals(int labelOffset, String host, int offset, int length) {
+        if ((m_Labels[labelOffset] & 0xFF) != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (m_Labels[labelOffset + 1 + i] != toLower(host.charAt(offset + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int labelHash(byte[] label, int offset, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = hash * 31 + toLower(label[offset + i]);
+        }
+        return hash;
+    }
+
+    private static int slotHash(int parent, int labelHash) {
+        int hash = parent * 0x9E3779B9 + labelHash;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int toLower(int c) {
+        return (c >= 'A' && c <= 'Z') ? c + 32 : c;
+    }
+
+    public static class Builder {
+        private final Node m_Root = new Node(null, null);
+        private int m_RuleCount;
+
+        /**
+         * Adds a rule, see {@link DomainTrie} for the syntax. Blank or malformed rules
+         * are skipped; a later rule for the same domain replaces an earlier one.
+         */
+        public Builder add(String rule, int value) {
+            String domain = rule.trim().toLowerCase(Locale.ENGLISH);
+            boolean self = true;
+            boolean sub = true;
+            if (domain.startsWith("*.")) {
+                domain = domain.substring(2);
+                self = false;
+            } else if (domain.startsWith("=")) {
+                domain = domain.substring(1);
+                sub = false;
+            } else if (domain.startsWith(".")) {
+                domain = domain.substring(1);
+            }
+            if (domain.endsWith(".")) {
+                domain = domain.substring(0, domain.length() - 1);
+            }
+            if (domain.length() == 0) {
+                return this;
+            }
+
+            String[] labels = domain.split("\\.", -1);
+            for (String label : labels) {
+                if (label.length() == 0 || label.length() > MAX_LABEL_LENGTH) {
+                    return this;
+                }
+                for (int i = 0; i < label.length(); i++) {
+                    if (label.charAt(i) >= 0x80) {
+                        return this;
+                    }
+                }
+            }
+
+            Node node = m_Root;
+            for (int i = labels.length - 1; i >= 0; i--) {
+                Node child = node.Children.get(labels[i]);
+                if (child == null) {
+                    child = new Node(node, labels[i]);
+                    node.Children.put(labels[i], child);
+                }
+                node = child;
+            }
+            if (self) {
+                node.SelfValue = value;
+            }
+            if (sub) {
+                node.SubValue = value;
+            }
+            m_RuleCount++;
+            return this;
+        }
+
+        public DomainTrie build() {
+            return new DomainTrie(this);
+        }
+
+        static class Node {
+            final Node Parent;
+            final byte[] Label;
+            final HashMap<String, Node> Children = new HashMap<String, Node>();
+            int SelfValue = NO_MATCH;
+            int SubValue = NO_MATCH;
+            int Index;
+
+            Node(Node parent, String label) {
+                Parent = parent;
+                if (label == null) {
+                    Label = null;
+                } else {
+                    Label = new byte[label.length()];
+                    for (int i = 0; i < Label.length; i++) {
+                        Label[i] = (byte) label.charAt(i);
+                    }
+                }
+            }
+        }
+    }
+}
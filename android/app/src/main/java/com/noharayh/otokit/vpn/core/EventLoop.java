@@ -0,0 +1,137 @@
+package com.noharayh.otokit.vpn.core;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.noharayh.otokit.vpn.tunnel.Tunnel;
+
+/**
+ * One selector plus the thread that runs it. Every channel registered on the loop,
+ * and every task passed to {@link #execute}, runs on that thread only.
+ */
+public class EventLoop implements Runnable {
+
+    public boolean Stopped;
+
+    private final String m_Name;
+    private final Runnable m_OnStopped;
+    private final ConcurrentLinkedQueue<Runnable> m_Tasks = new ConcurrentLinkedQueue<Runnable>();
+    private Selector m_Selector;
+    private Thread m_LoopThread;
+
+    public EventLoop(String name, Runnable onStopped) throws IOException {
+        m_Name = name;
+        m_OnStopped = onStopped;
+        m_Selector = Selector.open();
+    }
+
+    public Selector getSelector() {
+        return m_Selector;
+    }
+
+    public boolean inLoop() {
+        return Thread.currentThread() == m_LoopThread;
+    }
+
+    public void execute(Runnable task) {
+        m_Tasks.add(task);
+        Selector selector = m_Selector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    public synchronized void start() {
+        m_LoopThread = new Thread(this);
+        m_LoopThread.setName(m_Name);
+        m_LoopThread.start();
+    }
+
+    public synchronized void stop() {
+        this.Stopped = true;
+        if (m_Selector != null) {
+            try {
+                m_Selector.close();
+            } catch (Exception e) {
+                Log.e(Constant.TAG, "Exception when closing m_Selector", e);
+            } finally {
+                m_Selector = null;
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Stopped) {
+                m_Selector.select();
+                runTasks();
+                Iterator<SelectionKey> keyIterator = m_Selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    if (key.isValid()) {
+                        try {
+                            dispatch(key);
+                        } catch (Exception e) {
+                            Log.d(Constant.TAG, e.toString());
+                        }
+                    }
+                    keyIterator.remove();
+                }
+            }
+        } catch (Exception e) {
+            if (!Stopped) {
+                Log.e(Constant.TAG, m_Name, e);
+            }
+        } finally {
+            this.stop();
+            Log.d(Constant.TAG, m_Name + " exited.");
+            if (m_OnStopped != null) {
+                m_OnStopped.run();
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = m_Tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                Log.e(Constant.TAG, "Exception in " + m_Name + " task", e);
+            }
+        }
+    }
+
+    private void dispatch(SelectionKey key) {
+        Object attachment = key.attachment();
+        if (attachment instanceof Handler) {
+            ((Handler) attachment).onSelected(key);
+            return;
+        }
+
+        Tunnel tunnel = (Tunnel) attachment;
+        if (key.isConnectable()) {
+            tunnel.onConnectable();
+            return;
+        }
+        if (key.isWritable()) {
+            tunnel.onWritable(key);
+        }
+        if (key.isValid() && key.isReadable()) {
+            tunnel.onReadable(key);
+        }
+    }
+
+    /**
+     * Attachment for channels other than tunnels, e.g. the DNS forwarder.
+     */
+    public interface Handler {
+        void onSelected(SelectionKey key);
+    }
+}
@@ -0,0 +1,386 @@
+package com.noharayh.otokit.vpn.core;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded pool of fake IPs in {@link ProxyConfig#FAKE_NETWORK_IP}/16, one per domain.
+ * Domains are kept as lower-cased wire format names in an open addressing table,
+ * and the reverse direction is a plain array indexed by the low 16 bits of the IP.
+ * When the pool is full the least recently used address is recycled, unless a
+ * live NAT session still holds it or it was handed out too recently.
+ */
+public class FakeIpPool {
+
+    public static final FakeIpPool Instance = new FakeIpPool(ProxyConfig.FAKE_NETWORK_IP, FakeIpPool.MIN_IDLE_NANOS);
+
+    static final int SLOT_COUNT = 0x10000;
+    static final int TABLE_SIZE = SLOT_COUNT * 2;
+    static final int MAX_PROBES = 64;
+    static final int MAX_EVICT_SCAN = 64;
+    static final long MIN_IDLE_NANOS = 300 * 1000000000L;
+    // RFC 1035 section 2.3.4, which also keeps the length in one byte of a snapshot.
+    static final int MAX_NAME_LENGTH = 255;
+
+    private final int m_NetworkIP;
+    private final long m_MinIdleNanos;
+    // Slot i stands for m_NetworkIP | i; slot 0 (network) and 0xFFFF (broadcast) are never used.
+    private final byte[][] m_Names = new byte[SLOT_COUNT][];
+    private final String[] m_Domains = new String[SLOT_COUNT];
+    private final int[] m_Hashes = new int[SLOT_COUNT];
+    private final int[] m_RefCounts = new int[SLOT_COUNT];
+    private final long[] m_LastUsedNanos = new long[SLOT_COUNT];
+    // LRU list over slots, 0 terminates.
+    private final int[] m_Prev = new int[SLOT_COUNT];
+    private final int[] m_Next = new int[SLOT_COUNT];
+    private int m_Head;
+    private int m_Tail;
+    private int m_NextUnused = 1;
+    private final int[] m_FreeSlots = new int[SLOT_COUNT];
+    private int m_FreeCount;
+    // Slot per hash bucket, 0 when empty.
+    private final int[] m_Table = new int[TABLE_SIZE];
+    private int m_Size;
+    private long m_RecycleCount;
+    private long m_ExhaustedCount;
+
+    public FakeIpPool(int networkIP, long minIdleNanos) {
+        m_NetworkIP = networkIP;
+        m_MinIdleNanos = minIdleNanos;
+    }
+
+    public boolean contains(int ip) {
+        return (ip & ProxyConfig.FAKE_NETWORK_MASK) == m_NetworkIP;
+    }
+
+    /**
+     * Returns the fake IP of the wire format name at {@code offset}, allocating one if needed.
+     *
+     * @return the IP, or 0 if every address is in use or the name is longer than
+     * {@link #MAX_NAME_LENGTH}.
+     */
+    public synchronized int getOrCreate(byte[] name, int offset, int length) {
+        if (length <= 0 || length > MAX_NAME_LENGTH) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        int hash = hash(name, offset, length);
+        int slot = find(name, offset, length, hash);
+        if (slot != 0) {
+            touch(slot, now);
+            return m_NetworkIP | slot;
+        }
+
+        slot = allocateSlot(now);
+        if (slot == 0) {
+            m_ExhaustedCount++;
+            return 0;
+        }
+        if (!insert(slot, hash)) {
+            m_FreeSlots[m_FreeCount++] = slot;
+            m_ExhaustedCount++;
+            return 0;
+        }
+
+        assign(slot, name, offset, length, hash, now);
+        return m_NetworkIP | slot;
+    }
+
+    private void assign(int slot, byte[] name, int offset, int length, int hash, long now) {
+        byte[] stored = m_Names[slot];
+        if (stored == null || stored.length != length) {
+            stored = new byte[length];
+            m_Names[slot] = stored;
+        }
+        for (int i = 0; i < length; i++) {
+            stored[i] = (byte) toLower(name[offset + i]);
+        }
+        m_Domains[slot] = null;
+        m_Hashes[slot] = hash;
+        m_RefCounts[slot] = 0;
+        linkLast(slot);
+        m_LastUsedNanos[slot] = now;
+        m_Size++;
+    }
+
+    /**
+     * Writes every mapping, least recently used first.
+     */
+    synchronized void save(DataOutputStream out) throws IOException {
+        out.writeInt(m_Size);
+        for (int slot = m_Head; slot != 0; slot = m_Next[slot]) {
+            out.writeShort(slot);
+            out.writeByte(m_Names[slot].length);
+            out.write(m_Names[slot]);
+        }
+    }
+
+    /**
+     * Reads mappings written by {@link #save}, keeping each domain on its old address
+     * unless that address or domain has been taken since.
+     *
+     * @return number of mappings restored.
+     * @throws IllegalArgumentException if a record is not a wire format name, so the
+     *                                  rest of the snapshot can not be trusted either.
+     */
+    synchronized int restore(ByteBuffer in) {
+        int count = in.getInt();
+        if (count < 0 || count > SLOT_COUNT) {
+            throw new IllegalArgumentException("Bad fake IP count " + count);
+        }
+        int restored = 0;
+        byte[] name = new byte[MAX_NAME_LENGTH];
+        long now = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            int slot = in.getShort() & 0xFFFF;
+            int length = in.get() & 0xFF;
+            in.get(name, 0, length);
+            if (!isWireName(name, length)) {
+                throw new IllegalArgumentException("Bad fake IP name at record " + i);
+            }
+            if (slot == 0 || slot >= SLOT_COUNT - 1 || isAllocated(slot)) {
+                continue;
+            }
+            int hash = hash(name, 0, length);
+            if (find(name, 0, length, hash) != 0 || !insert(slot, hash)) {
+                continue;
+            }
+            assign(slot, name, 0, length, hash, now);
+            restored++;
+        }
+        return restored;
+    }
+
+    /**
+     * @return the domain the fake IP stands for, or null if it is not allocated.
+     */
+    public synchronized String reverseLookup(int ip) {
+        if (!contains(ip)) {
+            return null;
+        }
+        int slot = ip & 0xFFFF;
+        if (!isAllocated(slot)) {
+            return null;
+        }
+        String domain = m_Domains[slot];
+        if (domain == null) {
+            domain = toDomain(m_Names[slot]);
+            m_Domains[slot] = domain;
+        }
+        return domain;
+    }
+
+    /**
+     * Pins the address while a NAT session uses it, so it is never recycled under the session.
+     */
+    public synchronized void retain(int ip) {
+        int slot = ip & 0xFFFF;
+        if (contains(ip) && isAllocated(slot)) {
+            m_RefCounts[slot]++;
+            touch(slot, System.nanoTime());
+        }
+    }
+
+    public synchronized void release(int ip) {
+        int slot = ip & 0xFFFF;
+        if (contains(ip) && isAllocated(slot) && m_RefCounts[slot] > 0) {
+            m_RefCounts[slot]--;
+            touch(slot, System.nanoTime());
+        }
+    }
+
+    public synchronized int size() {
+        return m_Size;
+    }
+
+    public synchronized long getRecycleCount() {
+        return m_RecycleCount;
+    }
+
+    public synchronized long getExhaustedCount() {
+        return m_ExhaustedCount;
+    }
+
+    private boolean isAllocated(int slot) {
+        return slot != 0 && m_Names[slot] != null && (m_Prev[slot] != 0 || m_Head == slot);
+    }
+
+    private int allocateSlot(long now) {
+        // Restored mappings may already sit on free or never used slots.
+        while (m_FreeCount > 0) {
+            int slot = m_FreeSlots[--m_FreeCount];
+            if (!isAllocated(slot)) {
+                return slot;
+            }
+        }
+        while (m_NextUnused < SLOT_COUNT - 1) {
+            int slot = m_NextUnused++;
+            if (!isAllocated(slot)) {
+                return slot;
+            }
+        }
+
+        // Recycle the least recently used address that is neither pinned nor fresh.
+        for (int i = 0; i < MAX_EVICT_SCAN && m_Head != 0; i++) {
+            int slot = m_Head;
+            if (now - m_LastUsedNanos[slot] < m_MinIdleNanos) {
+                return 0;
+            }
+            if (m_RefCounts[slot] > 0) {
+                touch(slot, now);
+                continue;
+            }
+            unlink(slot);
+            remove(slot);
+            m_Size--;
+            m_RecycleCount++;
+            return slot;
+        }
+        return 0;
+    }
+
+    private int find(byte[] name, int offset, int length, int hash) {
+        int mask = TABLE_SIZE - 1;
+        int bucket = hash & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = m_Table[bucket];
+            if (slot == 0) {
+                return 0;
+            }
+            if (m_Hashes[slot] == hash && nameEquals(m_Names[slot], name, offset, length)) {
+                return slot;
+            }
+            bucket = (bucket + 1) & mask;
+        }
+        return 0;
+    }
+
+    private boolean insert(int slot, int hash) {
+        int mask = TABLE_SIZE - 1;
+        int bucket = hash & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            if (m_Table[bucket] == 0) {
+                m_Table[bucket] = slot;
+                return true;
+            }
+            bucket = (bucket + 1) & mask;
+        }
+        return false;
+    }
+
+    private void remove(int slot) {
+        int mask = TABLE_SIZE - 1;
+        int bucket = m_Hashes[slot] & mask;
+        while (m_Table[bucket] != slot) {
+            if (m_Table[bucket] == 0) {
+                return;
+            }
+            bucket = (bucket + 1) & mask;
+        }
+
+        // Backward shift deletion keeps probe sequences intact without tombstones.
+        int hole = bucket;
+        int next = (hole + 1) & mask;
+        while (m_Table[next] != 0) {
+            int home = m_Hashes[m_Table[next]] & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                m_Table[hole] = m_Table[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        m_Table[hole] = 0;
+    }
+
+    private void touch(int slot, long now) {
+        m_LastUsedNanos[slot] = now;
+        if (m_Tail != slot) {
+            unlink(slot);
+            linkLast(slot);
+        }
+    }
+
+    private void linkLast(int slot) {
+        m_Prev[slot] = m_Tail;
+        m_Next[slot] = 0;
+        if (m_Tail != 0) {
+            m_Next[m_Tail] = slot;
+        } else {
+            m_Head = slot;
+        }
+        m_Tail = slot;
+    }
+
+    private void unlink(int slot) {
+        int prev = m_Prev[slot];
+        int next = m_Next[slot];
+        if (prev != 0) {
+            m_Next[prev] = next;
+        } else {
+            m_Head = next;
+        }
+        if (next != 0) {
+            m_Prev[next] = prev;
+        } else {
+            m_Tail = prev;
+        }
+        m_Prev[slot] = 0;
+        m_Next[slot] = 0;
+    }
+
+    private static boolean isWireName(byte[] name, int length) {
+        int pos = 0;
+        while (pos < length) {
+            int len = name[pos] & 0xFF;
+            if (len == 0) {
+                return pos == length - 1;
+            }
+            if (len > 63) {
+                return false;
+            }
+            pos += len + 1;
+        }
+        return false;
+    }
+
+    private static int hash(byte[] name, int offset, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = hash * 31 + toLower(name[offset + i]);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean nameEquals(byte[] stored, byte[] name, int offset, int length) {
+        if (stored.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (stored[i] != toLower(name[offset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? b + 32 : b;
+    }
+
+    private static String toDomain(byte[] name) {
+        StringBuilder sb = new StringBuilder(name.length);
+        int pos = 0;
+        int len;
+        while (pos < name.length && (len = name[pos] & 0xFF) > 0) {
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            for (int i = 1; i <= len; i++) {
+                sb.append((char) (name[pos + i] & 0xFF));
+            }
+            pos += len + 1;
+        }
+        return sb.toString();
+    }
+}
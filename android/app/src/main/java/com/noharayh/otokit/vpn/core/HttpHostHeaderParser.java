@@ -1,14 +1,15 @@
 package com.noharayh.otokit.vpn.core;
 
-import android.util.Log;
-
-import java.util.Locale;
-
-import com.noharayh.otokit.vpn.tcpip.CommonMethods;
+import java.nio.charset.StandardCharsets;
 
 
 public class HttpHostHeaderParser {
 
+    private static final byte[][] METHODS = {
+            ascii("GET "), ascii("HEAD "), ascii("POST "), ascii("PUT "), ascii("PATCH "),
+            ascii("DELETE "), ascii("OPTIONS "), ascii("TRACE "), ascii("CONNECT "),
+    };
+
     public static String parseHost(byte[] buffer, int offset, int count) {
         try {
             switch (buffer[offset]) {
@@ -20,8 +21,6 @@ public class HttpHostHeaderParser {
                 case 'T'://TRACE
                 case 'C'://CONNECT
                     return getHttpHost(buffer, offset, count);
-                case 0x16://SSL
-                    return getSNI(buffer, offset, count);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -30,85 +29,125 @@ public class HttpHostHeaderParser {
         return null;
     }
 
+    /**
+     * Scans the request line and headers in place for the Host header, allocating only
+     * the returned string. A port is stripped, as are the brackets of an IPv6 literal.
+     *
+     * @return the host, or null if this is no HTTP request or the headers seen so far
+     * hold no complete Host line.
+     */
     static String getHttpHost(byte[] buffer, int offset, int count) {
-        String headerString = new String(buffer, offset, count);
-        String[] headerLines = headerString.split("\\r\\n");
-        String requestLine = headerLines[0];
-        if (requestLine.startsWith("GET") || requestLine.startsWith("POST") || requestLine.startsWith("HEAD") || requestLine.startsWith("OPTIONS")) {
-            for (int i = 1; i < headerLines.length; i++) {
-                String[] nameValueStrings = headerLines[i].split(":");
-                if (nameValueStrings.length == 2) {
-                    String name = nameValueStrings[0].toLowerCase(Locale.ENGLISH).trim();
-                    String value = nameValueStrings[1].trim();
-                    if ("host".equals(name)) {
-                        return value;
-                    }
+        int end = offset + count;
+        if (!startsWithMethod(buffer, offset, end)) {
+            return null;
+        }
+
+        // Skip the request line, then look at one header line per round.
+        int lineEnd = indexOf(buffer, offset, end, (byte) '\n');
+        while (lineEnd >= 0) {
+            int lineStart = lineEnd + 1;
+            lineEnd = indexOf(buffer, lineStart, end, (byte) '\n');
+            if (lineEnd < 0) {
+                return null;
+            }
+            int contentEnd = lineEnd;
+            if (contentEnd > lineStart && buffer[contentEnd - 1] == '\r') {
+                contentEnd--;
+            }
+            if (contentEnd == lineStart) {
+                // End of the headers.
+                return null;
+            }
+            if (contentEnd - lineStart >= 5
+                    && (buffer[lineStart] | 0x20) == 'h' && (buffer[lineStart + 1] | 0x20) == 'o'
+                    && (buffer[lineStart + 2] | 0x20) == 's' && (buffer[lineStart + 3] | 0x20) == 't') {
+                // Tolerate blanks before the colon, as the old split based parser did.
+                int colon = lineStart + 4;
+                while (colon < contentEnd && (buffer[colon] == ' ' || buffer[colon] == '\t')) {
+                    colon++;
+                }
+                if (colon < contentEnd && buffer[colon] == ':') {
+                    return parseHostValue(buffer, colon + 1, contentEnd);
                 }
             }
         }
         return null;
     }
 
-    static String getSNI(byte[] buffer, int offset, int count) {
-        int limit = offset + count;
-        if (count > 43 && buffer[offset] == 0x16) {//TLS Client Hello
-            offset += 43;//skip 43 bytes header
-
-            //read sessionID:
-            if (offset + 1 > limit) return null;
-            int sessionIDLength = buffer[offset++] & 0xFF;
-            offset += sessionIDLength;
-
-            //read cipher suites:
-            if (offset + 2 > limit) return null;
-            int cipherSuitesLength = CommonMethods.readShort(buffer, offset) & 0xFFFF;
-            offset += 2;
-            offset += cipherSuitesLength;
-
-            //read Compression method:
-            if (offset + 1 > limit) return null;
-            int compressionMethodLength = buffer[offset++] & 0xFF;
-            offset += compressionMethodLength;
+    private static String parseHostValue(byte[] buffer, int start, int end) {
+        while (start < end && (buffer[start] == ' ' || buffer[start] == '\t')) {
+            start++;
+        }
+        while (end > start && (buffer[end - 1] == ' ' || buffer[end - 1] == '\t')) {
+            end--;
+        }
 
-            if (offset == limit) {
-                System.err.println("TLS Client Hello packet doesn't contains SNI info.(offset == limit)");
+        int hostStart = start;
+        int hostEnd;
+        int portStart;
+        if (start < end && buffer[start] == '[') {
+            hostStart = start + 1;
+            hostEnd = indexOf(buffer, hostStart, end, (byte) ']');
+            if (hostEnd < 0) {
                 return null;
             }
+            portStart = hostEnd + 1;
+        } else {
+            hostEnd = indexOf(buffer, start, end, (byte) ':');
+            if (hostEnd < 0) {
+                hostEnd = end;
+            }
+            portStart = hostEnd;
+        }
 
-            //read Extensions:
-            if (offset + 2 > limit) return null;
-            int extensionsLength = CommonMethods.readShort(buffer, offset) & 0xFFFF;
-            offset += 2;
-
-            if (offset + extensionsLength > limit) {
-                System.err.println("TLS Client Hello packet is incomplete.");
+        if (portStart < end) {
+            // The port may be empty (RFC 3986 section 3.2.3).
+            if (buffer[portStart] != ':') {
                 return null;
             }
-
-            while (offset + 4 <= limit) {
-                int type0 = buffer[offset++] & 0xFF;
-                int type1 = buffer[offset++] & 0xFF;
-                int length = CommonMethods.readShort(buffer, offset) & 0xFFFF;
-                offset += 2;
-
-                if (type0 == 0x00 && type1 == 0x00 && length > 5) { //have SNI
-                    offset += 5;//skip SNI header.
-                    length -= 5;//SNI size;
-                    if (offset + length > limit) return null;
-                    String serverName = new String(buffer, offset, length);
-                    if (ProxyConfig.IS_DEBUG)
-                        Log.d(Constant.TAG, "SNI: " + serverName);
-                    return serverName;
-                } else {
-                    offset += length;
+            for (int i = portStart + 1; i < end; i++) {
+                if (buffer[i] < '0' || buffer[i] > '9') {
+                    return null;
                 }
             }
-
-            System.err.println("TLS Client Hello packet doesn't contains Host field info.");
-            return null;
-        } else {
-            System.err.println("Bad TLS Client Hello packet.");
+        }
+        if (hostEnd == hostStart) {
             return null;
         }
+        for (int i = hostStart; i < hostEnd; i++) {
+            if (buffer[i] <= ' ' || buffer[i] == 0x7F) {
+                return null;
+            }
+        }
+        return new String(buffer, hostStart, hostEnd - hostStart, StandardCharsets.US_ASCII);
+    }
+
+    private static boolean startsWithMethod(byte[] buffer, int offset, int end) {
+        for (byte[] method : METHODS) {
+            if (end - offset < method.length) {
+                continue;
+            }
+            int i = 0;
+            while (i < method.length && buffer[offset + i] == method[i]) {
+                i++;
+            }
+            if (i == method.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOf(byte[] buffer, int start, int end, byte value) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
     }
 }
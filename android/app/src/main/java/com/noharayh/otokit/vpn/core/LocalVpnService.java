@@ -17,10 +17,7 @@ import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -29,14 +26,14 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import com.noharayh.otokit.R;
 import com.noharayh.otokit.vpn.core.ProxyConfig.IPAddress;
-import com.noharayh.otokit.vpn.dns.DnsPacket;
+import com.noharayh.otokit.vpn.dns.DnsView;
 import com.noharayh.otokit.vpn.tcpip.CommonMethods;
 import com.noharayh.otokit.vpn.tcpip.IPHeader;
 import com.noharayh.otokit.vpn.tcpip.TCPHeader;
 import com.noharayh.otokit.vpn.tcpip.UDPHeader;
 
 
-public class LocalVpnService extends VpnService implements Runnable {
+public class LocalVpnService extends VpnService implements Runnable, TunInterface.PacketHandler {
 
     public static LocalVpnService Instance;
     public static boolean IsRunning = false;
@@ -45,6 +42,9 @@ public class LocalVpnService extends VpnService implements Runnable {
     private final String model = android.os.Build.MODEL;
     private final String version = "" + android.os.Build.VERSION.SDK_INT + " (" + android.os.Build.VERSION.RELEASE + ")";
 
+    private static final int TUN_RING_CAPACITY = 256;
+    private static final int DNS_RING_CAPACITY = 64;
+
     private static int ID;
     private static int LOCAL_IP;
     private static ConcurrentHashMap<onStatusChangedListener, Object> m_OnStatusChangedListeners = new ConcurrentHashMap<onStatusChangedListener, Object>();
@@ -53,13 +53,16 @@ public class LocalVpnService extends VpnService implements Runnable {
     private ParcelFileDescriptor m_VPNInterface;
     private TcpProxyServer m_TcpProxyServer;
     private DnsProxy m_DnsProxy;
-    private FileOutputStream m_VPNOutputStream;
+    private TunInterface m_TunInterface;
+    private volatile TunWriter m_TunWriter;
+    private PacketRing m_TunRing;
+    private PacketRing m_DnsRing;
 
     private byte[] m_Packet;
     private IPHeader m_IPHeader;
     private TCPHeader m_TCPHeader;
     private UDPHeader m_UDPHeader;
-    private ByteBuffer m_DNSBuffer;
+    private final DnsView m_DnsView = new DnsView();
     private Handler m_Handler;
     private long m_SentBytes;
     private long m_ReceivedBytes;
@@ -72,7 +75,6 @@ public class LocalVpnService extends VpnService implements Runnable {
         m_IPHeader = new IPHeader(m_Packet, 0);
         m_TCPHeader = new TCPHeader(m_Packet, 20);
         m_UDPHeader = new UDPHeader(m_Packet, 20);
-        m_DNSBuffer = ((ByteBuffer) ByteBuffer.wrap(m_Packet).position(28)).slice();
         Instance = this;
 
         Log.d("VpnProxy", "New VPNService" + ID);
@@ -97,8 +99,11 @@ public class LocalVpnService extends VpnService implements Runnable {
             m_TcpProxyServer = new TcpProxyServer(0);
             m_TcpProxyServer.start();
 
-            m_DnsProxy = new DnsProxy();
+            m_DnsProxy = new DnsProxy(m_TcpProxyServer.getEventLoop(0));
             m_DnsProxy.start();
+            m_TcpProxyServer.setDnsProxy(m_DnsProxy);
+
+            DnsSnapshot.loadAsync(new File(getFilesDir(), DnsSnapshot.FILE_NAME));
         } catch (Exception e) {
             writeLog("%s 代理服务启动失败: TCP/DNS Proxy", getString(R.string.log_tag_error));
         }
@@ -149,12 +154,24 @@ public class LocalVpnService extends VpnService implements Runnable {
     }
 
     public void sendUDPPacket(IPHeader ipHeader, UDPHeader udpHeader) {
-        try {
-            CommonMethods.ComputeUDPChecksum(ipHeader, udpHeader);
-            this.m_VPNOutputStream.write(ipHeader.m_Data, ipHeader.m_Offset, ipHeader.getTotalLength());
-        } catch (IOException e) {
-            e.printStackTrace();
+        CommonMethods.ComputeUDPChecksum(ipHeader, udpHeader);
+        sendPacket(ipHeader.m_Data, ipHeader.m_Offset, ipHeader.getTotalLength());
+    }
+
+    void sendPacket(byte[] data, int offset, int length) {
+        TunWriter tunWriter = m_TunWriter;
+        if (tunWriter == null) {
+            return;
+        }
+        if (Thread.currentThread() == m_VPNThread) {
+            m_TunRing.offer(data, offset, length);
+        } else {
+            // Every other producer (DnsProxy and friends) shares one ring.
+            synchronized (m_DnsRing) {
+                m_DnsRing.offer(data, offset, length);
+            }
         }
+        tunWriter.signal();
     }
 
     String getAppInstallID() {
@@ -206,38 +223,40 @@ public class LocalVpnService extends VpnService implements Runnable {
         }
 
         writeLog("%s %s", getString(R.string.log_tag_vpn), getString(R.string.log_vpn_closed));
+        // Written here rather than in onDestroy to keep the file I/O off the main thread.
+        DnsSnapshot.save(new File(getFilesDir(), DnsSnapshot.FILE_NAME));
         dispose();
     }
 
     private void runVPN() throws Exception {
         this.m_VPNInterface = establishVPN();
-        this.m_VPNOutputStream = new FileOutputStream(m_VPNInterface.getFileDescriptor());
-        FileInputStream in = new FileInputStream(m_VPNInterface.getFileDescriptor());
+        this.m_TunInterface = new TunInterface(m_VPNInterface.getFileDescriptor());
+        int slotSize = Math.max(ProxyConfig.Instance.getMTU(), 2048);
+        this.m_TunRing = new PacketRing(TUN_RING_CAPACITY, slotSize);
+        this.m_DnsRing = new PacketRing(DNS_RING_CAPACITY, slotSize);
+        this.m_TunWriter = new TunWriter(m_TunInterface, m_TunRing, m_DnsRing);
+        m_TunWriter.start();
         try {
             while (IsRunning) {
-                boolean idle = true;
-                int size = in.read(m_Packet);
-                if (size > 0) {
-                    if (m_DnsProxy.Stopped || m_TcpProxyServer.Stopped) {
-                        in.close();
-                        throw new Exception("LocalServer stopped.");
-                    }
-                    try {
-                        onIPPacketReceived(m_IPHeader, size);
-                        idle = false;
-                    } catch (IOException ex) {
-                        Log.e(TAG, "IOException when processing IP packet", ex);
-                    }
+                if (m_TunInterface.readBatch(m_Packet, this) < 0) {
+                    break;
                 }
-                if (idle) {
-                    Thread.sleep(100);
+                if (m_DnsProxy.Stopped || m_TcpProxyServer.Stopped) {
+                    throw new Exception("LocalServer stopped.");
                 }
             }
         } finally {
-            in.close();
+            m_TunWriter.stop();
+            m_TunWriter = null;
+            m_TunInterface.close();
         }
     }
 
+    @Override
+    public void onPacketReceived(byte[] packet, int size) throws IOException {
+        onIPPacketReceived(m_IPHeader, size);
+    }
+
     void onIPPacketReceived(IPHeader ipHeader, int size) throws IOException {
         switch (ipHeader.getProtocol()) {
             case IPHeader.TCP:
@@ -247,12 +266,15 @@ public class LocalVpnService extends VpnService implements Runnable {
                     if (tcpHeader.getSourcePort() == m_TcpProxyServer.Port) {
                         NatSession session = NatSessionManager.getSession(tcpHeader.getDestinationPort());
                         if (session != null) {
-                            ipHeader.setSourceIP(ipHeader.getDestinationIP());
-                            tcpHeader.setSourcePort(session.RemotePort);
-                            ipHeader.setDestinationIP(LOCAL_IP);
-
-                            CommonMethods.ComputeTCPChecksum(ipHeader, tcpHeader);
-                            m_VPNOutputStream.write(ipHeader.m_Data, ipHeader.m_Offset, size);
+                            int sourceIP = ipHeader.getSourceIP();
+                            int destinationIP = ipHeader.getDestinationIP();
+                            ipHeader.updateSourceIP(destinationIP);
+                            ipHeader.updateDestinationIP(LOCAL_IP);
+                            tcpHeader.updateAddressChecksum(sourceIP, destinationIP);
+                            tcpHeader.updateAddressChecksum(destinationIP, LOCAL_IP);
+                            tcpHeader.updateSourcePort(session.RemotePort);
+
+                            sendPacket(ipHeader.m_Data, ipHeader.m_Offset, size);
                             m_ReceivedBytes += size;
                         } else {
                             if (ProxyConfig.IS_DEBUG)
@@ -275,20 +297,27 @@ public class LocalVpnService extends VpnService implements Runnable {
                             return;
                         }
 
-                        if (session.BytesSent == 0 && tcpDataSize > 10) {
+                        if (tcpDataSize > 0 && (session.BytesSent == 0 || session.HelloState == TlsClientHelloParser.STATE_PARTIAL)) {
                             int dataOffset = tcpHeader.m_Offset + tcpHeader.getHeaderLength();
-                            String host = HttpHostHeaderParser.parseHost(tcpHeader.m_Data, dataOffset, tcpDataSize);
-                            if (host != null) {
-                                session.RemoteHost = host;
+                            if (session.HelloState != TlsClientHelloParser.STATE_IDLE || tcpHeader.m_Data[dataOffset] == 0x16) {
+                                TlsClientHelloParser.feed(session, tcpHeader.getSeqID(), tcpHeader.m_Data, dataOffset, tcpDataSize);
+                            } else if (tcpDataSize > 10) {
+                                String host = HttpHostHeaderParser.parseHost(tcpHeader.m_Data, dataOffset, tcpDataSize);
+                                if (host != null) {
+                                    session.RemoteHost = host;
+                                }
                             }
                         }
 
-                        ipHeader.setSourceIP(ipHeader.getDestinationIP());
-                        ipHeader.setDestinationIP(LOCAL_IP);
-                        tcpHeader.setDestinationPort(m_TcpProxyServer.Port);
+                        int sourceIP = ipHeader.getSourceIP();
+                        int destinationIP = ipHeader.getDestinationIP();
+                        ipHeader.updateSourceIP(destinationIP);
+                        ipHeader.updateDestinationIP(LOCAL_IP);
+                        tcpHeader.updateAddressChecksum(sourceIP, destinationIP);
+                        tcpHeader.updateAddressChecksum(destinationIP, LOCAL_IP);
+                        tcpHeader.updateDestinationPort(m_TcpProxyServer.Port);
 
-                        CommonMethods.ComputeTCPChecksum(ipHeader, tcpHeader);
-                        m_VPNOutputStream.write(ipHeader.m_Data, ipHeader.m_Offset, size);
+                        sendPacket(ipHeader.m_Data, ipHeader.m_Offset, size);
                         session.BytesSent += tcpDataSize;
                         m_SentBytes += size;
                     }
@@ -298,11 +327,9 @@ public class LocalVpnService extends VpnService implements Runnable {
                 UDPHeader udpHeader = m_UDPHeader;
                 udpHeader.m_Offset = ipHeader.getHeaderLength();
                 if (ipHeader.getSourceIP() == LOCAL_IP && udpHeader.getDestinationPort() == 53) {
-                    m_DNSBuffer.clear();
-                    m_DNSBuffer.limit(ipHeader.getDataLength() - 8);
-                    DnsPacket dnsPacket = DnsPacket.FromBytes(m_DNSBuffer);
-                    if (dnsPacket != null && dnsPacket.Header.QuestionCount > 0) {
-                        m_DnsProxy.onDnsRequestReceived(ipHeader, udpHeader, dnsPacket);
+                    DnsView dnsView = m_DnsView;
+                    if (dnsView.wrap(udpHeader.m_Data, udpHeader.m_Offset + 8, ipHeader.getDataLength() - 8)) {
+                        m_DnsProxy.onDnsRequestReceived(ipHeader, udpHeader, dnsView);
                     }
                 }
                 break;
@@ -398,13 +425,8 @@ public class LocalVpnService extends VpnService implements Runnable {
             // ignore
         }
 
-        try {
-            if (m_VPNOutputStream != null) {
-                m_VPNOutputStream.close();
-                m_VPNOutputStream = null;
-            }
-        } catch (Exception e) {
-            // ignore
+        if (m_TunInterface != null) {
+            m_TunInterface.wakeup();
         }
 
 //        try {
@@ -444,6 +466,7 @@ public class LocalVpnService extends VpnService implements Runnable {
         } catch (Exception e) {
             // ignore
         }
+
         super.onDestroy();
     }
 
@@ -1,10 +1,30 @@
 package com.noharayh.otokit.vpn.core;
 
-public class NatSession {
+public class NatSession implements TimerWheel.Timeout {
+    public int PortKey;
     public int RemoteIP;
     public short RemotePort;
     public String RemoteHost;
+    public String Alpn;
+    // Cached RouteTable decision.
+    public byte RouteAction = RouteTable.ACTION_UNDECIDED;
     public int BytesSent;
     public int PacketSent;
-    public long LastNanoTime;
+    public volatile long LastNanoTime;
+
+    // ClientHello reassembly, see TlsClientHelloParser.
+    byte HelloState;
+    byte[] HelloBuffer;
+    int HelloLength;
+    int HelloNextSeq;
+
+    @Override
+    public long getDeadlineNanos() {
+        return LastNanoTime + NatSessionManager.SESSION_TIMEOUT_NS;
+    }
+
+    @Override
+    public boolean onTimeout(long now) {
+        return NatSessionManager.onSessionTimeout(this, now);
+    }
 }
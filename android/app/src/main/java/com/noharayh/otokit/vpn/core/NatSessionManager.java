@@ -1,14 +1,11 @@
 package com.noharayh.otokit.vpn.core;
 
-import android.util.SparseArray;
-
 import com.noharayh.otokit.vpn.tcpip.CommonMethods;
 
 public class NatSessionManager {
 
-    static final int MAX_SESSION_COUNT = 4096;
     static final long SESSION_TIMEOUT_NS = 120 * 1000000000L;
-    static final SparseArray<NatSession> Sessions = new SparseArray<NatSession>();
+    static final NatTable Sessions = new NatTable();
 
     public static NatSession getSession(int portKey) {
         return Sessions.get(portKey);
@@ -18,39 +15,56 @@ public class NatSessionManager {
         return Sessions.size();
     }
 
-    static void clearExpiredSessions() {
-        long now = System.nanoTime();
-        for (int i = Sessions.size() - 1; i >= 0; i--) {
-            NatSession session = Sessions.valueAt(i);
-            if (now - session.LastNanoTime > SESSION_TIMEOUT_NS) {
-                Sessions.removeAt(i);
-            }
+    static synchronized boolean onSessionTimeout(NatSession session, long now) {
+        if (Sessions.get(session.PortKey) != session) {
+            return false;
+        }
+        if (now - session.LastNanoTime > SESSION_TIMEOUT_NS) {
+            Sessions.remove(session.PortKey);
+            releaseFakeIP(session);
+            return false;
         }
+        return true;
     }
 
-    public static void clearAllSessions() {
+    public static synchronized void clearAllSessions() {
+        for (int i = 0; i < Sessions.size(); i++) {
+            releaseFakeIP(Sessions.valueAt(i));
+        }
         Sessions.clear();
     }
 
-    public static NatSession createSession(int portKey, int remoteIP, short remotePort) {
-        if (Sessions.size() > MAX_SESSION_COUNT) {
-            clearExpiredSessions();
+    private static void releaseFakeIP(NatSession session) {
+        if (ProxyConfig.isFakeIP(session.RemoteIP)) {
+            FakeIpPool.Instance.release(session.RemoteIP);
         }
+    }
 
+    public static synchronized NatSession createSession(int portKey, int remoteIP, short remotePort) {
+        NatSession replaced = Sessions.get(portKey);
+        if (replaced != null) {
+            releaseFakeIP(replaced);
+            TlsClientHelloParser.release(replaced);
+        }
+
+        // Always a fresh object: event loops may still hold the replaced session.
         NatSession session = new NatSession();
+        session.PortKey = portKey;
         session.LastNanoTime = System.nanoTime();
         session.RemoteIP = remoteIP;
         session.RemotePort = remotePort;
 
-//        if (ProxyConfig.isFakeIP(remoteIP)) {
-//            session.RemoteHost = DnsProxy.reverseLookup(remoteIP);
-//        }
+        if (ProxyConfig.isFakeIP(remoteIP)) {
+            FakeIpPool.Instance.retain(remoteIP);
+            session.RemoteHost = DnsProxy.reverseLookup(remoteIP);
+        }
 
         if (session.RemoteHost == null) {
             session.RemoteHost = CommonMethods.ipIntToString(remoteIP);
         }
 
         Sessions.put(portKey, session);
+        TimerWheel.Shared.schedule(session);
         return session;
     }
 }
@@ -0,0 +1,72 @@
+package com.noharayh.otokit.vpn.core;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * NAT sessions indexed directly by the 16-bit local source port, with live ports
+ * tracked in a dense array so sweeps only touch live entries. Only the owner of the
+ * {@link NatSessionManager} lock mutates the table; {@link #get} may be called from
+ * any thread, and sees a session only once it is fully initialized by {@link #put}.
+ */
+public class NatTable {
+
+    static final int CAPACITY = 0x10000;
+
+    private final AtomicReferenceArray<NatSession> m_Sessions = new AtomicReferenceArray<NatSession>(CAPACITY);
+    // Position + 1 of the port in m_LivePorts, 0 when the slot is free.
+    private final int[] m_LiveIndex = new int[CAPACITY];
+    private final int[] m_LivePorts = new int[CAPACITY];
+    private int m_Size;
+
+    public NatSession get(int portKey) {
+        return m_Sessions.get(portKey & 0xFFFF);
+    }
+
+    /**
+     * Publishes a new, fully initialized session for the port, replacing any previous
+     * one. Sessions are never recycled, since event loops may still hold the old one.
+     */
+    public void put(int portKey, NatSession session) {
+        int port = portKey & 0xFFFF;
+        if (m_LiveIndex[port] == 0) {
+            m_LivePorts[m_Size] = port;
+            m_Size++;
+            m_LiveIndex[port] = m_Size;
+        }
+        m_Sessions.set(port, session);
+    }
+
+    public void remove(int portKey) {
+        int port = portKey & 0xFFFF;
+        int index = m_LiveIndex[port] - 1;
+        if (index < 0) {
+            return;
+        }
+        m_Size--;
+        int lastPort = m_LivePorts[m_Size];
+        m_LivePorts[index] = lastPort;
+        m_LiveIndex[lastPort] = index + 1;
+        m_LiveIndex[port] = 0;
+        m_Sessions.set(port, null);
+    }
+
+    public int size() {
+        return m_Size;
+    }
+
+    public int portAt(int index) {
+        return m_LivePorts[index];
+    }
+
+    public NatSession valueAt(int index) {
+        return m_Sessions.get(m_LivePorts[index]);
+    }
+
+    public void clear() {
+        for (int i = 0; i < m_Size; i++) {
+            m_LiveIndex[m_LivePorts[i]] = 0;
+            m_Sessions.set(m_LivePorts[i], null);
+        }
+        m_Size = 0;
+    }
+}
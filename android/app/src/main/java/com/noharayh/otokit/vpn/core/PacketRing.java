@@ -0,0 +1,79 @@
+package com.noharayh.otokit.vpn.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-producer/single-consumer ring of preallocated packet slots.
+ * {@link #offer} must only be called from one thread at a time, and
+ * {@link #peek}/{@link #advance} only from the consumer thread.
+ */
+public class PacketRing {
+
+    private final byte[][] m_Slots;
+    private final int[] m_Lengths;
+    private final int m_Mask;
+    private final int m_SlotSize;
+    private final AtomicLong m_Head = new AtomicLong();
+    private final AtomicLong m_Tail = new AtomicLong();
+    private long m_CachedHead;
+    private final AtomicLong m_DropCount = new AtomicLong();
+
+    public PacketRing(int capacity, int slotSize) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        m_Slots = new byte[capacity][slotSize];
+        m_Lengths = new int[capacity];
+        m_Mask = capacity - 1;
+        m_SlotSize = slotSize;
+    }
+
+    public boolean offer(byte[] data, int offset, int length) {
+        long tail = m_Tail.get();
+        if (length > m_SlotSize) {
+            m_DropCount.incrementAndGet();
+            return false;
+        }
+        if (tail - m_CachedHead > m_Mask) {
+            m_CachedHead = m_Head.get();
+            if (tail - m_CachedHead > m_Mask) {
+                m_DropCount.incrementAndGet();
+                return false;
+            }
+        }
+        int index = (int) tail & m_Mask;
+        System.arraycopy(data, offset, m_Slots[index], 0, length);
+        m_Lengths[index] = length;
+        // A full store, not lazySet: TunWriter.signal() reads m_Parked right after this,
+        // and a release-only store could be reordered past that read and lose the wakeup.
+        m_Tail.set(tail + 1);
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return m_Head.get() == m_Tail.get();
+    }
+
+    /**
+     * @return the oldest queued slot, or null if the ring is empty. Its length is {@link #peekLength()}.
+     */
+    public byte[] peek() {
+        long head = m_Head.get();
+        if (head == m_Tail.get()) {
+            return null;
+        }
+        return m_Slots[(int) head & m_Mask];
+    }
+
+    public int peekLength() {
+        return m_Lengths[(int) m_Head.get() & m_Mask];
+    }
+
+    public void advance() {
+        m_Head.lazySet(m_Head.get() + 1);
+    }
+
+    public long getDropCount() {
+        return m_DropCount.get();
+    }
+}
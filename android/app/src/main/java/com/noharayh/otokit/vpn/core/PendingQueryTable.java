@@ -0,0 +1,52 @@
+package com.noharayh.otokit.vpn.core;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Outstanding upstream DNS queries indexed by their 16-bit transaction ID. IDs are
+ * claimed and released with CAS only, since the VPN thread, the event loops and the
+ * timer threads all claim, answer or expire queries concurrently. IDs are drawn from
+ * {@link SecureRandom}, so an off-path attacker can not predict the next one.
+ */
+class PendingQueryTable<T> {
+
+    static final int CAPACITY = 0x10000;
+    static final int MAX_ID_ATTEMPTS = 32;
+
+    private final AtomicReferenceArray<T> m_Slots = new AtomicReferenceArray<T>(CAPACITY);
+    private final SecureRandom m_Random = new SecureRandom();
+
+    T get(int id) {
+        return m_Slots.get(id & 0xFFFF);
+    }
+
+    /**
+     * @return a random ID that was free when probed, or -1 if none was found. The
+     * caller still has to win {@link #claim} for it.
+     */
+    int nextFreeID() {
+        for (int i = 0; i < MAX_ID_ATTEMPTS; i++) {
+            int id = m_Random.nextInt() & 0xFFFF;
+            if (m_Slots.get(id) == null) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Publishes {@code value}, which must be fully initialized, under a free ID.
+     */
+    boolean claim(int id, T value) {
+        return m_Slots.compareAndSet(id & 0xFFFF, null, value);
+    }
+
+    /**
+     * @return false if {@code value} no longer holds the ID, so exactly one of an
+     * answer and a timeout racing for the same query wins.
+     */
+    boolean release(int id, T value) {
+        return m_Slots.compareAndSet(id & 0xFFFF, value, null);
+    }
+}
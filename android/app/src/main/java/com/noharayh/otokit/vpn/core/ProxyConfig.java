@@ -13,6 +13,10 @@ import com.noharayh.otokit.vpn.tunnel.Config;
 import com.noharayh.otokit.vpn.tunnel.httpconnect.HttpConnectConfig;
 
 public class ProxyConfig {
+    // Initialized before Instance, whose constructor compiles them.
+    public final static String[] DEFAULT_ROUTE_RULES = {
+            "wahlap.com:80 capture",
+    };
     public static final ProxyConfig Instance = new ProxyConfig();
     public final static boolean IS_DEBUG = false;
     public final static int FAKE_NETWORK_MASK = CommonMethods.ipStringToInt("255.255.0.0");
@@ -24,12 +28,16 @@ public class ProxyConfig {
     ArrayList<IPAddress> m_DnsList;
     ArrayList<Config> m_ProxyList;
     HashMap<String, Boolean> m_DomainMap;
+    volatile RouteTable m_RouteTable = RouteTable.compile(DEFAULT_ROUTE_RULES);
 
     int m_dns_ttl = 10;
     String m_welcome_info = Constant.TAG;
     String m_session_name = Constant.TAG;
     String m_user_agent = System.getProperty("http.agent");
     int m_mtu = 1500;
+    boolean m_dns_race = false;
+    int m_connect_pool_size = 2;
+    boolean m_connect_pipelining = false;
 
 
     public ProxyConfig() {
@@ -86,6 +94,37 @@ public class ProxyConfig {
         return m_dns_ttl;
     }
 
+    public boolean isDnsRaceEnabled() {
+        return m_dns_race;
+    }
+
+    public void setDnsRaceEnabled(boolean enabled) {
+        m_dns_race = enabled;
+    }
+
+    /**
+     * @return how many idle proxy connections each event loop keeps ready for CONNECT
+     * tunnels, 0 to connect on demand.
+     */
+    public int getConnectPoolSize() {
+        return m_connect_pool_size;
+    }
+
+    public void setConnectPoolSize(int size) {
+        m_connect_pool_size = size;
+    }
+
+    /**
+     * Whether CONNECT tunnels relay client data before the proxy has answered.
+     */
+    public boolean isConnectPipeliningEnabled() {
+        return m_connect_pipelining;
+    }
+
+    public void setConnectPipeliningEnabled(boolean enabled) {
+        m_connect_pipelining = enabled;
+    }
+
     public String getWelcomeInfo() {
         return m_welcome_info;
     }
@@ -136,10 +175,33 @@ public class ProxyConfig {
         return null;
     }
 
+    public RouteTable getRouteTable() {
+        return m_RouteTable;
+    }
+
+    /**
+     * Replaces the routing rules, see {@link RouteTable} for the syntax. Sessions that
+     * were already decided keep their tunnel type.
+     */
+    public void setRouteRules(String[] rules) {
+        m_RouteTable = RouteTable.compile(rules);
+    }
+
+    public static boolean isFakeIP(int ip) {
+        return (ip & FAKE_NETWORK_MASK) == FAKE_NETWORK_IP;
+    }
+
     public boolean needProxy(String host) {
         return true;
     }
 
+    /**
+     * Same as {@link #needProxy(String)} for a wire format name inside a packet.
+     */
+    public boolean needProxy(byte[] name, int offset, int length) {
+        return true;
+    }
+
     public boolean needProxy(int ip) {
         return true;
     }
@@ -0,0 +1,374 @@
+package com.noharayh.otokit.vpn.core;
+
+import android.util.Log;
+
+import com.noharayh.otokit.vpn.tcpip.CommonMethods;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Immutable table deciding which tunnel carries a TCP session, compiled from rules of
+ * the form {@code <match> <action>}:
+ * <pre>
+ *   wahlap.com:80 capture      domain rule, see {@link DomainTrie} for the syntax
+ *   10.0.0.0/8 raw             CIDR rule, a bare address means /32
+ *   :8080 connect              port rule
+ * </pre>
+ * Domain and CIDR rules may be limited to a port with a {@code :port} suffix. Actions
+ * are {@code raw}, {@code capture} and {@code connect} (HTTP CONNECT). A session is
+ * decided by the most specific domain rule, then the longest CIDR prefix, then its
+ * port; within each kind a rule for the session's port beats one for any port.
+ */
+public class RouteTable {
+
+    public static final byte ACTION_RAW = 0;
+    public static final byte ACTION_CAPTURE = 1;
+    public static final byte ACTION_HTTP_CONNECT = 2;
+    public static final byte ACTION_UNDECIDED = -1;
+
+    static final int ANY_PORT = 0;
+
+    // Index 0 always holds the any-port entry.
+    private final int[] m_DomainPorts;
+    private final DomainTrie[] m_DomainTries;
+    private final int[] m_CidrPorts;
+    private final CidrSet[] m_CidrSets;
+    private final int[] m_Ports;
+    private final byte[] m_PortActions;
+    private final byte m_DefaultAction;
+    private final int m_RuleCount;
+
+    private RouteTable(Builder builder) {
+        m_DomainPorts = toIntArray(builder.m_DomainPorts);
+        m_DomainTries = new DomainTrie[m_DomainPorts.length];
+        for (int i = 0; i < m_DomainTries.length; i++) {
+            m_DomainTries[i] = builder.m_DomainBuilders.get(i).build();
+        }
+        m_CidrPorts = toIntArray(builder.m_CidrPorts);
+        m_CidrSets = new CidrSet[m_CidrPorts.length];
+        for (int i = 0; i < m_CidrSets.length; i++) {
+            m_CidrSets[i] = new CidrSet(builder.m_CidrRules.get(i));
+        }
+        m_Ports = toIntArray(builder.m_Ports);
+        m_PortActions = new byte[m_Ports.length];
+        for (int i = 0; i < m_PortActions.length; i++) {
+            m_PortActions[i] = builder.m_PortActions.get(i);
+        }
+        m_DefaultAction = builder.m_DefaultAction;
+        m_RuleCount = builder.m_RuleCount;
+    }
+
+    public static RouteTable compile(String[] rules) {
+        Builder builder = new Builder();
+        for (String rule : rules) {
+            builder.add(rule);
+        }
+        return builder.build();
+    }
+
+    public int getRuleCount() {
+        return m_RuleCount;
+    }
+
+    /**
+     * Decides the session once and caches the action on it.
+     */
+    public byte decide(NatSession session) {
+        byte action = session.RouteAction;
+        if (action == ACTION_UNDECIDED) {
+            action = lookup(session.RemoteHost, session.RemoteIP, session.RemotePort & 0xFFFF);
+            session.RouteAction = action;
+        }
+        return action;
+    }
+
+    /**
+     * @param host the host name, or null if only the address is known.
+     */
+    public byte lookup(String host, int ip, int port) {
+        if (host != null) {
+            int value = lookupDomain(host, port);
+            if (value != DomainTrie.NO_MATCH) {
+                return (byte) value;
+            }
+        }
+        int value = lookupCidr(ip, port);
+        if (value != DomainTrie.NO_MATCH) {
+            return (byte) value;
+        }
+        for (int i = 0; i < m_Ports.length; i++) {
+            if (m_Ports[i] == port) {
+                return m_PortActions[i];
+            }
+        }
+        return m_DefaultAction;
+    }
+
+    private int lookupDomain(String host, int port) {
+        for (int i = 1; i < m_DomainPorts.length; i++) {
+            if (m_DomainPorts[i] == port) {
+                int value = m_DomainTries[i].match(host);
+                if (value != DomainTrie.NO_MATCH) {
+                    return value;
+                }
+                break;
+            }
+        }
+        return m_DomainTries[0].match(host);
+    }
+
+    private int lookupCidr(int ip, int port) {
+        for (int i = 1; i < m_CidrPorts.length; i++) {
+            if (m_CidrPorts[i] == port) {
+                int value = m_CidrSets[i].match(ip);
+                if (value != DomainTrie.NO_MATCH) {
+                    return value;
+                }
+                break;
+            }
+        }
+        return m_CidrSets[0].match(ip);
+    }
+
+    static byte parseAction(String action) {
+        if ("raw".equals(action)) {
+            return ACTION_RAW;
+        } else if ("capture".equals(action)) {
+            return ACTION_CAPTURE;
+        } else if ("connect".equals(action)) {
+            return ACTION_HTTP_CONNECT;
+        }
+        return ACTION_UNDECIDED;
+    }
+
+    private static int[] toIntArray(ArrayList<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Longest prefix match over IPv4 CIDRs, flattened at build time into disjoint address
+     * ranges so a lookup is a single binary search.
+     */
+    static class CidrSet {
+        // Range starts with the sign bit flipped, so they sort as unsigned addresses.
+        private final int[] m_Starts;
+        private final byte[] m_Actions;
+
+        CidrSet(ArrayList<long[]> rules) {
+            // Each rule is {network, prefix length, action}; a later duplicate wins.
+            int count = rules.size();
+            long[] keys = new long[count];
+            for (int j = 0; j < count; j++) {
+                long[] rule = rules.get(j);
+                keys[j] = (rule[0] << 31) | (rule[1] << 25) | j;
+            }
+            Arrays.sort(keys);
+
+            // Sweep the rules in address order, longer prefixes after the shorter ones
+            // enclosing them, keeping the stack of rules covering the current address.
+            long[] bounds = new long[count * 2 + 1];
+            int[] actions = new int[count * 2 + 1];
+            int boundCount = 0;
+            long[] stackStarts = new long[34];
+            long[] stackEnds = new long[34];
+            int[] stackActions = new int[34];
+            int depth = 0;
+            long pos = 0;
+            int current = DomainTrie.NO_MATCH;
+            for (int j = 0; j <= count; j++) {
+                long start = j < count ? keys[j] >>> 31 : 0x100000000L;
+                // Close the covering rules that end before this one starts.
+                while (depth > 0 && stackEnds[depth - 1] <= start) {
+                    long end = stackEnds[--depth];
+                    if (end > pos) {
+                        boundCount = addBound(bounds, actions, boundCount, pos, current);
+                        pos = end;
+                    }
+                    current = depth > 0 ? stackActions[depth - 1] : DomainTrie.NO_MATCH;
+                }
+                if (j == count) {
+                    break;
+                }
+                long[] rule = rules.get((int) (keys[j] & 0x1FFFFFF));
+                long end = start + (1L << (32 - (int) rule[1]));
+                if (depth > 0 && stackEnds[depth - 1] == end && stackStarts[depth - 1] == start) {
+                    // Same network and length: the later rule replaces the earlier one.
+                    stackActions[depth - 1] = (int) rule[2];
+                } else {
+                    if (start > pos) {
+                        boundCount = addBound(bounds, actions, boundCount, pos, current);
+                        pos = start;
+                    }
+                    stackStarts[depth] = start;
+                    stackEnds[depth] = end;
+                    stackActions[depth] = (int) rule[2];
+                    depth++;
+                }
+                current = (int) rule[2];
+            }
+            // A rule reaching the last address leaves nothing to close.
+            if (pos < 0x100000000L) {
+                boundCount = addBound(bounds, actions, boundCount, pos, current);
+            }
+
+            m_Starts = new int[boundCount];
+            m_Actions = new byte[boundCount];
+            for (int i = 0; i < boundCount; i++) {
+                m_Starts[i] = (int) bounds[i] ^ Integer.MIN_VALUE;
+                m_Actions[i] = (byte) actions[i];
+            }
+        }
+
+        private static int addBound(long[] bounds, int[] actions, int count, long start, int action) {
+            if (count > 0 && actions[count - 1] == action) {
+                return count;
+            }
+            bounds[count] = start;
+            actions[count] = action;
+            return count + 1;
+        }
+
+        int match(int ip) {
+            int key = ip ^ Integer.MIN_VALUE;
+            int low = 0;
+            int high = m_Starts.length - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (m_Starts[mid] <= key) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return m_Actions[low];
+        }
+    }
+
+    static int mask(int prefixLength) {
+        return prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+    }
+
+    public static class Builder {
+        private final ArrayList<Integer> m_DomainPorts = new ArrayList<Integer>();
+        private final ArrayList<DomainTrie.Builder> m_DomainBuilders = new ArrayList<DomainTrie.Builder>();
+        private final ArrayList<Integer> m_CidrPorts = new ArrayList<Integer>();
+        private final ArrayList<ArrayList<long[]>> m_CidrRules = new ArrayList<ArrayList<long[]>>();
+        private final ArrayList<Integer> m_Ports = new ArrayList<Integer>();
+        private final ArrayList<Byte> m_PortActions = new ArrayList<Byte>();
+        private byte m_DefaultAction = ACTION_RAW;
+        private int m_RuleCount;
+
+        public Builder() {
+            domainBuilder(ANY_PORT);
+            cidrRules(ANY_PORT);
+        }
+
+        /**
+         * Adds one rule; malformed rules are logged and skipped.
+         */
+        public Builder add(String rule) {
+            String[] parts = rule.trim().toLowerCase(Locale.ENGLISH).split("\\s+");
+            if (parts.length != 2 || parts[0].length() == 0) {
+                if (rule.trim().length() > 0) {
+                    Log.e(Constant.TAG, "Bad route rule: " + rule);
+                }
+                return this;
+            }
+            byte action = parseAction(parts[1]);
+            if (action == ACTION_UNDECIDED) {
+                Log.e(Constant.TAG, "Bad route action: " + rule);
+                return this;
+            }
+
+            String match = parts[0];
+            if ("*".equals(match)) {
+                m_DefaultAction = action;
+                m_RuleCount++;
+                return this;
+            }
+
+            int port = ANY_PORT;
+            int colon = match.lastIndexOf(':');
+            if (colon >= 0) {
+                port = parsePort(match.substring(colon + 1));
+                if (port <= 0) {
+                    Log.e(Constant.TAG, "Bad route port: " + rule);
+                    return this;
+                }
+                match = match.substring(0, colon);
+            }
+
+            if (match.length() == 0) {
+                m_Ports.add(port);
+                m_PortActions.add(action);
+            } else if (isAddress(match)) {
+                int slash = match.indexOf('/');
+                int prefixLength = slash < 0 ? 32 : parsePort(match.substring(slash + 1));
+                String address = slash < 0 ? match : match.substring(0, slash);
+                if (prefixLength < 0 || prefixLength > 32 || address.split("\\.").length != 4) {
+                    Log.e(Constant.TAG, "Bad route CIDR: " + rule);
+                    return this;
+                }
+                int network = CommonMethods.ipStringToInt(address) & mask(prefixLength);
+                cidrRules(port).add(new long[]{network & 0xFFFFFFFFL, prefixLength, action});
+            } else {
+                domainBuilder(port).add(match, action);
+            }
+            m_RuleCount++;
+            return this;
+        }
+
+        public RouteTable build() {
+            return new RouteTable(this);
+        }
+
+        private DomainTrie.Builder domainBuilder(int port) {
+            int index = m_DomainPorts.indexOf(port);
+            if (index < 0) {
+                m_DomainPorts.add(port);
+                m_DomainBuilders.add(new DomainTrie.Builder());
+                index = m_DomainPorts.size() - 1;
+            }
+            return m_DomainBuilders.get(index);
+        }
+
+        private ArrayList<long[]> cidrRules(int port) {
+            int index = m_CidrPorts.indexOf(port);
+            if (index < 0) {
+                m_CidrPorts.add(port);
+                m_CidrRules.add(new ArrayList<long[]>());
+                index = m_CidrPorts.size() - 1;
+            }
+            return m_CidrRules.get(index);
+        }
+
+        private static boolean isAddress(String match) {
+            for (int i = 0; i < match.length(); i++) {
+                char c = match.charAt(i);
+                if ((c < '0' || c > '9') && c != '.' && c != '/') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int parsePort(String value) {
+            if (value.length() == 0 || value.length() > 5) {
+                return -1;
+            }
+            for (int i = 0; i < value.length(); i++) {
+                if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                    return -1;
+                }
+            }
+            int port = Integer.parseInt(value);
+            return port <= 0xFFFF ? port : -1;
+        }
+    }
+}
@@ -10,19 +10,47 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
 
+import com.noharayh.otokit.vpn.dns.DnsView;
 import com.noharayh.otokit.vpn.tcpip.CommonMethods;
 import com.noharayh.otokit.vpn.tunnel.Tunnel;
+import com.noharayh.otokit.vpn.tunnel.httpconnect.HttpConnectPool;
 
 public class TcpProxyServer implements Runnable {
 
+    static final int MAX_EVENT_LOOP_COUNT = 4;
+
     public boolean Stopped;
     public short Port;
 
     Selector m_Selector;
     ServerSocketChannel m_ServerSocketChannel;
     Thread m_ServerThread;
+    EventLoop[] m_EventLoops;
+    // One per event loop, same index.
+    HttpConnectPool[] m_ConnectPools;
+    DnsView[] m_DnsViews;
+    int m_NextEventLoop;
+    volatile DnsProxy m_DnsProxy;
 
     public TcpProxyServer(int port) throws IOException {
+        this(port, defaultEventLoopCount());
+    }
+
+    public TcpProxyServer(int port, int eventLoopCount) throws IOException {
+        Runnable onLoopStopped = new Runnable() {
+            @Override
+            public void run() {
+                TcpProxyServer.this.stop();
+            }
+        };
+        m_EventLoops = new EventLoop[eventLoopCount];
+        m_ConnectPools = new HttpConnectPool[eventLoopCount];
+        m_DnsViews = new DnsView[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            m_EventLoops[i] = new EventLoop("TcpProxyLoopThread-" + i, onLoopStopped);
+            m_ConnectPools[i] = new HttpConnectPool(m_EventLoops[i]);
+            m_DnsViews[i] = new DnsView();
+        }
         m_Selector = Selector.open();
         m_ServerSocketChannel = ServerSocketChannel.open();
         m_ServerSocketChannel.socket().setSoTimeout(1000*30);
@@ -30,10 +58,32 @@ public class TcpProxyServer implements Runnable {
         m_ServerSocketChannel.socket().bind(new InetSocketAddress(port));
         m_ServerSocketChannel.register(m_Selector, SelectionKey.OP_ACCEPT);
         this.Port = (short) m_ServerSocketChannel.socket().getLocalPort();
-        Log.d(Constant.TAG, "AsyncTcpServer listen on " + (this.Port & 0xFFFF));
+        Log.d(Constant.TAG, "AsyncTcpServer listen on " + (this.Port & 0xFFFF) + " with " + eventLoopCount + " event loops");
+    }
+
+    /**
+     * TCP/53 connections are answered by the DNS proxy instead of being tunnelled.
+     */
+    public void setDnsProxy(DnsProxy dnsProxy) {
+        m_DnsProxy = dnsProxy;
+    }
+
+    static int defaultEventLoopCount() {
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_EVENT_LOOP_COUNT));
+    }
+
+    public EventLoop getEventLoop(int index) {
+        return m_EventLoops[index];
+    }
+
+    public int getEventLoopCount() {
+        return m_EventLoops.length;
     }
 
     public synchronized void start() {
+        for (EventLoop eventLoop : m_EventLoops) {
+            eventLoop.start();
+        }
         m_ServerThread = new Thread(this);
         m_ServerThread.setName("TcpProxyServerThread");
         m_ServerThread.start();
@@ -41,6 +91,12 @@ public class TcpProxyServer implements Runnable {
 
     public synchronized void stop() {
         this.Stopped = true;
+        for (EventLoop eventLoop : m_EventLoops) {
+            eventLoop.stop();
+        }
+        for (HttpConnectPool connectPool : m_ConnectPools) {
+            connectPool.close();
+        }
         if (m_Selector != null) {
             try {
                 m_Selector.close();
@@ -72,13 +128,7 @@ public class TcpProxyServer implements Runnable {
                     SelectionKey key = keyIterator.next();
                     if (key.isValid()) {
                         try {
-                            if (key.isReadable()) {
-                                ((Tunnel) key.attachment()).onReadable(key);
-                            } else if (key.isWritable()) {
-                                ((Tunnel) key.attachment()).onWritable(key);
-                            } else if (key.isConnectable()) {
-                                ((Tunnel) key.attachment()).onConnectable();
-                            } else if (key.isAcceptable()) {
+                            if (key.isAcceptable()) {
                                 onAccepted(key);
                             }
                         } catch (Exception e) {
@@ -96,36 +146,61 @@ public class TcpProxyServer implements Runnable {
         }
     }
 
-    static InetSocketAddress getDestAddress(SocketChannel localChannel) {
-        short portKey = (short) localChannel.socket().getPort();
-        NatSession session = NatSessionManager.getSession(portKey);
-        if (session != null) {
-            if (ProxyConfig.Instance.needProxy(session.RemoteIP)) {
-                if (ProxyConfig.IS_DEBUG)
-                    Log.d(Constant.TAG, String.format("%d/%d:[PROXY] %s=>%s:%d", NatSessionManager.getSessionCount(),
-                            Tunnel.SessionCount, session.RemoteHost,
-                            CommonMethods.ipIntToString(session.RemoteIP), session.RemotePort & 0xFFFF));
-                return InetSocketAddress.createUnresolved(session.RemoteHost, session.RemotePort & 0xFFFF);
-            } else {
-                return new InetSocketAddress(localChannel.socket().getInetAddress(), session.RemotePort & 0xFFFF);
-            }
+    static InetSocketAddress getDestAddress(SocketChannel localChannel, NatSession session) {
+        if (ProxyConfig.Instance.needProxy(session.RemoteIP)) {
+            if (ProxyConfig.IS_DEBUG)
+                Log.d(Constant.TAG, String.format("%d/%d:[PROXY] %s=>%s:%d", NatSessionManager.getSessionCount(),
+                        Tunnel.SessionCount.get(), session.RemoteHost,
+                        CommonMethods.ipIntToString(session.RemoteIP), session.RemotePort & 0xFFFF));
+            return InetSocketAddress.createUnresolved(session.RemoteHost, session.RemotePort & 0xFFFF);
+        } else {
+            return new InetSocketAddress(localChannel.socket().getInetAddress(), session.RemotePort & 0xFFFF);
         }
-        return null;
     }
 
     void onAccepted(SelectionKey key) {
+        try {
+            final SocketChannel localChannel = m_ServerSocketChannel.accept();
+            if (localChannel == null) {
+                return;
+            }
+            // Both tunnels of a pair are created on, and stay with, the same loop.
+            final EventLoop eventLoop = m_EventLoops[m_NextEventLoop];
+            final HttpConnectPool connectPool = m_ConnectPools[m_NextEventLoop];
+            final DnsView dnsView = m_DnsViews[m_NextEventLoop];
+            m_NextEventLoop = (m_NextEventLoop + 1) % m_EventLoops.length;
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onAccepted(localChannel, eventLoop, connectPool, dnsView);
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    void onAccepted(SocketChannel localChannel, EventLoop eventLoop, HttpConnectPool connectPool, DnsView dnsView) {
+        Selector selector = eventLoop.getSelector();
         Tunnel localTunnel = null;
         try {
-            SocketChannel localChannel = m_ServerSocketChannel.accept();
-            localTunnel = TunnelFactory.wrap(localChannel, m_Selector);
+            NatSession session = NatSessionManager.getSession((short) localChannel.socket().getPort());
+            DnsProxy dnsProxy = m_DnsProxy;
+            if (session != null && dnsProxy != null && session.RemotePort == 53) {
+                new DnsTcpSession(localChannel, eventLoop, dnsView, dnsProxy, session.RemoteIP).start();
+                return;
+            }
 
-            InetSocketAddress destAddress = getDestAddress(localChannel);
+            localTunnel = TunnelFactory.wrap(localChannel, selector);
+
+            InetSocketAddress destAddress = session != null ? getDestAddress(localChannel, session) : null;
             if (destAddress != null) {
-                Tunnel remoteTunnel = TunnelFactory.createTunnelByConfig(destAddress, m_Selector);
+                byte action = ProxyConfig.Instance.getRouteTable().decide(session);
+                Tunnel remoteTunnel = TunnelFactory.createTunnelByConfig(destAddress, action, selector, connectPool);
                 remoteTunnel.setBrotherTunnel(localTunnel);
                 localTunnel.setBrotherTunnel(remoteTunnel);
 
-                remoteTunnel.connect(destAddress);
+                remoteTunnel.connect(destAddress, eventLoop);
 
             } else {
 //                 LocalVpnService.Instance.writeLog("Error: socket(%s:%d) target host is null.",
@@ -137,6 +212,12 @@ public class TcpProxyServer implements Runnable {
 //            LocalVpnService.Instance.writeLog("Error: remote socket create failed: %s", e.toString());
             if (localTunnel != null) {
                 localTunnel.dispose();
+            } else {
+                try {
+                    localChannel.close();
+                } catch (IOException ex) {
+                    // ignore
+                }
             }
         }
     }
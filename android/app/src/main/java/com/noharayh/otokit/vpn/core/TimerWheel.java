@@ -0,0 +1,133 @@
+package com.noharayh.otokit.vpn.core;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Hashed timer wheel that expires entries incrementally on its own thread.
+ * Entries are bucketed by deadline; when a bucket comes due each entry is asked
+ * for its current deadline again, so callers may push a deadline back (e.g. on
+ * every packet) without rescheduling.
+ */
+public class TimerWheel implements Runnable {
+
+    public static final TimerWheel Shared = new TimerWheel("TimerWheelThread", 1000 * 1000000L, 128);
+
+    private final String m_Name;
+    private final long m_TickNanos;
+    private final ArrayList<Timeout>[] m_Buckets;
+    private final int m_Mask;
+    private final long m_StartNanos;
+    private final ArrayList<Timeout> m_Expiring = new ArrayList<Timeout>();
+    // Guards the buckets and m_CurrentTick, so an entry is never added to a bucket
+    // for a tick the worker has already swept.
+    private final Object m_Lock = new Object();
+    private long m_CurrentTick;
+    private Thread m_WorkerThread;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(String name, long tickNanos, int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("wheelSize must be a power of two: " + wheelSize);
+        }
+        m_Name = name;
+        m_TickNanos = tickNanos;
+        m_Buckets = new ArrayList[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            m_Buckets[i] = new ArrayList<Timeout>();
+        }
+        m_Mask = wheelSize - 1;
+        m_StartNanos = System.nanoTime();
+    }
+
+    public void schedule(Timeout timeout) {
+        ensureStarted();
+        long tick = (timeout.getDeadlineNanos() - m_StartNanos) / m_TickNanos;
+        synchronized (m_Lock) {
+            long nextTick = m_CurrentTick + 1;
+            if (tick < nextTick) {
+                tick = nextTick;
+            }
+            m_Buckets[(int) tick & m_Mask].add(timeout);
+        }
+    }
+
+    private synchronized void ensureStarted() {
+        if (m_WorkerThread == null) {
+            m_WorkerThread = new Thread(this);
+            m_WorkerThread.setName(m_Name);
+            m_WorkerThread.setDaemon(true);
+            m_WorkerThread.start();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            long currentTick;
+            synchronized (m_Lock) {
+                currentTick = m_CurrentTick;
+            }
+            while (true) {
+                long nextTickNanos = m_StartNanos + (currentTick + 1) * m_TickNanos;
+                long waitNanos = nextTickNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+                    continue;
+                }
+                long now = System.nanoTime();
+                long nowTick = (now - m_StartNanos) / m_TickNanos;
+                while (currentTick < nowTick) {
+                    currentTick++;
+                    expireBucket(currentTick, now);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d(Constant.TAG, m_Name + " interrupted.");
+        } finally {
+            synchronized (this) {
+                m_WorkerThread = null;
+            }
+        }
+    }
+
+    private void expireBucket(long tick, long now) {
+        synchronized (m_Lock) {
+            m_CurrentTick = tick;
+            ArrayList<Timeout> bucket = m_Buckets[(int) tick & m_Mask];
+            if (bucket.isEmpty()) {
+                return;
+            }
+            m_Expiring.addAll(bucket);
+            bucket.clear();
+        }
+        for (int i = 0; i < m_Expiring.size(); i++) {
+            Timeout timeout = m_Expiring.get(i);
+            try {
+                if (timeout.getDeadlineNanos() - now > 0) {
+                    schedule(timeout);
+                } else if (timeout.onTimeout(now)) {
+                    schedule(timeout);
+                }
+            } catch (Exception e) {
+                Log.e(Constant.TAG, "Exception in " + m_Name, e);
+            }
+        }
+        m_Expiring.clear();
+    }
+
+    public interface Timeout {
+        /**
+         * @return the {@link System#nanoTime()} at which the entry expires.
+         */
+        long getDeadlineNanos();
+
+        /**
+         * Called on the wheel thread once the deadline has passed.
+         *
+         * @return true to keep the entry scheduled (its deadline moved meanwhile).
+         */
+        boolean onTimeout(long now);
+    }
+}
@@ -0,0 +1,299 @@
+package com.noharayh.otokit.vpn.core;
+
+import android.util.Log;
+
+import com.noharayh.otokit.vpn.tcpip.CommonMethods;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * Extracts SNI and ALPN from a TLS ClientHello as the client's segments pass through
+ * the TUN. A hello inside one segment is parsed in place; one spread over several
+ * segments or records is reassembled in a bounded buffer borrowed from a small pool.
+ * The reassembly state lives on the {@link NatSession}, the parser itself is stateless
+ * and only used from the VPN thread.
+ */
+public class TlsClientHelloParser {
+
+    public static final byte STATE_IDLE = 0;
+    public static final byte STATE_PARTIAL = 1;
+    public static final byte STATE_DONE = 2;
+
+    static final int MAX_HELLO_LENGTH = 16 * 1024;
+    static final int MAX_POOLED_BUFFERS = 8;
+
+    private static final int NEED_MORE = 0;
+    private static final int COMPLETE = 1;
+    private static final int FAILED = 2;
+
+    private static final String ALPN_H2 = "h2";
+    private static final String ALPN_HTTP11 = "http/1.1";
+    private static final String ALPN_H3 = "h3";
+
+    private static final ArrayDeque<byte[]> BufferPool = new ArrayDeque<byte[]>();
+
+    /**
+     * Feeds one segment of client data. Sets {@link NatSession#RemoteHost} and
+     * {@link NatSession#Alpn} once the hello is complete; a session that does not
+     * start with a handshake record is marked done right away.
+     */
+    public static void feed(NatSession session, int seq, byte[] data, int offset, int length) {
+        if (session.HelloState == STATE_DONE) {
+            return;
+        }
+
+        int result;
+        if (session.HelloState == STATE_IDLE) {
+            session.HelloNextSeq = seq + length;
+            result = parse(session, data, offset, length, false);
+            if (result == NEED_MORE) {
+                session.HelloBuffer = acquireBuffer();
+                session.HelloLength = 0;
+                result = append(session, data, offset, length);
+            }
+        } else {
+            // Skip what was already seen; give up on a gap, the packet is out of order.
+            int skip = session.HelloNextSeq - seq;
+            if (skip >= length) {
+                return;
+            }
+            if (skip < 0) {
+                result = FAILED;
+            } else {
+                session.HelloNextSeq = seq + length;
+                result = append(session, data, offset + skip, length - skip);
+            }
+        }
+
+        if (result == NEED_MORE) {
+            session.HelloState = STATE_PARTIAL;
+        } else {
+            if (result == FAILED && ProxyConfig.IS_DEBUG) {
+                Log.d(Constant.TAG, "Unusable TLS ClientHello from port " + (session.PortKey & 0xFFFF));
+            }
+            finish(session);
+        }
+    }
+
+    /**
+     * Returns the buffer of a session that is being dropped to the pool. Call it on the
+     * VPN thread, which owns the reassembly state.
+     */
+    public static void release(NatSession session) {
+        finish(session);
+    }
+
+    private static void finish(NatSession session) {
+        session.HelloState = STATE_DONE;
+        if (session.HelloBuffer != null) {
+            releaseBuffer(session.HelloBuffer);
+            session.HelloBuffer = null;
+            session.HelloLength = 0;
+        }
+    }
+
+    private static int append(NatSession session, byte[] data, int offset, int length) {
+        if (session.HelloLength + length > MAX_HELLO_LENGTH) {
+            return FAILED;
+        }
+        System.arraycopy(data, offset, session.HelloBuffer, session.HelloLength, length);
+        session.HelloLength += length;
+        return parse(session, session.HelloBuffer, 0, session.HelloLength, true);
+    }
+
+    /**
+     * @param owned whether {@code buffer} may be rewritten, which joining a hello
+     *              fragmented over several records requires.
+     */
+    private static int parse(NatSession session, byte[] buffer, int offset, int length, boolean owned) {
+        if (length < 5) {
+            return NEED_MORE;
+        }
+        if (buffer[offset] != 0x16 || buffer[offset + 1] != 0x03) {
+            return FAILED;
+        }
+        int recordLength = CommonMethods.readShort(buffer, offset + 3) & 0xFFFF;
+        if (recordLength < 4 || recordLength > MAX_HELLO_LENGTH) {
+            return FAILED;
+        }
+        if (length < 9) {
+            return NEED_MORE;
+        }
+        if (buffer[offset + 5] != 0x01) {
+            return FAILED;
+        }
+        int helloLength = CommonMethods.readInt(buffer, offset + 5) & 0xFFFFFF;
+        if (helloLength + 4 > MAX_HELLO_LENGTH) {
+            return FAILED;
+        }
+
+        int end = offset + length;
+        if (helloLength + 4 <= recordLength) {
+            if (offset + 9 + helloLength > end) {
+                return NEED_MORE;
+            }
+            return parseHello(session, buffer, offset + 9, offset + 9 + helloLength);
+        }
+
+        // The hello continues in further handshake records, wait for all of them.
+        int needed = helloLength + 4 - recordLength;
+        int pos = offset + 5 + recordLength;
+        while (needed > 0) {
+            if (pos + 5 > end) {
+                return NEED_MORE;
+            }
+            if (buffer[pos] != 0x16) {
+                return FAILED;
+            }
+            int fragmentLength = CommonMethods.readShort(buffer, pos + 3) & 0xFFFF;
+            if (fragmentLength == 0) {
+                return FAILED;
+            }
+            if (pos + 5 + Math.min(fragmentLength, needed) > end) {
+                return NEED_MORE;
+            }
+            needed -= fragmentLength;
+            pos += 5 + fragmentLength;
+        }
+        if (!owned) {
+            return NEED_MORE;
+        }
+
+        // Join the fragments behind the first record by dropping the record headers.
+        int write = offset + 5 + recordLength;
+        int read = write;
+        int remaining = helloLength + 4 - recordLength;
+        while (remaining > 0) {
+            int fragmentLength = Math.min(CommonMethods.readShort(buffer, read + 3) & 0xFFFF, remaining);
+            System.arraycopy(buffer, read + 5, buffer, write, fragmentLength);
+            read += 5 + fragmentLength;
+            write += fragmentLength;
+            remaining -= fragmentLength;
+        }
+        return parseHello(session, buffer, offset + 9, offset + 9 + helloLength);
+    }
+
+    private static int parseHello(NatSession session, byte[] buffer, int pos, int end) {
+        // Version and random.
+        pos += 34;
+        if (pos + 1 > end) {
+            return FAILED;
+        }
+        pos += 1 + (buffer[pos] & 0xFF);
+        if (pos + 2 > end) {
+            return FAILED;
+        }
+        pos += 2 + (CommonMethods.readShort(buffer, pos) & 0xFFFF);
+        if (pos + 1 > end) {
+            return FAILED;
+        }
+        pos += 1 + (buffer[pos] & 0xFF);
+        if (pos == end) {
+            // No extensions at all.
+            return COMPLETE;
+        }
+        if (pos + 2 > end) {
+            return FAILED;
+        }
+        int extensionsEnd = pos + 2 + (CommonMethods.readShort(buffer, pos) & 0xFFFF);
+        if (extensionsEnd > end) {
+            return FAILED;
+        }
+        pos += 2;
+
+        while (pos + 4 <= extensionsEnd) {
+            int type = CommonMethods.readShort(buffer, pos) & 0xFFFF;
+            int extensionEnd = pos + 4 + (CommonMethods.readShort(buffer, pos + 2) & 0xFFFF);
+            if (extensionEnd > extensionsEnd) {
+                return FAILED;
+            }
+            pos += 4;
+            if (type == 0) {
+                parseServerName(session, buffer, pos, extensionEnd);
+            } else if (type == 16) {
+                parseAlpn(session, buffer, pos, extensionEnd);
+            }
+            pos = extensionEnd;
+        }
+        return COMPLETE;
+    }
+
+    private static void parseServerName(NatSession session, byte[] buffer, int pos, int end) {
+        if (pos + 2 > end) {
+            return;
+        }
+        int listEnd = Math.min(end, pos + 2 + (CommonMethods.readShort(buffer, pos) & 0xFFFF));
+        pos += 2;
+        while (pos + 3 <= listEnd) {
+            int nameType = buffer[pos] & 0xFF;
+            int nameLength = CommonMethods.readShort(buffer, pos + 1) & 0xFFFF;
+            pos += 3;
+            if (pos + nameLength > listEnd) {
+                return;
+            }
+            if (nameType == 0 && nameLength > 0 && isHostName(buffer, pos, nameLength)) {
+                session.RemoteHost = new String(buffer, pos, nameLength, StandardCharsets.US_ASCII);
+                if (ProxyConfig.IS_DEBUG)
+                    Log.d(Constant.TAG, "SNI: " + session.RemoteHost);
+                return;
+            }
+            pos += nameLength;
+        }
+    }
+
+    private static void parseAlpn(NatSession session, byte[] buffer, int pos, int end) {
+        if (pos + 3 > end) {
+            return;
+        }
+        int listEnd = Math.min(end, pos + 2 + (CommonMethods.readShort(buffer, pos) & 0xFFFF));
+        int protocolLength = buffer[pos + 2] & 0xFF;
+        pos += 3;
+        if (protocolLength == 0 || pos + protocolLength > listEnd) {
+            return;
+        }
+        // The client's most preferred protocol; the common ones need no new string.
+        if (matches(buffer, pos, protocolLength, ALPN_H2)) {
+            session.Alpn = ALPN_H2;
+        } else if (matches(buffer, pos, protocolLength, ALPN_HTTP11)) {
+            session.Alpn = ALPN_HTTP11;
+        } else if (matches(buffer, pos, protocolLength, ALPN_H3)) {
+            session.Alpn = ALPN_H3;
+        } else {
+            session.Alpn = new String(buffer, pos, protocolLength, StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static boolean matches(byte[] buffer, int pos, int length, String value) {
+        if (length != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer[pos + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isHostName(byte[] buffer, int pos, int length) {
+        for (int i = 0; i < length; i++) {
+            byte b = buffer[pos + i];
+            if (b <= ' ' || b == 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static synchronized byte[] acquireBuffer() {
+        byte[] buffer = BufferPool.poll();
+        return buffer != null ? buffer : new byte[MAX_HELLO_LENGTH];
+    }
+
+    private static synchronized void releaseBuffer(byte[] buffer) {
+        if (BufferPool.size() < MAX_POOLED_BUFFERS) {
+            BufferPool.push(buffer);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.noharayh.otokit.vpn.core;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class TunInterface {
+
+    static final int POLL_TIMEOUT_MS = 1000;
+    static final int MAX_BATCH_SIZE = 256;
+
+    private final FileInputStream m_InputStream;
+    private final FileOutputStream m_OutputStream;
+    private final FileDescriptor m_WakeReadFd;
+    private final FileDescriptor m_WakeWriteFd;
+    private final StructPollfd[] m_PollFds;
+    private final byte[] m_WakeBuffer = new byte[64];
+    private volatile boolean m_Closed;
+
+    public TunInterface(FileDescriptor fd) throws IOException {
+        m_InputStream = new FileInputStream(fd);
+        m_OutputStream = new FileOutputStream(fd);
+        try {
+            FileDescriptor[] pipe = Os.pipe();
+            m_WakeReadFd = pipe[0];
+            m_WakeWriteFd = pipe[1];
+        } catch (ErrnoException e) {
+            throw new IOException("Create wakeup pipe failed.", e);
+        }
+        m_PollFds = new StructPollfd[]{newPollfd(fd), newPollfd(m_WakeReadFd)};
+    }
+
+    private static StructPollfd newPollfd(FileDescriptor fd) {
+        StructPollfd pollfd = new StructPollfd();
+        pollfd.fd = fd;
+        pollfd.events = (short) OsConstants.POLLIN;
+        return pollfd;
+    }
+
+    /**
+     * Waits until the tun fd becomes readable (or {@link #wakeup()} is called),
+     * then drains every ready packet into {@code buffer} and hands each one to
+     * {@code handler} before polling again.
+     *
+     * @return number of packets dispatched, or -1 once the interface is closed.
+     */
+    public int readBatch(byte[] buffer, PacketHandler handler) throws IOException {
+        if (m_Closed) {
+            return -1;
+        }
+
+        StructPollfd tunPollfd = m_PollFds[0];
+        StructPollfd wakePollfd = m_PollFds[1];
+        tunPollfd.revents = 0;
+        wakePollfd.revents = 0;
+        try {
+            if (Os.poll(m_PollFds, POLL_TIMEOUT_MS) == 0) {
+                return 0;
+            }
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.EINTR) {
+                return 0;
+            }
+            throw new IOException("Poll tun interface failed.", e);
+        }
+
+        if ((wakePollfd.revents & OsConstants.POLLIN) != 0) {
+            drainWakeup();
+        }
+        if ((tunPollfd.revents & (OsConstants.POLLERR | OsConstants.POLLNVAL)) != 0) {
+            return -1;
+        }
+        if ((tunPollfd.revents & OsConstants.POLLIN) == 0) {
+            return m_Closed ? -1 : 0;
+        }
+
+        return readReady(m_InputStream, buffer, handler);
+    }
+
+    /**
+     * Reads packets until the stream has none ready or {@link #MAX_BATCH_SIZE} are read.
+     *
+     * @return number of packets dispatched, or -1 at end of stream.
+     */
+    static int readReady(InputStream in, byte[] buffer, PacketHandler handler) throws IOException {
+        int count = 0;
+        while (count < MAX_BATCH_SIZE) {
+            int size = in.read(buffer);
+            if (size < 0) {
+                return -1;
+            } else if (size == 0) {
+                break;
+            }
+            count++;
+            try {
+                handler.onPacketReceived(buffer, size);
+            } catch (IOException ex) {
+                Log.e(Constant.TAG, "IOException when processing IP packet", ex);
+            }
+        }
+        return count;
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        m_OutputStream.write(data, offset, length);
+    }
+
+    public void wakeup() {
+        if (m_Closed) {
+            return;
+        }
+        try {
+            Os.write(m_WakeWriteFd, m_WakeBuffer, 0, 1);
+        } catch (Exception e) {
+            // ignore
+        }
+    }
+
+    private void drainWakeup() {
+        try {
+            Os.read(m_WakeReadFd, m_WakeBuffer, 0, m_WakeBuffer.length);
+        } catch (Exception e) {
+            // ignore
+        }
+    }
+
+    public void close() {
+        if (m_Closed) {
+            return;
+        }
+        m_Closed = true;
+
+        try {
+            m_InputStream.close();
+        } catch (Exception e) {
+            // ignore
+        }
+        try {
+            m_OutputStream.close();
+        } catch (Exception e) {
+            // ignore
+        }
+        try {
+            Os.close(m_WakeReadFd);
+            Os.close(m_WakeWriteFd);
+        } catch (Exception e) {
+            // ignore
+        }
+    }
+
+    public interface PacketHandler {
+        void onPacketReceived(byte[] packet, int size) throws IOException;
+    }
+}
@@ -0,0 +1,91 @@
+package com.noharayh.otokit.vpn.core;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Dedicated egress thread for the tun interface. Producers queue packets into
+ * their own {@link PacketRing} and call {@link #signal()}, so the ingress thread
+ * never blocks on a slow tun write and only this thread touches the fd.
+ */
+public class TunWriter implements Runnable {
+
+    private final TunInterface m_TunInterface;
+    private final PacketRing[] m_Rings;
+    private Thread m_WriterThread;
+    private volatile boolean m_Parked;
+    private volatile boolean m_Stopped;
+
+    public TunWriter(TunInterface tunInterface, PacketRing... rings) {
+        m_TunInterface = tunInterface;
+        m_Rings = rings;
+    }
+
+    public synchronized void start() {
+        m_WriterThread = new Thread(this);
+        m_WriterThread.setName("TunWriterThread");
+        m_WriterThread.start();
+    }
+
+    public synchronized void stop() {
+        m_Stopped = true;
+        if (m_WriterThread != null) {
+            LockSupport.unpark(m_WriterThread);
+            m_WriterThread = null;
+        }
+    }
+
+    public void signal() {
+        if (m_Parked) {
+            Thread writerThread = m_WriterThread;
+            if (writerThread != null) {
+                LockSupport.unpark(writerThread);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!m_Stopped) {
+            if (!drain()) {
+                m_Parked = true;
+                if (isIdle() && !m_Stopped) {
+                    LockSupport.park(this);
+                }
+                m_Parked = false;
+            }
+        }
+        Log.d(Constant.TAG, "TunWriter Thread Exited.");
+    }
+
+    private boolean drain() {
+        boolean wrote = false;
+        for (PacketRing ring : m_Rings) {
+            byte[] packet;
+            while ((packet = ring.peek()) != null) {
+                try {
+                    m_TunInterface.write(packet, 0, ring.peekLength());
+                } catch (IOException e) {
+                    if (m_Stopped) {
+                        return false;
+                    }
+                    Log.e(Constant.TAG, "IOException when writing IP packet", e);
+                }
+                ring.advance();
+                wrote = true;
+            }
+        }
+        return wrote;
+    }
+
+    private boolean isIdle() {
+        for (PacketRing ring : m_Rings) {
+            if (!ring.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,408 @@
+package com.noharayh.otokit.vpn.dns;
+
+import com.noharayh.otokit.vpn.tcpip.CommonMethods;
+
+/**
+ * Flyweight view over a DNS message inside a packet array. Nothing is copied:
+ * the first question is located on {@link #wrap}, and records
+ * are walked in place with {@link #resetRecords()} / {@link #nextRecord()}.
+ * A view is meant to be reused for every packet on one thread.
+ */
+public class DnsView {
+    public static final int HEADER_LENGTH = 12;
+    public static final int MAX_UDP_LENGTH = 512;
+    public static final int MAX_MESSAGE_LENGTH = 65535;
+    public static final int MAX_RECORD_COUNT = 256;
+    public static final int TYPE_OPT = 41;
+    // What a message says about EDNS0, see getEdnsState().
+    public static final byte EDNS_NONE = 0;
+    public static final byte EDNS_PRESENT = 1;
+    public static final byte EDNS_DO = 2;
+
+    public static final int SECTION_ANSWER = 0;
+    public static final int SECTION_AUTHORITY = 1;
+    public static final int SECTION_ADDITIONAL = 2;
+
+    static final short offset_ID = 0;
+    static final short offset_Flags = 2;
+    static final short offset_QuestionCount = 4;
+    static final short offset_AnswerCount = 6;
+    static final short offset_AuthorityCount = 8;
+    static final short offset_AdditionalCount = 10;
+
+    private byte[] m_Data;
+    private int m_Offset;
+    private int m_Length;
+    private int m_NameLength;
+    private int m_QuestionsEnd;
+
+    private int m_RecordIndex;
+    private int m_RecordCount;
+    private int m_NextRecord;
+    private int m_RecordFixed;
+    private int m_RecordSection;
+    private boolean m_Malformed;
+
+    /**
+     * Points the view at the message of {@code length} bytes at {@code offset}.
+     *
+     * @return false if the message is too short, too long, has no question or
+     * its question section runs past the end.
+     */
+    public boolean wrap(byte[] data, int offset, int length) {
+        m_Data = data;
+        m_Offset = offset;
+        m_Length = length;
+        if (length < HEADER_LENGTH || length > MAX_MESSAGE_LENGTH) {
+            return false;
+        }
+
+        int questionCount = getQuestionCount() & 0xFFFF;
+        if (questionCount < 1 || questionCount > 2
+                || (getAnswerCount() & 0xFFFF) > MAX_RECORD_COUNT
+                || (getAuthorityCount() & 0xFFFF) > MAX_RECORD_COUNT
+                || (getAdditionalCount() & 0xFFFF) > MAX_RECORD_COUNT) {
+            return false;
+        }
+
+        // The first question name can not be compressed, nothing precedes it.
+        int end = offset + length;
+        int pos = offset + HEADER_LENGTH;
+        while (true) {
+            if (pos >= end) {
+                return false;
+            }
+            int len = data[pos] & 0xFF;
+            if (len == 0) {
+                pos++;
+                break;
+            }
+            if ((len & 0xC0) != 0) {
+                return false;
+            }
+            pos += len + 1;
+        }
+        m_NameLength = pos - offset - HEADER_LENGTH;
+        pos += 4;
+
+        for (int i = 1; i < questionCount && pos > 0; i++) {
+            pos = skipName(pos);
+            if (pos > 0) {
+                pos += 4;
+            }
+        }
+        if (pos < 0 || pos > end) {
+            return false;
+        }
+        m_QuestionsEnd = pos;
+        resetRecords();
+        return true;
+    }
+
+    private int skipName(int pos) {
+        int end = m_Offset + m_Length;
+        while (pos < end) {
+            int len = m_Data[pos] & 0xFF;
+            if (len == 0) {
+                return pos + 1;
+            }
+            if ((len & 0xC0) == 0xC0) {
+                return pos + 2;
+            }
+            if ((len & 0xC0) != 0) {
+                return -1;
+            }
+            pos += len + 1;
+        }
+        return -1;
+    }
+
+    public byte[] getData() {
+        return m_Data;
+    }
+
+    public int getOffset() {
+        return m_Offset;
+    }
+
+    public int getLength() {
+        return m_Length;
+    }
+
+    public void setLength(int length) {
+        m_Length = length;
+    }
+
+    public short getID() {
+        return CommonMethods.readShort(m_Data, m_Offset + offset_ID);
+    }
+
+    public void setID(short value) {
+        CommonMethods.writeShort(m_Data, m_Offset + offset_ID, value);
+    }
+
+    public short getFlags() {
+        return CommonMethods.readShort(m_Data, m_Offset + offset_Flags);
+    }
+
+    public void setFlags(short value) {
+        CommonMethods.writeShort(m_Data, m_Offset + offset_Flags, value);
+    }
+
+    public boolean isTruncated() {
+        return (getFlags() & 0x0200) != 0;
+    }
+
+    public short getQuestionCount() {
+        return CommonMethods.readShort(m_Data, m_Offset + offset_QuestionCount);
+    }
+
+    public void setQuestionCount(short value) {
+        CommonMethods.writeShort(m_Data, m_Offset + offset_QuestionCount, value);
+    }
+
+    public short getAnswerCount() {
+        return CommonMethods.readShort(m_Data, m_Offset + offset_AnswerCount);
+    }
+
+    public void setAnswerCount(short value) {
+        CommonMethods.writeShort(m_Data, m_Offset + offset_AnswerCount, value);
+    }
+
+    public short getAuthorityCount() {
+        return CommonMethods.readShort(m_Data, m_Offset + offset_AuthorityCount);
+    }
+
+    public void setAuthorityCount(short value) {
+        CommonMethods.writeShort(m_Data, m_Offset + offset_AuthorityCount, value);
+    }
+
+    public short getAdditionalCount() {
+        return CommonMethods.readShort(m_Data, m_Offset + offset_AdditionalCount);
+    }
+
+    public void setAdditionalCount(short value) {
+        CommonMethods.writeShort(m_Data, m_Offset + offset_AdditionalCount, value);
+    }
+
+    /**
+     * @return array offset of the first question name, in wire format.
+     */
+    public int getQuestionNameOffset() {
+        return m_Offset + HEADER_LENGTH;
+    }
+
+    /**
+     * @return wire length of the first question name, including the root label.
+     */
+    public int getQuestionNameLength() {
+        return m_NameLength;
+    }
+
+    public short getQuestionType() {
+        return CommonMethods.readShort(m_Data, m_Offset + HEADER_LENGTH + m_NameLength);
+    }
+
+    public short getQuestionClass() {
+        return CommonMethods.readShort(m_Data, m_Offset + HEADER_LENGTH + m_NameLength + 2);
+    }
+
+    /**
+     * @return array offset just behind the first question.
+     */
+    public int getQuestionEnd() {
+        return m_Offset + HEADER_LENGTH + m_NameLength + 4;
+    }
+
+    /**
+     * Compares the first question name with a wire format name, ignoring ASCII case.
+     */
+    public boolean questionNameEquals(byte[] name, int offset, int length) {
+        if (length != m_NameLength) {
+            return false;
+        }
+        int pos = m_Offset + HEADER_LENGTH;
+        for (int i = 0; i < length; i++) {
+            if (toLower(m_Data[pos + i]) != toLower(name[offset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? b + 32 : b;
+    }
+
+    /**
+     * Materializes the first question name as a dotted string, for logging and
+     * the code paths still keyed by String.
+     */
+    public String getQuestionDomain() {
+        StringBuilder sb = new StringBuilder(m_NameLength);
+        int pos = m_Offset + HEADER_LENGTH;
+        int len;
+        while ((len = m_Data[pos] & 0xFF) > 0) {
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            for (int i = 1; i <= len; i++) {
+                sb.append((char) (m_Data[pos + i] & 0xFF));
+            }
+            pos += len + 1;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Caps the UDP payload size advertised by the EDNS0 OPT record, if any.
+     *
+     * @return the payload size the sender can receive over UDP after capping,
+     * {@link #MAX_UDP_LENGTH} without EDNS0.
+     */
+    public int limitUdpPayloadSize(int limit) {
+        int size = MAX_UDP_LENGTH;
+        resetRecords();
+        while (nextRecord()) {
+            if (getRecordType() == TYPE_OPT) {
+                size = Math.max(MAX_UDP_LENGTH, getRecordClass() & 0xFFFF);
+                if (size > limit) {
+                    size = Math.max(MAX_UDP_LENGTH, limit);
+                    setRecordClass((short) size);
+                }
+                break;
+            }
+        }
+        resetRecords();
+        return size;
+    }
+
+    /**
+     * @return {@link #EDNS_NONE} without an OPT record, {@link #EDNS_DO} if its DNSSEC OK
+     * bit is set, {@link #EDNS_PRESENT} otherwise.
+     */
+    public byte getEdnsState() {
+        byte state = EDNS_NONE;
+        resetRecords();
+        while (nextRecord()) {
+            if (getRecordType() == TYPE_OPT) {
+                state = toEdnsState(getRecordTtl());
+                break;
+            }
+        }
+        resetRecords();
+        return state;
+    }
+
+    /**
+     * @param optTtl the TTL field of an OPT record, which holds the EDNS flags.
+     */
+    public static byte toEdnsState(int optTtl) {
+        return (optTtl & 0x8000) != 0 ? EDNS_DO : EDNS_PRESENT;
+    }
+
+    /**
+     * Cuts the message down to its header and first question with the TC bit set,
+     * telling the client to retry over TCP.
+     */
+    public void truncate() {
+        setFlags((short) (getFlags() | 0x0200));
+        setQuestionCount((short) 1);
+        setAnswerCount((short) 0);
+        setAuthorityCount((short) 0);
+        setAdditionalCount((short) 0);
+        m_Length = getQuestionEnd() - m_Offset;
+        m_QuestionsEnd = getQuestionEnd();
+        resetRecords();
+    }
+
+    /**
+     * Moves the record cursor in front of the first answer record.
+     */
+    public void resetRecords() {
+        m_RecordIndex = -1;
+        m_RecordCount = (getAnswerCount() & 0xFFFF) + (getAuthorityCount() & 0xFFFF) + (getAdditionalCount() & 0xFFFF);
+        m_NextRecord = m_QuestionsEnd;
+        m_Malformed = false;
+    }
+
+    /**
+     * Advances the record cursor across the answer, authority and additional sections.
+     *
+     * @return false after the last record, or if the record runs past the message
+     * (see {@link #isMalformed()}).
+     */
+    public boolean nextRecord() {
+        if (m_Malformed || m_RecordIndex + 1 >= m_RecordCount) {
+            return false;
+        }
+
+        int fixed = skipName(m_NextRecord);
+        int end = m_Offset + m_Length;
+        if (fixed < 0 || fixed + 10 > end) {
+            m_Malformed = true;
+            return false;
+        }
+        int next = fixed + 10 + (CommonMethods.readShort(m_Data, fixed + 8) & 0xFFFF);
+        if (next > end) {
+            m_Malformed = true;
+            return false;
+        }
+
+        m_RecordIndex++;
+        m_RecordFixed = fixed;
+        m_NextRecord = next;
+
+        int answerCount = getAnswerCount() & 0xFFFF;
+        if (m_RecordIndex < answerCount) {
+            m_RecordSection = SECTION_ANSWER;
+        } else if (m_RecordIndex < answerCount + (getAuthorityCount() & 0xFFFF)) {
+            m_RecordSection = SECTION_AUTHORITY;
+        } else {
+            m_RecordSection = SECTION_ADDITIONAL;
+        }
+        return true;
+    }
+
+    public boolean isMalformed() {
+        return m_Malformed;
+    }
+
+    public int getRecordSection() {
+        return m_RecordSection;
+    }
+
+    public short getRecordType() {
+        return CommonMethods.readShort(m_Data, m_RecordFixed);
+    }
+
+    public short getRecordClass() {
+        return CommonMethods.readShort(m_Data, m_RecordFixed + 2);
+    }
+
+    public void setRecordClass(short value) {
+        CommonMethods.writeShort(m_Data, m_RecordFixed + 2, value);
+    }
+
+    public int getRecordTtl() {
+        return CommonMethods.readInt(m_Data, m_RecordFixed + 4);
+    }
+
+    /**
+     * @return array offset of the TTL field of the current record.
+     */
+    public int getRecordTtlOffset() {
+        return m_RecordFixed + 4;
+    }
+
+    public int getRecordDataLength() {
+        return CommonMethods.readShort(m_Data, m_RecordFixed + 8) & 0xFFFF;
+    }
+
+    /**
+     * @return array offset of the rdata of the current record.
+     */
+    public int getRecordDataOffset() {
+        return m_RecordFixed + 10;
+    }
+}
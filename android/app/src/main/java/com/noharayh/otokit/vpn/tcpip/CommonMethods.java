@@ -96,18 +96,43 @@ public class CommonMethods {
         return (short) ~sum;
     }
 
+    // RFC 1624 incremental update for one rewritten 16-bit word: HC' = ~(~HC + ~m + m')
+    public static short adjustChecksum16(short crc, short oldValue, short newValue) {
+        int sum = (~crc & 0xFFFF) + (~oldValue & 0xFFFF) + (newValue & 0xFFFF);
+        sum = (sum & 0xFFFF) + (sum >> 16);
+        sum = (sum & 0xFFFF) + (sum >> 16);
+        return (short) ~sum;
+    }
+
+    public static short adjustChecksum32(short crc, int oldValue, int newValue) {
+        crc = adjustChecksum16(crc, (short) (oldValue >>> 16), (short) (newValue >>> 16));
+        return adjustChecksum16(crc, (short) oldValue, (short) newValue);
+    }
+
+    // Walks the buffer 8 bytes at a time and keeps the high and low byte of every 16-bit
+    // word in separate accumulators, so the loop has no per-word shifting or masking.
+    // (high << 8) + low is exactly the sum of the big-endian 16-bit words.
     public static long getsum(byte[] buf, int offset, int len) {
-        long sum = 0; /* assume 32 bit long, 16 bit short */
+        long high = 0;
+        long low = 0;
+        int end = offset + (len & ~7);
+        for (int i = offset; i < end; i += 8) {
+            high += (buf[i] & 0xFF) + (buf[i + 2] & 0xFF) + (buf[i + 4] & 0xFF) + (buf[i + 6] & 0xFF);
+            low += (buf[i + 1] & 0xFF) + (buf[i + 3] & 0xFF) + (buf[i + 5] & 0xFF) + (buf[i + 7] & 0xFF);
+        }
+        offset = end;
+        len &= 7;
         while (len > 1) {
-            sum += readShort(buf, offset) & 0xFFFF;
+            high += buf[offset] & 0xFF;
+            low += buf[offset + 1] & 0xFF;
             offset += 2;
             len -= 2;
         }
-
         if (len > 0) /* take care of left over byte */ {
-            sum += (buf[offset] & 0xFF) << 8;
+            high += buf[offset] & 0xFF;
         }
-        return sum;
+
+        return (high << 8) + low;
     }
 
     // ����IP���У���
@@ -113,6 +113,15 @@ public class IPHeader {
         CommonMethods.writeInt(m_Data, m_Offset + offset_src_ip, value);
     }
 
+    /**
+     * Rewrites the source address and patches the header checksum incrementally.
+     */
+    public void updateSourceIP(int value) {
+        int oldValue = getSourceIP();
+        setSourceIP(value);
+        setCrc(CommonMethods.adjustChecksum32(getCrc(), oldValue, value));
+    }
+
     public int getDestinationIP() {
         return CommonMethods.readInt(m_Data, m_Offset + offset_dest_ip);
     }
@@ -121,6 +130,15 @@ public class IPHeader {
         CommonMethods.writeInt(m_Data, m_Offset + offset_dest_ip, value);
     }
 
+    /**
+     * Rewrites the destination address and patches the header checksum incrementally.
+     */
+    public void updateDestinationIP(int value) {
+        int oldValue = getDestinationIP();
+        setDestinationIP(value);
+        setCrc(CommonMethods.adjustChecksum32(getCrc(), oldValue, value));
+    }
+
     @Override
     public String toString() {
         return String.format(Locale.ENGLISH, "%s->%s Pro=%s,HLen=%d", CommonMethods.ipIntToString(getSourceIP()), CommonMethods.ipIntToString(getDestinationIP()), getProtocol(), getHeaderLength());
@@ -50,6 +50,25 @@ public class TCPHeader {
         CommonMethods.writeShort(m_Data, m_Offset + offset_dest_port, value);
     }
 
+    public void updateSourcePort(short value) {
+        short oldValue = getSourcePort();
+        setSourcePort(value);
+        setCrc(CommonMethods.adjustChecksum16(getCrc(), oldValue, value));
+    }
+
+    public void updateDestinationPort(short value) {
+        short oldValue = getDestinationPort();
+        setDestinationPort(value);
+        setCrc(CommonMethods.adjustChecksum16(getCrc(), oldValue, value));
+    }
+
+    /**
+     * Patches the checksum after an address in the IP pseudo header changed.
+     */
+    public void updateAddressChecksum(int oldIP, int newIP) {
+        setCrc(CommonMethods.adjustChecksum32(getCrc(), oldIP, newIP));
+    }
+
     public byte getFlags() {
         return m_Data[m_Offset + offset_flag];
     }
@@ -48,6 +48,39 @@ public class UDPHeader {
         CommonMethods.writeShort(m_Data, m_Offset + offset_crc, value);
     }
 
+    public void updateSourcePort(short value) {
+        short oldValue = getSourcePort();
+        setSourcePort(value);
+        adjustCrc(oldValue, value);
+    }
+
+    public void updateDestinationPort(short value) {
+        short oldValue = getDestinationPort();
+        setDestinationPort(value);
+        adjustCrc(oldValue, value);
+    }
+
+    /**
+     * Patches the checksum after an address in the IP pseudo header changed.
+     */
+    public void updateAddressChecksum(int oldIP, int newIP) {
+        short crc = getCrc();
+        if (crc != 0) {
+            setCrc(fixZeroCrc(CommonMethods.adjustChecksum32(crc, oldIP, newIP)));
+        }
+    }
+
+    private void adjustCrc(short oldValue, short newValue) {
+        short crc = getCrc();
+        if (crc != 0) { // 0 means the sender did not compute a checksum.
+            setCrc(fixZeroCrc(CommonMethods.adjustChecksum16(crc, oldValue, newValue)));
+        }
+    }
+
+    private static short fixZeroCrc(short crc) {
+        return crc == 0 ? (short) 0xFFFF : crc;
+    }
+
     @Override
     public String toString() {
         // TODO Auto-generated method stub
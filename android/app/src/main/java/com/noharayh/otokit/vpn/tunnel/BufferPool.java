@@ -0,0 +1,88 @@
+package com.noharayh.otokit.vpn.tunnel;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.noharayh.otokit.vpn.core.ProxyConfig;
+
+/**
+ * Pool of direct ByteBuffers carved out of one slab. Buffers are sized from
+ * {@link ProxyConfig#getMTU()} and the slab is rebuilt if the MTU changes.
+ * A miss falls back to a standalone allocation that is pooled on release.
+ */
+public class BufferPool {
+
+    public static final BufferPool Instance = new BufferPool(64);
+
+    static final int MIN_BUFFER_SIZE = 2048;
+
+    private final int m_SlabCount;
+    private final int m_MaxPooled;
+    private final ArrayDeque<ByteBuffer> m_FreeBuffers;
+    private final AtomicLong m_HitCount = new AtomicLong();
+    private final AtomicLong m_MissCount = new AtomicLong();
+    private int m_BufferSize;
+
+    public BufferPool(int slabCount) {
+        m_SlabCount = slabCount;
+        m_MaxPooled = slabCount * 2;
+        m_FreeBuffers = new ArrayDeque<ByteBuffer>(m_MaxPooled);
+    }
+
+    static int bufferSizeFor(int mtu) {
+        int size = MIN_BUFFER_SIZE;
+        while (size < mtu) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    public synchronized ByteBuffer acquire() {
+        int bufferSize = bufferSizeFor(ProxyConfig.Instance.getMTU());
+        if (bufferSize != m_BufferSize) {
+            rebuildSlab(bufferSize);
+        }
+
+        ByteBuffer buffer = m_FreeBuffers.pollFirst();
+        if (buffer == null) {
+            m_MissCount.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(m_BufferSize);
+        } else {
+            m_HitCount.incrementAndGet();
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != m_BufferSize || m_FreeBuffers.size() >= m_MaxPooled) {
+            return;
+        }
+        buffer.clear();
+        m_FreeBuffers.addFirst(buffer);
+    }
+
+    private void rebuildSlab(int bufferSize) {
+        m_BufferSize = bufferSize;
+        m_FreeBuffers.clear();
+        ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * m_SlabCount);
+        for (int i = 0; i < m_SlabCount; i++) {
+            slab.limit((i + 1) * bufferSize);
+            slab.position(i * bufferSize);
+            m_FreeBuffers.addLast(slab.slice());
+        }
+    }
+
+    public synchronized int getBufferSize() {
+        return m_BufferSize;
+    }
+
+    public long getHitCount() {
+        return m_HitCount.get();
+    }
+
+    public long getMissCount() {
+        return m_MissCount.get();
+    }
+}
@@ -28,7 +28,9 @@ public class HttpCapturerTunnel extends Tunnel {
 
     @Override
     protected void beforeSend(ByteBuffer buffer) throws Exception {
-        String body = new String(buffer.array());
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        String body = new String(bytes);
         if (!body.contains("HTTP")) return;
 
         // Extract http target from http packet
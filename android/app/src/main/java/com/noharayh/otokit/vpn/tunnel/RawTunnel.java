@@ -38,6 +38,11 @@ public class RawTunnel extends Tunnel {
         return true;
     }
 
+    @Override
+    protected boolean isRawRelay() {
+        return true;
+    }
+
     @Override
     protected void onDispose() {
         // TODO Auto-generated method stub
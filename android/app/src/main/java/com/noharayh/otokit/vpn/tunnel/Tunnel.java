@@ -4,32 +4,59 @@ import android.annotation.SuppressLint;
 import android.util.Log;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.noharayh.otokit.vpn.core.AsyncResolver;
 import com.noharayh.otokit.vpn.core.Constant;
+import com.noharayh.otokit.vpn.core.EventLoop;
 import com.noharayh.otokit.vpn.core.LocalVpnService;
 import com.noharayh.otokit.vpn.core.ProxyConfig;
+import com.noharayh.otokit.vpn.core.TimerWheel;
 
 public abstract class Tunnel {
 
-    public static long SessionCount;
+    static final int MAX_RELAY_READS = 16;
+    static final int MAX_SEND_QUEUE_SIZE = 8;
+    // Covers name resolution plus the TCP handshake.
+    static final long CONNECT_TIMEOUT_NANOS = 10 * 1000 * 1000000L;
+
+    public static final AtomicLong SessionCount = new AtomicLong();
     protected InetSocketAddress m_DestAddress;
     public SocketChannel m_InnerChannel;
-    private ByteBuffer m_SendRemainBuffer;
+    // Pooled chunks the channel could not take yet, flushed on OP_WRITE.
+    private final ArrayDeque<ByteBuffer> m_SendQueue = new ArrayDeque<ByteBuffer>();
+    private SelectionKey m_SelectionKey;
+    // Shared by both ends of a raw pair, see onTunnelEstablished().
+    private ByteBuffer m_RelayBuffer;
     private Selector m_Selector;
     public Tunnel m_BrotherTunnel;
     private boolean m_Disposed;
+    private boolean m_Connecting;
+    private EventLoop m_EventLoop;
     private InetSocketAddress m_ServerEP;
     public Tunnel(SocketChannel innerChannel, Selector selector) throws IOException {
         this.m_InnerChannel = innerChannel;
         this.m_InnerChannel.socket().setSoTimeout(1000*30);
         this.m_Selector = selector;
-        SessionCount++;
+        SessionCount.incrementAndGet();
+    }
+    /**
+     * For a channel already connected to {@code serverAddress}, e.g. taken from a pool;
+     * {@link #connect} then goes straight to {@link #onConnected}.
+     */
+    public Tunnel(SocketChannel connectedChannel, InetSocketAddress serverAddress, Selector selector) throws IOException {
+        this(connectedChannel, selector);
+        this.m_ServerEP = serverAddress;
     }
+
     public Tunnel(InetSocketAddress serverAddress, Selector selector) throws IOException {
         SocketChannel innerChannel = SocketChannel.open();
         innerChannel.configureBlocking(false);
@@ -37,7 +64,7 @@ public abstract class Tunnel {
         this.m_InnerChannel.socket().setSoTimeout(1000*30);
         this.m_Selector = selector;
         this.m_ServerEP = serverAddress;
-        SessionCount++;
+        SessionCount.incrementAndGet();
     }
 
     protected abstract void onConnected(ByteBuffer buffer) throws Exception;
@@ -50,63 +77,178 @@ public abstract class Tunnel {
 
     protected abstract void onDispose();
 
+    /**
+     * @return true if this tunnel never inspects or rewrites the bytes it relays,
+     * which lets a pair of such tunnels skip afterReceived/beforeSend entirely.
+     */
+    protected boolean isRawRelay() {
+        return false;
+    }
+
+    /**
+     * @return how long {@link #connect} may take, name resolution included.
+     */
+    protected long getConnectTimeoutNanos() {
+        return CONNECT_TIMEOUT_NANOS;
+    }
+
     public void setBrotherTunnel(Tunnel brotherTunnel) {
         m_BrotherTunnel = brotherTunnel;
     }
 
-    public void connect(InetSocketAddress destAddress) throws Exception {
+    /**
+     * Connects to the server given at construction. An unresolved server address is
+     * first looked up on {@link AsyncResolver}, so the loop never blocks on DNS; the
+     * tunnel is disposed if it is not connected within {@link #getConnectTimeoutNanos()}.
+     */
+    public void connect(InetSocketAddress destAddress, EventLoop eventLoop) throws Exception {
+        m_DestAddress = destAddress;
+        m_EventLoop = eventLoop;
+        m_Connecting = true;
+        long deadlineNanos = System.nanoTime() + getConnectTimeoutNanos();
+        TimerWheel.Shared.schedule(new ConnectTimeout(deadlineNanos));
+
+        if (m_InnerChannel.isConnected()) {
+            onConnectable();
+        } else if (!m_ServerEP.isUnresolved()) {
+            startConnect();
+        } else if (AsyncResolver.isLiteral(m_ServerEP.getHostString())) {
+            m_ServerEP = new InetSocketAddress(m_ServerEP.getHostString(), m_ServerEP.getPort());
+            startConnect();
+        } else {
+            AsyncResolver.Instance.resolve(m_ServerEP.getHostString(), deadlineNanos,
+                    eventLoop, new AsyncResolver.Callback() {
+                        @Override
+                        public void onResolved(InetAddress address) {
+                            if (m_Disposed) {
+                                return;
+                            }
+                            m_ServerEP = new InetSocketAddress(address, m_ServerEP.getPort());
+                            try {
+                                startConnect();
+                            } catch (Exception e) {
+                                onConnectFailed(e);
+                            }
+                        }
+
+                        @Override
+                        public void onFailed(Exception e) {
+                            onConnectFailed(e);
+                        }
+                    });
+        }
+    }
+
+    private void startConnect() throws Exception {
         if (LocalVpnService.Instance.protect(m_InnerChannel.socket())) {
-            m_DestAddress = destAddress;
-            m_InnerChannel.register(m_Selector, SelectionKey.OP_CONNECT, this);
+            m_SelectionKey = m_InnerChannel.register(m_Selector, SelectionKey.OP_CONNECT, this);
             m_InnerChannel.connect(m_ServerEP);
         } else {
             throw new Exception("VPN protect socket failed.");
         }
     }
 
+    private void onConnectFailed(Exception e) {
+        if (m_Disposed) {
+            return;
+        }
+        if (ProxyConfig.IS_DEBUG)
+            Log.d(Constant.TAG, "Connect to " + m_ServerEP.getHostString() + ":" + m_ServerEP.getPort() + " failed: " + e);
+        this.dispose();
+    }
+
+    private void updateInterestOps(int ops, boolean enable) throws IOException {
+        if (m_SelectionKey == null) {
+            if (enable) {
+                m_SelectionKey = m_InnerChannel.register(m_Selector, ops, this);
+            }
+            return;
+        }
+        int interestOps = m_SelectionKey.interestOps();
+        int newInterestOps = enable ? (interestOps | ops) : (interestOps & ~ops);
+        if (newInterestOps != interestOps) {
+            m_SelectionKey.interestOps(newInterestOps);
+        }
+    }
+
     protected void beginReceive() throws Exception {
         if (m_InnerChannel.isBlocking()) {
             m_InnerChannel.configureBlocking(false);
         }
-        m_InnerChannel.register(m_Selector, SelectionKey.OP_READ, this);
+        updateInterestOps(SelectionKey.OP_READ, true);
+    }
+
+    protected void pauseReceive() throws Exception {
+        updateInterestOps(SelectionKey.OP_READ, false);
+    }
+
+    /**
+     * Starts reading the brother before this tunnel is established, so its data is
+     * queued behind whatever this tunnel sent first.
+     */
+    protected void beginBrotherReceive() throws Exception {
+        m_BrotherTunnel.beginReceive();
     }
 
+    boolean isSendQueueFull() {
+        return m_SendQueue.size() >= MAX_SEND_QUEUE_SIZE;
+    }
 
+    /**
+     * Writes as much of the buffer as the channel takes right now. Anything left is
+     * queued when {@code copyRemainData} is set and flushed from {@link #onWritable}.
+     *
+     * @return true if the whole buffer went out immediately.
+     */
     protected boolean write(ByteBuffer buffer, boolean copyRemainData) throws Exception {
-        int bytesSent;
-        while (buffer.hasRemaining()) {
-            bytesSent = m_InnerChannel.write(buffer);
-            if (bytesSent == 0) {
-                break;
+        if (m_SendQueue.isEmpty()) {
+            while (buffer.hasRemaining()) {
+                if (m_InnerChannel.write(buffer) == 0) {
+                    break;
+                }
+            }
+            if (!buffer.hasRemaining()) {
+                return true;
             }
         }
 
-        if (buffer.hasRemaining()) {
-            if (copyRemainData) {
-                if (m_SendRemainBuffer == null) {
-                    m_SendRemainBuffer = ByteBuffer.allocate(buffer.capacity());
+        if (copyRemainData) {
+            while (buffer.hasRemaining()) {
+                ByteBuffer chunk = BufferPool.Instance.acquire();
+                if (buffer.remaining() <= chunk.remaining()) {
+                    chunk.put(buffer);
+                } else {
+                    int limit = buffer.limit();
+                    buffer.limit(buffer.position() + chunk.remaining());
+                    chunk.put(buffer);
+                    buffer.limit(limit);
                 }
-                m_SendRemainBuffer.clear();
-                m_SendRemainBuffer.put(buffer);
-                m_SendRemainBuffer.flip();
-                m_InnerChannel.register(m_Selector, SelectionKey.OP_WRITE, this);
+                chunk.flip();
+                m_SendQueue.addLast(chunk);
             }
-            return false;
-        } else {
-            return true;
+            updateInterestOps(SelectionKey.OP_WRITE, true);
         }
+        return false;
     }
 
     protected void onTunnelEstablished() throws Exception {
+        if (this.isRawRelay() && m_BrotherTunnel.isRawRelay() && m_RelayBuffer == null) {
+            m_RelayBuffer = BufferPool.Instance.acquire();
+            m_BrotherTunnel.m_RelayBuffer = m_RelayBuffer;
+        }
         this.beginReceive();
         m_BrotherTunnel.beginReceive();
     }
 
     @SuppressLint("DefaultLocale")
     public void onConnectable() {
+        ByteBuffer buffer = null;
         try {
             if (m_InnerChannel.finishConnect()) {
-                onConnected(ByteBuffer.allocate(2048));
+                m_Connecting = false;
+                updateInterestOps(SelectionKey.OP_CONNECT, false);
+                buffer = BufferPool.Instance.acquire();
+                onConnected(buffer);
             } else {
                 // LocalVpnService.Instance.writeLog("Error: connect to %s failed.", m_ServerEP);
                 this.dispose();
@@ -114,21 +256,27 @@ public abstract class Tunnel {
         } catch (Exception e) {
             // LocalVpnService.Instance.writeLog("Error: connect to %s failed: %s", m_ServerEP, e);
             this.dispose();
+        } finally {
+            BufferPool.Instance.release(buffer);
         }
     }
 
     public void onReadable(SelectionKey key) {
+        if (m_RelayBuffer != null) {
+            onRelayReadable(key);
+            return;
+        }
+        ByteBuffer buffer = BufferPool.Instance.acquire();
         try {
-            ByteBuffer buffer = ByteBuffer.allocate(2048);
-            buffer.clear();
             int bytesRead = m_InnerChannel.read(buffer);
             if (bytesRead > 0) {
                 buffer.flip();
                 afterReceived(buffer);
                 if (isTunnelEstablished() && buffer.hasRemaining()) {
                     m_BrotherTunnel.beforeSend(buffer);
-                    if (!m_BrotherTunnel.write(buffer, true)) {
-                        key.cancel();
+                    m_BrotherTunnel.write(buffer, true);
+                    if (m_BrotherTunnel.isSendQueueFull()) {
+                        pauseReceive();
                         if (ProxyConfig.IS_DEBUG)
                             Log.d(Constant.TAG, m_ServerEP + "can not read more.");
                     }
@@ -139,17 +287,63 @@ public abstract class Tunnel {
         } catch (Exception e) {
             e.printStackTrace();
             this.dispose();
+        } finally {
+            BufferPool.Instance.release(buffer);
+        }
+    }
+
+    private void onRelayReadable(SelectionKey key) {
+        try {
+            ByteBuffer buffer = m_RelayBuffer;
+            for (int i = 0; i < MAX_RELAY_READS; i++) {
+                buffer.clear();
+                int bytesRead = m_InnerChannel.read(buffer);
+                if (bytesRead < 0) {
+                    this.dispose();
+                    return;
+                } else if (bytesRead == 0) {
+                    return;
+                }
+                buffer.flip();
+                if (!m_BrotherTunnel.write(buffer, true)) {
+                    if (m_BrotherTunnel.isSendQueueFull()) {
+                        pauseReceive();
+                    }
+                    return;
+                }
+                if (bytesRead < buffer.capacity()) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            this.dispose();
         }
     }
 
     public void onWritable(SelectionKey key) {
         try {
-            this.beforeSend(m_SendRemainBuffer);
-            if (this.write(m_SendRemainBuffer, false)) {
-                key.cancel();
+            ByteBuffer chunk;
+            while ((chunk = m_SendQueue.peekFirst()) != null) {
+                while (chunk.hasRemaining()) {
+                    if (m_InnerChannel.write(chunk) == 0) {
+                        break;
+                    }
+                }
+                if (chunk.hasRemaining()) {
+                    break;
+                }
+                m_SendQueue.pollFirst();
+                BufferPool.Instance.release(chunk);
+            }
+
+            if (m_SendQueue.isEmpty()) {
+                updateInterestOps(SelectionKey.OP_WRITE, false);
+            }
+            if (!isSendQueueFull()) {
                 if (isTunnelEstablished()) {
                     m_BrotherTunnel.beginReceive();
-                } else {
+                } else if (m_SendQueue.isEmpty()) {
                     this.beginReceive();
                 }
             }
@@ -171,18 +365,58 @@ public abstract class Tunnel {
             } catch (Exception e) {
             }
 
+            if (m_RelayBuffer != null) {
+                if (m_BrotherTunnel != null) {
+                    m_BrotherTunnel.m_RelayBuffer = null;
+                }
+                BufferPool.Instance.release(m_RelayBuffer);
+                m_RelayBuffer = null;
+            }
+
             if (m_BrotherTunnel != null && disposeBrother) {
                 m_BrotherTunnel.disposeInternal(false);
             }
 
             m_InnerChannel = null;
-            m_SendRemainBuffer = null;
+            ByteBuffer chunk;
+            while ((chunk = m_SendQueue.pollFirst()) != null) {
+                BufferPool.Instance.release(chunk);
+            }
+            m_SelectionKey = null;
             m_Selector = null;
             m_BrotherTunnel = null;
             m_Disposed = true;
-            SessionCount--;
+            m_Connecting = false;
+            SessionCount.decrementAndGet();
 
             onDispose();
         }
     }
+
+    private class ConnectTimeout implements TimerWheel.Timeout {
+        private final long m_DeadlineNanos;
+
+        ConnectTimeout(long deadlineNanos) {
+            m_DeadlineNanos = deadlineNanos;
+        }
+
+        @Override
+        public long getDeadlineNanos() {
+            return m_DeadlineNanos;
+        }
+
+        @Override
+        public boolean onTimeout(long now) {
+            // Tunnel state belongs to the loop, check it there.
+            m_EventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (m_Connecting) {
+                        onConnectFailed(new SocketTimeoutException("connect timed out"));
+                    }
+                }
+            });
+            return false;
+        }
+    }
 }
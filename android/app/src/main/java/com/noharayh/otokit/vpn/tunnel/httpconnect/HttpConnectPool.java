@@ -0,0 +1,244 @@
+package com.noharayh.otokit.vpn.tunnel.httpconnect;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+import com.noharayh.otokit.DataContext;
+import com.noharayh.otokit.vpn.core.AsyncResolver;
+import com.noharayh.otokit.vpn.core.Constant;
+import com.noharayh.otokit.vpn.core.EventLoop;
+import com.noharayh.otokit.vpn.core.LocalVpnService;
+import com.noharayh.otokit.vpn.core.ProxyConfig;
+import com.noharayh.otokit.vpn.core.TimerWheel;
+
+/**
+ * Idle TCP connections to the HTTP proxy, kept ready on one {@link EventLoop} so a
+ * CONNECT tunnel can skip the TCP handshake. A connection carries one CONNECT and is
+ * never returned; the pool only warms up once tunnels are opened through it, refills
+ * as they are taken, and drains when CONNECT tunnels stop coming.
+ */
+public class HttpConnectPool {
+
+    // Below common proxy keep-alive timeouts, so a pooled connection is rarely stale.
+    static final long MAX_IDLE_NANOS = 20 * 1000 * 1000000L;
+    static final long WARM_NANOS = 60 * 1000 * 1000000L;
+    static final long CONNECT_TIMEOUT_NANOS = 10 * 1000 * 1000000L;
+
+    private final EventLoop m_EventLoop;
+    private final ArrayDeque<Connection> m_Idle = new ArrayDeque<Connection>();
+    private int m_Pending;
+    private long m_LastAcquireNanos;
+    private boolean m_Closed;
+    private long m_HitCount;
+    private long m_MissCount;
+
+    public HttpConnectPool(EventLoop eventLoop) {
+        m_EventLoop = eventLoop;
+    }
+
+    /**
+     * Takes a connected channel to the current proxy, registered on this pool's loop
+     * with no interest ops. Must be called on the loop.
+     *
+     * @return the channel, or null if none is ready and the caller must connect itself.
+     */
+    public SocketChannel acquire() {
+        return acquire(System.nanoTime());
+    }
+
+    synchronized SocketChannel acquire(long now) {
+        m_LastAcquireNanos = now;
+        SocketChannel channel = null;
+        Connection connection;
+        while ((connection = m_Idle.pollFirst()) != null) {
+            if (connection.isUsable(now)) {
+                channel = connection.detach();
+                break;
+            }
+            connection.close();
+        }
+        if (channel != null) {
+            m_HitCount++;
+        } else {
+            m_MissCount++;
+        }
+        fill(now);
+        return channel;
+    }
+
+    public synchronized void close() {
+        m_Closed = true;
+        Connection connection;
+        while ((connection = m_Idle.pollFirst()) != null) {
+            connection.close();
+        }
+        if (ProxyConfig.IS_DEBUG)
+            Log.d(Constant.TAG, "HttpConnectPool closed, " + m_HitCount + " hits, " + m_MissCount + " misses");
+    }
+
+    private void fill(long now) {
+        if (m_Closed || now - m_LastAcquireNanos > WARM_NANOS) {
+            return;
+        }
+        int size = ProxyConfig.Instance.getConnectPoolSize();
+        while (m_Idle.size() + m_Pending < size) {
+            m_Pending++;
+            new Connection(DataContext.ProxyHost, DataContext.ProxyPort).start();
+        }
+    }
+
+    private synchronized void onConnected(Connection connection) {
+        m_Pending--;
+        connection.m_State = Connection.STATE_IDLE;
+        if (m_Closed) {
+            connection.close();
+            return;
+        }
+        m_Idle.addLast(connection);
+    }
+
+    private synchronized void onFailed(Connection connection) {
+        if (connection.m_State == Connection.STATE_GONE) {
+            return;
+        }
+        boolean pending = connection.m_State == Connection.STATE_PENDING;
+        connection.close();
+        if (pending) {
+            m_Pending--;
+        } else if (m_Idle.remove(connection)) {
+            // The proxy dropped an idle connection, replace it while tunnels still come.
+            fill(System.nanoTime());
+        }
+    }
+
+    private class Connection implements EventLoop.Handler, TimerWheel.Timeout {
+        static final int STATE_PENDING = 0;
+        static final int STATE_IDLE = 1;
+        static final int STATE_GONE = 2;
+
+        private final String m_Host;
+        private final int m_Port;
+        private SocketChannel m_Channel;
+        private SelectionKey m_SelectionKey;
+        private int m_State = STATE_PENDING;
+        private long m_DeadlineNanos;
+
+        Connection(String host, int port) {
+            m_Host = host;
+            m_Port = port;
+        }
+
+        void start() {
+            m_DeadlineNanos = System.nanoTime() + CONNECT_TIMEOUT_NANOS;
+            TimerWheel.Shared.schedule(this);
+            if (AsyncResolver.isLiteral(m_Host)) {
+                connect(new InetSocketAddress(m_Host, m_Port));
+                return;
+            }
+            AsyncResolver.Instance.resolve(m_Host, m_DeadlineNanos, m_EventLoop, new AsyncResolver.Callback() {
+                @Override
+                public void onResolved(InetAddress address) {
+                    connect(new InetSocketAddress(address, m_Port));
+                }
+
+                @Override
+                public void onFailed(Exception e) {
+                    HttpConnectPool.this.onFailed(Connection.this);
+                }
+            });
+        }
+
+        private void connect(InetSocketAddress address) {
+            if (m_State != STATE_PENDING) {
+                return;
+            }
+            try {
+                m_Channel = SocketChannel.open();
+                m_Channel.configureBlocking(false);
+                if (!LocalVpnService.Instance.protect(m_Channel.socket())) {
+                    throw new IOException("VPN protect socket failed.");
+                }
+                m_SelectionKey = m_Channel.register(m_EventLoop.getSelector(), SelectionKey.OP_CONNECT, this);
+                if (m_Channel.connect(address)) {
+                    onConnectable();
+                }
+            } catch (Exception e) {
+                if (ProxyConfig.IS_DEBUG)
+                    Log.d(Constant.TAG, "HttpConnectPool connect failed: " + e);
+                onFailed(this);
+            }
+        }
+
+        private void onConnectable() throws IOException {
+            if (!m_Channel.finishConnect()) {
+                return;
+            }
+            // Watch the idle connection for the proxy closing it.
+            m_SelectionKey.interestOps(SelectionKey.OP_READ);
+            m_DeadlineNanos = System.nanoTime() + MAX_IDLE_NANOS;
+            onConnected(this);
+        }
+
+        @Override
+        public void onSelected(SelectionKey key) {
+            if (key.isConnectable()) {
+                try {
+                    onConnectable();
+                } catch (Exception e) {
+                    onFailed(this);
+                }
+            } else if (key.isReadable()) {
+                // Nothing is expected before a CONNECT, so this is EOF or garbage.
+                onFailed(this);
+            }
+        }
+
+        boolean isUsable(long now) {
+            return m_Channel.isOpen() && now - m_DeadlineNanos < 0
+                    && m_Port == DataContext.ProxyPort && m_Host.equals(DataContext.ProxyHost);
+        }
+
+        SocketChannel detach() {
+            m_State = STATE_GONE;
+            m_SelectionKey.interestOps(0);
+            SocketChannel channel = m_Channel;
+            m_Channel = null;
+            return channel;
+        }
+
+        void close() {
+            m_State = STATE_GONE;
+            if (m_Channel != null) {
+                try {
+                    m_Channel.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                m_Channel = null;
+            }
+        }
+
+        @Override
+        public long getDeadlineNanos() {
+            return m_DeadlineNanos;
+        }
+
+        @Override
+        public boolean onTimeout(long now) {
+            m_EventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Either the connect hung or the connection sat idle too long.
+                    onFailed(Connection.this);
+                }
+            });
+            return false;
+        }
+    }
+}
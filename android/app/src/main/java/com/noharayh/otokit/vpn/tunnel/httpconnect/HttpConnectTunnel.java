@@ -1,6 +1,5 @@
 package com.noharayh.otokit.vpn.tunnel.httpconnect;
 
-import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
 
@@ -8,9 +7,9 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.Selector;
-import java.util.Locale;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 
-import com.noharayh.otokit.crawler.WechatCrawler;
 import com.noharayh.otokit.DataContext;
 import com.noharayh.otokit.vpn.core.Constant;
 import com.noharayh.otokit.vpn.core.ProxyConfig;
@@ -18,49 +17,85 @@ import com.noharayh.otokit.vpn.tunnel.Tunnel;
 
 public class HttpConnectTunnel extends Tunnel {
     private static final String TAG = "HttpConnectTunnel";
+
+    static final int MAX_RESPONSE_LENGTH = 8 * 1024;
+    // "HTTP/1.1 200"
+    static final int STATUS_LENGTH = 12;
+
+    private static final byte[] CONNECT = ascii("CONNECT ");
+    private static final byte[] REQUEST_HEADERS = ascii(" HTTP/1.0\r\nProxy-Connection: keep-alive\r\nUser-Agent: ");
+    private static final byte[] INSTALL_ID_HEADER = ascii("\r\nX-App-Install-ID: ");
+    private static final byte[] REQUEST_END = ascii("\r\n\r\n");
+    private static final byte[] CONTENT_LENGTH_ZERO = ascii("Content-Length: 0");
+
     private boolean m_TunnelEstablished;
     private boolean m_FirstPacket;
     private HttpConnectConfig m_Config;
+    // Response parsing state, the reply may arrive in pieces.
+    private final byte[] m_Status = new byte[STATUS_LENGTH];
+    private int m_StatusLength;
+    private int m_LineLength;
+    private int m_ResponseLength;
 
     public HttpConnectTunnel(HttpConnectConfig config, Selector selector) throws IOException {
 //        super(config.ServerAddress, selector);
-        super(new InetSocketAddress(DataContext.ProxyHost, DataContext.ProxyPort), selector);
+        super(InetSocketAddress.createUnresolved(DataContext.ProxyHost, DataContext.ProxyPort), selector);
         m_Config = config;
     }
 
+    /**
+     * @param pooledChannel a connection to the proxy taken from {@link HttpConnectPool}.
+     */
+    public HttpConnectTunnel(HttpConnectConfig config, SocketChannel pooledChannel, Selector selector) throws IOException {
+        super(pooledChannel, InetSocketAddress.createUnresolved(DataContext.ProxyHost, DataContext.ProxyPort), selector);
+        m_Config = config;
+    }
+
+    /**
+     * Creates a tunnel on a pooled proxy connection if {@code pool} has one ready.
+     */
+    public static HttpConnectTunnel create(HttpConnectConfig config, HttpConnectPool pool, Selector selector) throws IOException {
+        SocketChannel channel = pool != null ? pool.acquire() : null;
+        if (channel != null) {
+            return new HttpConnectTunnel(config, channel, selector);
+        }
+        return new HttpConnectTunnel(config, selector);
+    }
+
     @Override
     protected void onConnected(ByteBuffer buffer) throws Exception {
-        String request;
-//        if (TextUtils.isEmpty(m_Config.UserName) || TextUtils.isEmpty(m_Config.Password)) {
-        request = String.format(Locale.ENGLISH, "CONNECT %s:%d HTTP/1.0\r\n" +
-                        "Proxy-Connection: keep-alive\r\n" +
-                        "User-Agent: %s\r\n" +
-                        "X-App-Install-ID: %s" +
-                        "\r\n\r\n",
-                m_DestAddress.getHostName(),
-                m_DestAddress.getPort(),
-                ProxyConfig.Instance.getUserAgent(),
-                ProxyConfig.AppInstallID);
-//        } else {
-//            request = String.format(Locale.ENGLISH, "CONNECT %s:%d HTTP/1.0\r\n" +
-//                            "Proxy-Authorization: Basic %s\r\n" +
-//                            "Proxy-Connection: keep-alive\r\n" +
-//                            "User-Agent: %s\r\n" +
-//                            "X-App-Install-ID: %s" +
-//                            "\r\n\r\n",
-//                    m_DestAddress.getHostName(),
-//                    m_DestAddress.getPort(),
-//                    makeAuthorization(),
-//                    ProxyConfig.Instance.getUserAgent(),
-//                    ProxyConfig.AppInstallID);
-//        }
-        Log.i(TAG, "onConnected: " + request);
+        // Proxy-Authorization stays off: the proxy identifies the client by its install ID.
         buffer.clear();
-        buffer.put(request.getBytes());
+        encodeRequest(buffer, m_DestAddress.getHostString(), m_DestAddress.getPort(),
+                ProxyConfig.Instance.getUserAgent(), ProxyConfig.AppInstallID);
         buffer.flip();
+        if (ProxyConfig.IS_DEBUG)
+            Log.d(TAG, "onConnected: CONNECT " + m_DestAddress.getHostString() + ":" + m_DestAddress.getPort());
         if (this.write(buffer, true)) {
             this.beginReceive();
         }
+        if (ProxyConfig.Instance.isConnectPipeliningEnabled()) {
+            // Client data follows the CONNECT without waiting a round trip for the reply.
+            beginBrotherReceive();
+        }
+    }
+
+    static void encodeRequest(ByteBuffer buffer, String host, int port, String userAgent, String installID) {
+        buffer.put(CONNECT);
+        if (host.indexOf(':') >= 0) {
+            buffer.put((byte) '[');
+            putAscii(buffer, host);
+            buffer.put((byte) ']');
+        } else {
+            putAscii(buffer, host);
+        }
+        buffer.put((byte) ':');
+        putAscii(buffer, Integer.toString(port));
+        buffer.put(REQUEST_HEADERS);
+        putAscii(buffer, String.valueOf(userAgent));
+        buffer.put(INSTALL_ID_HEADER);
+        putAscii(buffer, String.valueOf(installID));
+        buffer.put(REQUEST_END);
     }
 
     private String makeAuthorization() {
@@ -70,38 +105,90 @@ public class HttpConnectTunnel extends Tunnel {
     @Override
     protected void afterReceived(ByteBuffer buffer) throws Exception {
         if (!m_TunnelEstablished) {
-            String response = new String(buffer.array(), buffer.position(), 12);
-            Log.i(TAG, m_DestAddress.toString());
-            Log.i(TAG, "afterReceived: " + response);
-            if (response.matches("^HTTP/1.[01] 200$")) {
-                buffer.limit(buffer.position());
-            } else {
-                throw new Exception(String.format(Locale.ENGLISH, "Proxy server responsed an error: %s", response));
+            if (!parseResponse(buffer)) {
+                return;
             }
-
             m_TunnelEstablished = true;
             m_FirstPacket = true;
             super.onTunnelEstablished();
-        } else if (m_FirstPacket) {
+        }
+        if (m_FirstPacket && buffer.hasRemaining()) {
             // Workaround for mysterious "Content-Length: 0" after handshaking.
             // Possible a bug of golang.
             // Also need to remove "\r\n" afterward.
-            String response = new String(buffer.array(), buffer.position(), 17);
-            if (response.matches("^Content-Length: 0$")) {
-                buffer.position(buffer.position() + 17);
+            if (startsWith(buffer, CONTENT_LENGTH_ZERO)) {
+                buffer.position(buffer.position() + CONTENT_LENGTH_ZERO.length);
             }
-            while (true) {
-                response = new String(buffer.array(), buffer.position(), 2);
-                if (response.matches("^\r\n$")) {
-                    buffer.position(buffer.position() + 2);
-                } else {
-                    break;
-                }
+            while (buffer.remaining() >= 2 && buffer.get(buffer.position()) == '\r'
+                    && buffer.get(buffer.position() + 1) == '\n') {
+                buffer.position(buffer.position() + 2);
             }
             m_FirstPacket = false;
         }
     }
 
+    /**
+     * Consumes the proxy's reply up to the end of its headers; whatever follows is
+     * tunnel data and stays in the buffer.
+     *
+     * @return true once the headers are complete and the status is 200.
+     */
+    boolean parseResponse(ByteBuffer buffer) throws Exception {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (++m_ResponseLength > MAX_RESPONSE_LENGTH) {
+                throw new Exception("Proxy server response too long");
+            }
+            if (m_StatusLength < STATUS_LENGTH) {
+                m_Status[m_StatusLength++] = b;
+            }
+            if (b == '\n') {
+                if (m_LineLength == 0) {
+                    if (!isStatusOK()) {
+                        throw new Exception("Proxy server responsed an error: "
+                                + new String(m_Status, 0, m_StatusLength, StandardCharsets.US_ASCII).trim());
+                    }
+                    return true;
+                }
+                m_LineLength = 0;
+            } else if (b != '\r') {
+                m_LineLength++;
+            }
+        }
+        return false;
+    }
+
+    private boolean isStatusOK() {
+        byte[] s = m_Status;
+        return m_StatusLength == STATUS_LENGTH
+                && s[0] == 'H' && s[1] == 'T' && s[2] == 'T' && s[3] == 'P' && s[4] == '/' && s[5] == '1'
+                && s[6] == '.' && (s[7] == '0' || s[7] == '1') && s[8] == ' '
+                && s[9] == '2' && s[10] == '0' && s[11] == '0';
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, byte[] prefix) {
+        if (buffer.remaining() < prefix.length) {
+            return false;
+        }
+        int position = buffer.position();
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(position + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void putAscii(ByteBuffer buffer, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            buffer.put((byte) s.charAt(i));
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
     @Override
     protected boolean isTunnelEstablished() {
         return m_TunnelEstablished;
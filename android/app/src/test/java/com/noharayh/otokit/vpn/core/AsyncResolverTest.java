@@ -0,0 +1,233 @@
+package com.noharayh.otokit.vpn.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.noharayh.otokit.vpn.tunnel.Tunnel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncResolverTest {
+
+    private static final long SECOND_NANOS = 1000000000L;
+
+    // Stands in for a resolver that hangs on every name starting with "stuck".
+    private static class StalledLookup implements AsyncResolver.Lookup {
+        final CountDownLatch Release = new CountDownLatch(1);
+        final ConcurrentHashMap<String, AtomicInteger> Calls = new ConcurrentHashMap<String, AtomicInteger>();
+
+        @Override
+        public InetAddress lookup(String host) throws IOException {
+            Calls.putIfAbsent(host, new AtomicInteger());
+            Calls.get(host).incrementAndGet();
+            if (host.startsWith("stuck")) {
+                try {
+                    Release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            return InetAddress.getByAddress(host, new byte[]{10, 0, 0, (byte) host.length()});
+        }
+
+        int calls(String host) {
+            AtomicInteger count = Calls.get(host);
+            return count == null ? 0 : count.get();
+        }
+    }
+
+    // Records callbacks along with whether they ran on the loop thread.
+    private class Recorder implements AsyncResolver.Callback {
+        final String Host;
+
+        Recorder(String host) {
+            Host = host;
+        }
+
+        @Override
+        public void onResolved(InetAddress address) {
+            m_Results.add(new Result(Host, address, null, m_EventLoop.inLoop()));
+        }
+
+        @Override
+        public void onFailed(Exception e) {
+            m_Results.add(new Result(Host, null, e, m_EventLoop.inLoop()));
+        }
+    }
+
+    private static class Result {
+        final String Host;
+        final InetAddress Address;
+        final Exception Error;
+        final boolean InLoop;
+
+        Result(String host, InetAddress address, Exception error, boolean inLoop) {
+            Host = host;
+            Address = address;
+            Error = error;
+            InLoop = inLoop;
+        }
+    }
+
+    // A tunnel that only ever gets as far as resolving its server.
+    private static class ResolvingTunnel extends Tunnel {
+        final CountDownLatch Disposed = new CountDownLatch(1);
+
+        ResolvingTunnel(String host, EventLoop eventLoop) throws IOException {
+            super(InetSocketAddress.createUnresolved(host, 443), eventLoop.getSelector());
+        }
+
+        @Override
+        protected long getConnectTimeoutNanos() {
+            return SECOND_NANOS / 2;
+        }
+
+        @Override
+        protected void onConnected(ByteBuffer buffer) {
+        }
+
+        @Override
+        protected boolean isTunnelEstablished() {
+            return false;
+        }
+
+        @Override
+        protected void beforeSend(ByteBuffer buffer) {
+        }
+
+        @Override
+        protected void afterReceived(ByteBuffer buffer) {
+        }
+
+        @Override
+        protected void onDispose() {
+            Disposed.countDown();
+        }
+    }
+
+    private final LinkedBlockingQueue<Result> m_Results = new LinkedBlockingQueue<Result>();
+    private final StalledLookup m_Lookup = new StalledLookup();
+    private EventLoop m_EventLoop;
+    private AsyncResolver m_SavedInstance;
+
+    @Before
+    public void setUp() throws Exception {
+        m_EventLoop = new EventLoop("AsyncResolverTest", null);
+        m_EventLoop.start();
+        m_SavedInstance = AsyncResolver.Instance;
+    }
+
+    @After
+    public void tearDown() {
+        m_Lookup.Release.countDown();
+        AsyncResolver.Instance = m_SavedInstance;
+        m_EventLoop.stop();
+    }
+
+    private Result take() throws InterruptedException {
+        Result result = m_Results.poll(5, TimeUnit.SECONDS);
+        assertNotNull("callback did not fire", result);
+        assertTrue("callback ran off the loop", result.InLoop);
+        return result;
+    }
+
+    private void resolve(AsyncResolver resolver, String host, long timeoutNanos) {
+        resolver.resolve(host, System.nanoTime() + timeoutNanos, m_EventLoop, new Recorder(host));
+    }
+
+    @Test
+    public void stalledLookupDoesNotHoldUpOtherCallbacks() throws Exception {
+        AsyncResolver resolver = new AsyncResolver(2, m_Lookup);
+        resolve(resolver, "stuck.example.com", 60 * SECOND_NANOS);
+        for (int i = 0; i < 20; i++) {
+            resolve(resolver, "host" + i + ".example.com", 60 * SECOND_NANOS);
+        }
+        for (int i = 0; i < 20; i++) {
+            Result result = take();
+            assertTrue(result.Host, result.Host.startsWith("host"));
+            assertEquals(result.Host, result.Address.getHostName());
+        }
+
+        // The loop itself keeps running tasks meanwhile.
+        final CountDownLatch ran = new CountDownLatch(1);
+        m_EventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+
+        m_Lookup.Release.countDown();
+        Result stuck = take();
+        assertEquals("stuck.example.com", stuck.Host);
+        assertNotNull(stuck.Address);
+    }
+
+    @Test
+    public void requestsExpiredInQueueFailWithoutALookup() throws Exception {
+        AsyncResolver resolver = new AsyncResolver(1, m_Lookup);
+        resolve(resolver, "stuck.example.com", 60 * SECOND_NANOS);
+        resolve(resolver, "late.example.com", SECOND_NANOS / 10);
+        resolve(resolver, "patient.example.com", 60 * SECOND_NANOS);
+        Thread.sleep(300);
+        m_Lookup.Release.countDown();
+
+        assertEquals("stuck.example.com", take().Host);
+        Result late = take();
+        assertEquals("late.example.com", late.Host);
+        assertTrue(String.valueOf(late.Error), late.Error instanceof SocketTimeoutException);
+        assertEquals(0, m_Lookup.calls("late.example.com"));
+        Result patient = take();
+        assertEquals("patient.example.com", patient.Host);
+        assertNotNull(patient.Address);
+        assertEquals(1, m_Lookup.calls("patient.example.com"));
+    }
+
+    @Test
+    public void connectTimeoutFiresWhileTheLookupIsStuck() throws Exception {
+        AsyncResolver.Instance = new AsyncResolver(1, m_Lookup);
+        final ResolvingTunnel tunnel = new ResolvingTunnel("stuck.tunnel.example.com", m_EventLoop);
+        m_EventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tunnel.connect(new InetSocketAddress("127.0.0.1", 443), m_EventLoop);
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        // TimerWheel.Shared ticks once a second.
+        assertTrue("connect timeout did not fire", tunnel.Disposed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, m_Lookup.calls("stuck.tunnel.example.com"));
+
+        // The lookup finishing late does nothing to the disposed tunnel.
+        m_Lookup.Release.countDown();
+        final CountDownLatch drained = new CountDownLatch(1);
+        Thread.sleep(100);
+        m_EventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                drained.countDown();
+            }
+        });
+        assertTrue(drained.await(5, TimeUnit.SECONDS));
+        assertNull(tunnel.m_InnerChannel);
+    }
+}
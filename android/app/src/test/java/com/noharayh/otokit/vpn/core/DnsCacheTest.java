@@ -0,0 +1,88 @@
+package com.noharayh.otokit.vpn.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.noharayh.otokit.vpn.dns.DnsView;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+
+public class DnsCacheTest {
+
+    private static final byte[] NAME = {7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0};
+
+    // A query for example.com A, with an OPT record unless edns is EDNS_NONE.
+    private static byte[] message(byte edns) {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        buffer.putShort((short) 0x1234);
+        buffer.putShort((short) 0x0100);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) (edns == DnsView.EDNS_NONE ? 0 : 1));
+        buffer.put(NAME);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 1);
+        if (edns != DnsView.EDNS_NONE) {
+            buffer.put((byte) 0);
+            buffer.putShort((short) DnsView.TYPE_OPT);
+            buffer.putShort((short) 1232);
+            buffer.putInt(edns == DnsView.EDNS_DO ? 0x8000 : 0);
+            buffer.putShort((short) 0);
+        }
+        byte[] data = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(data);
+        return data;
+    }
+
+    private static void put(DnsCache cache, byte edns) {
+        byte[] data = message(edns);
+        DnsView view = new DnsView();
+        assertTrue(view.wrap(data, 0, data.length));
+        assertEquals(edns, view.getEdnsState());
+        cache.put(data, 0, data.length, view.getQuestionNameOffset(), view.getQuestionNameLength(),
+                view.getQuestionType(), view.getQuestionClass(), view.getEdnsState(), new int[0], 0, 60, 0);
+    }
+
+    private static int lookup(DnsCache cache, byte edns) {
+        byte[] query = message(edns);
+        byte[] data = new byte[512];
+        System.arraycopy(query, 0, data, 0, query.length);
+        DnsView view = new DnsView();
+        assertTrue(view.wrap(data, 0, query.length));
+        return cache.lookup(data, 0, view.getQuestionNameOffset(), view.getQuestionNameLength(),
+                view.getQuestionType(), view.getQuestionClass(), view.getEdnsState(), data.length);
+    }
+
+    @Test
+    public void answersAreKeptApartByEdnsState() {
+        DnsCache cache = new DnsCache();
+        put(cache, DnsView.EDNS_DO);
+        assertEquals(0, lookup(cache, DnsView.EDNS_NONE));
+        assertEquals(0, lookup(cache, DnsView.EDNS_PRESENT));
+        assertEquals(message(DnsView.EDNS_DO).length, lookup(cache, DnsView.EDNS_DO));
+
+        put(cache, DnsView.EDNS_NONE);
+        assertEquals(message(DnsView.EDNS_NONE).length, lookup(cache, DnsView.EDNS_NONE));
+        assertEquals(message(DnsView.EDNS_DO).length, lookup(cache, DnsView.EDNS_DO));
+    }
+
+    @Test
+    public void snapshotKeepsEdnsState() throws Exception {
+        DnsCache cache = new DnsCache();
+        put(cache, DnsView.EDNS_PRESENT);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        long now = System.currentTimeMillis();
+        cache.save(new DataOutputStream(bytes), now);
+
+        DnsCache restored = new DnsCache();
+        assertEquals(1, restored.restore(ByteBuffer.wrap(bytes.toByteArray()), now));
+        assertEquals(0, lookup(restored, DnsView.EDNS_NONE));
+        assertEquals(message(DnsView.EDNS_PRESENT).length, lookup(restored, DnsView.EDNS_PRESENT));
+    }
+}
@@ -0,0 +1,300 @@
+package com.noharayh.otokit.vpn.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.noharayh.otokit.vpn.dns.DnsView;
+import com.noharayh.otokit.vpn.tcpip.CommonMethods;
+import com.noharayh.otokit.vpn.tcpip.IPHeader;
+import com.noharayh.otokit.vpn.tcpip.UDPHeader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Races queries through {@link DnsProxy} over stand-in resolvers on 127.0.0.1-3.
+ */
+public class DnsRaceTest {
+
+    private static final int RCODE_SERVFAIL = 2;
+    private static final int RCODE_REFUSED = 5;
+    private static final long STAGGER_MS = DnsUpstreams.INITIAL_RTT_NANOS * 2 / 1000000L;
+
+    private static class FakeVpnService extends LocalVpnService {
+        final LinkedBlockingQueue<byte[]> Answers = new LinkedBlockingQueue<byte[]>();
+
+        @Override
+        public boolean protect(DatagramSocket socket) {
+            return true;
+        }
+
+        @Override
+        public void sendUDPPacket(IPHeader ipHeader, UDPHeader udpHeader) {
+            int offset = udpHeader.m_Offset + 8;
+            Answers.add(Arrays.copyOfRange(udpHeader.m_Data, offset, offset + udpHeader.getTotalLength() - 8));
+        }
+    }
+
+    // A query as one resolver received it.
+    private static class Received {
+        final byte[] Query;
+        final SocketAddress Source;
+        final long Nanos;
+
+        Received(byte[] query, SocketAddress source, long nanos) {
+            Query = query;
+            Source = source;
+            Nanos = nanos;
+        }
+    }
+
+    private final ArrayList<ProxyConfig.IPAddress> m_SavedDnsList = new ArrayList<ProxyConfig.IPAddress>();
+    private boolean m_SavedRace;
+    private FakeVpnService m_VpnService;
+    private EventLoop m_EventLoop;
+    private DnsProxy m_DnsProxy;
+    private final DatagramSocket[] m_Resolvers = new DatagramSocket[3];
+    private long m_StartNanos;
+
+    @Before
+    public void setUp() throws Exception {
+        m_Resolvers[0] = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+        int port = m_Resolvers[0].getLocalPort();
+        for (int i = 1; i < m_Resolvers.length; i++) {
+            m_Resolvers[i] = new DatagramSocket(new InetSocketAddress("127.0.0." + (i + 1), port));
+        }
+        ArrayList<ProxyConfig.IPAddress> dnsList = ProxyConfig.Instance.getDnsList();
+        m_SavedDnsList.addAll(dnsList);
+        dnsList.clear();
+        for (int i = 0; i < m_Resolvers.length; i++) {
+            dnsList.add(ProxyConfig.Instance.new IPAddress("127.0.0." + (i + 1)));
+        }
+        m_SavedRace = ProxyConfig.Instance.isDnsRaceEnabled();
+        ProxyConfig.Instance.setDnsRaceEnabled(true);
+
+        m_VpnService = new FakeVpnService();
+        LocalVpnService.Instance = m_VpnService;
+        m_EventLoop = new EventLoop("DnsRaceTest", null);
+        m_DnsProxy = new DnsProxy(m_EventLoop, port);
+        m_EventLoop.start();
+        m_DnsProxy.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        m_DnsProxy.stop();
+        m_EventLoop.stop();
+        for (DatagramSocket resolver : m_Resolvers) {
+            resolver.close();
+        }
+        ArrayList<ProxyConfig.IPAddress> dnsList = ProxyConfig.Instance.getDnsList();
+        dnsList.clear();
+        dnsList.addAll(m_SavedDnsList);
+        ProxyConfig.Instance.setDnsRaceEnabled(m_SavedRace);
+        LocalVpnService.Instance = null;
+    }
+
+    private static byte[] query(int id, String domain) {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        buffer.putShort((short) id);
+        buffer.putShort((short) 0x0100);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        for (String label : domain.split("\\.")) {
+            buffer.put((byte) label.length());
+            buffer.put(label.getBytes());
+        }
+        buffer.put((byte) 0);
+        buffer.putShort((short) 28);
+        buffer.putShort((short) 1);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private void sendFromClient(int id, String domain) {
+        byte[] query = query(id, domain);
+        byte[] packet = new byte[28 + 512];
+        IPHeader ipHeader = new IPHeader(packet, 0);
+        ipHeader.Default();
+        ipHeader.setSourceIP(CommonMethods.ipStringToInt("10.8.0.2"));
+        ipHeader.setDestinationIP(CommonMethods.ipStringToInt("10.8.0.1"));
+        ipHeader.setProtocol(IPHeader.UDP);
+        ipHeader.setTotalLength(28 + query.length);
+        UDPHeader udpHeader = new UDPHeader(packet, 20);
+        udpHeader.setSourcePort((short) 40000);
+        udpHeader.setDestinationPort((short) 53);
+        udpHeader.setTotalLength(8 + query.length);
+        System.arraycopy(query, 0, packet, 28, query.length);
+
+        DnsView view = new DnsView();
+        assertTrue(view.wrap(packet, 28, query.length));
+        m_StartNanos = System.nanoTime();
+        m_DnsProxy.onDnsRequestReceived(ipHeader, udpHeader, view);
+    }
+
+    private Received receive(int resolver, int timeoutMillis) throws Exception {
+        DatagramSocket socket = m_Resolvers[resolver];
+        socket.setSoTimeout(timeoutMillis);
+        DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+        try {
+            socket.receive(packet);
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+        return new Received(Arrays.copyOf(packet.getData(), packet.getLength()), packet.getSocketAddress(),
+                System.nanoTime());
+    }
+
+    private Received expectQuery(int resolver) throws Exception {
+        Received received = receive(resolver, 5000);
+        assertNotNull("resolver " + resolver + " was not asked", received);
+        return received;
+    }
+
+    private long elapsedMillis(Received received) {
+        return (received.Nanos - m_StartNanos) / 1000000L;
+    }
+
+    // Answers with one AAAA record ending in marker, or with an error rcode and no records.
+    private void reply(int resolver, Received received, int rcode, int marker) throws Exception {
+        DnsView view = new DnsView();
+        assertTrue(view.wrap(received.Query, 0, received.Query.length));
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        buffer.put(received.Query, 0, view.getQuestionEnd());
+        buffer.putShort(2, (short) (0x8180 | rcode));
+        if (rcode == 0) {
+            buffer.putShort(6, (short) 1);
+            buffer.putShort((short) 0xC00C);
+            buffer.putShort((short) 28);
+            buffer.putShort((short) 1);
+            buffer.putInt(60);
+            buffer.putShort((short) 16);
+            byte[] address = new byte[16];
+            address[0] = 0x20;
+            address[1] = 0x01;
+            address[15] = (byte) marker;
+            buffer.put(address);
+        }
+        byte[] answer = Arrays.copyOf(buffer.array(), buffer.position());
+        m_Resolvers[resolver].send(new DatagramPacket(answer, answer.length, received.Source));
+    }
+
+    private byte[] takeAnswer() throws Exception {
+        byte[] answer = m_VpnService.Answers.poll(5, TimeUnit.SECONDS);
+        assertNotNull("no answer delivered", answer);
+        return answer;
+    }
+
+    private void assertNoMoreAnswers() throws Exception {
+        assertNull(m_VpnService.Answers.poll(300, TimeUnit.MILLISECONDS));
+    }
+
+    private static int rcode(byte[] answer) {
+        return answer[3] & 0x0F;
+    }
+
+    private static int marker(byte[] answer) {
+        return answer[answer.length - 1];
+    }
+
+    @Test
+    public void staggersSendsInRankedOrder() throws Exception {
+        sendFromClient(1, "stagger.race.test");
+        Received first = expectQuery(0);
+        assertTrue(elapsedMillis(first) < STAGGER_MS / 2);
+        // Nobody else is asked while the first one may still answer.
+        assertNull(receive(1, (int) (STAGGER_MS / 2)));
+        Received second = expectQuery(1);
+        assertTrue(elapsedMillis(second) >= STAGGER_MS - 40);
+        Received third = expectQuery(2);
+        assertTrue(elapsedMillis(third) >= 2 * STAGGER_MS - 80);
+        // All three carry the same upstream query.
+        assertTrue(Arrays.equals(first.Query, second.Query));
+        assertTrue(Arrays.equals(first.Query, third.Query));
+    }
+
+    @Test
+    public void firstValidAnswerWins() throws Exception {
+        sendFromClient(2, "winner.race.test");
+        Received slow = expectQuery(0);
+        Received fast = expectQuery(1);
+        reply(1, fast, 0, 2);
+        byte[] answer = takeAnswer();
+        assertEquals(2, CommonMethods.readShort(answer, 0));
+        assertEquals(2, marker(answer));
+
+        // The first resolver answering late changes nothing for the client.
+        reply(0, slow, 0, 1);
+        assertNoMoreAnswers();
+        // And the third one is never asked.
+        assertNull(receive(2, (int) STAGGER_MS));
+    }
+
+    @Test
+    public void servfailAndRefusedLoseTheRace() throws Exception {
+        sendFromClient(3, "errors.race.test");
+        reply(0, expectQuery(0), RCODE_SERVFAIL, 0);
+        // An error answer starts the next resolver right away instead of after the stagger.
+        Received second = expectQuery(1);
+        assertTrue(elapsedMillis(second) < STAGGER_MS / 2);
+        reply(1, second, RCODE_REFUSED, 0);
+        Received third = expectQuery(2);
+        assertTrue(elapsedMillis(third) < STAGGER_MS / 2);
+        assertNull(m_VpnService.Answers.poll(100, TimeUnit.MILLISECONDS));
+
+        reply(2, third, 0, 3);
+        byte[] answer = takeAnswer();
+        assertEquals(0, rcode(answer));
+        assertEquals(3, marker(answer));
+        assertNoMoreAnswers();
+    }
+
+    @Test
+    public void lastErrorIsDeliveredWhenEveryoneFails() throws Exception {
+        sendFromClient(4, "refused.race.test");
+        reply(0, expectQuery(0), RCODE_REFUSED, 0);
+        reply(1, expectQuery(1), RCODE_SERVFAIL, 0);
+        reply(2, expectQuery(2), RCODE_REFUSED, 0);
+        byte[] answer = takeAnswer();
+        assertEquals(4, CommonMethods.readShort(answer, 0));
+        assertEquals(RCODE_REFUSED, rcode(answer));
+        assertNoMoreAnswers();
+    }
+
+    @Test
+    public void fasterResolversMoveUpTheRanking() throws Exception {
+        // The first resolver fails and the third answers at once once asked.
+        sendFromClient(5, "rank1.race.test");
+        reply(0, expectQuery(0), RCODE_SERVFAIL, 0);
+        Received second = expectQuery(1);
+        Received third = expectQuery(2);
+        reply(2, third, 0, 3);
+        takeAnswer();
+        reply(1, second, 0, 2);
+
+        // Now the third resolver has a short RTT, the second the initial estimate and
+        // the first a loss on record.
+        sendFromClient(6, "rank2.race.test");
+        Received best = expectQuery(2);
+        assertTrue(elapsedMillis(best) < STAGGER_MS / 2);
+        assertNull(receive(0, 20));
+        assertNull(receive(1, 20));
+        reply(2, best, 0, 3);
+        assertEquals(6, CommonMethods.readShort(takeAnswer(), 0));
+    }
+}
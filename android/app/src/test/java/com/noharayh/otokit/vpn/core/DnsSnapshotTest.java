@@ -0,0 +1,165 @@
+package com.noharayh.otokit.vpn.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.noharayh.otokit.vpn.dns.DnsView;
+import com.noharayh.otokit.vpn.tcpip.CommonMethods;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+public class DnsSnapshotTest {
+
+    private static final byte[] NAME = {7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0};
+    private static final int TTL_OFFSET = 12 + NAME.length + 4 + 6;
+    private static final int TTL_SECONDS = 60;
+
+    @Rule
+    public TemporaryFolder m_Folder = new TemporaryFolder();
+
+    private File m_File;
+    private int m_FakeIP;
+
+    @Before
+    public void setUp() throws Exception {
+        m_File = new File(m_Folder.getRoot(), DnsSnapshot.FILE_NAME);
+        FakeIpPool pool = newPool();
+        m_FakeIP = pool.getOrCreate(NAME, 0, NAME.length);
+        DnsCache cache = new DnsCache();
+        byte[] answer = answer();
+        DnsView view = new DnsView();
+        assertTrue(view.wrap(answer, 0, answer.length));
+        cache.put(answer, 0, answer.length, view.getQuestionNameOffset(), view.getQuestionNameLength(),
+                view.getQuestionType(), view.getQuestionClass(), view.getEdnsState(),
+                new int[]{TTL_OFFSET}, 1, TTL_SECONDS, 0);
+        DnsSnapshot.save(m_File, pool, cache);
+    }
+
+    private static FakeIpPool newPool() {
+        return new FakeIpPool(ProxyConfig.FAKE_NETWORK_IP, FakeIpPool.MIN_IDLE_NANOS);
+    }
+
+    // example.com A with one record.
+    private static byte[] answer() {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        buffer.putShort((short) 0x1234);
+        buffer.putShort((short) 0x8180);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.put(NAME);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0xC00C);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 1);
+        buffer.putInt(TTL_SECONDS);
+        buffer.putShort((short) 4);
+        buffer.put(new byte[]{93, (byte) 184, (byte) 216, 34});
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    // The TTL served for example.com A, or -1 on a miss.
+    private static int lookupTtl(DnsCache cache) {
+        byte[] data = new byte[512];
+        System.arraycopy(answer(), 0, data, 0, 12 + NAME.length + 4);
+        data[2] = 0x01;
+        data[3] = 0x00;
+        int size = cache.lookup(data, 0, 12, NAME.length, (short) 1, (short) 1, DnsView.EDNS_NONE, data.length);
+        return size == 0 ? -1 : CommonMethods.readInt(data, TTL_OFFSET);
+    }
+
+    private void assertLoadsNothing(byte[] content) throws Exception {
+        Files.write(m_File.toPath(), content);
+        FakeIpPool pool = newPool();
+        DnsCache cache = new DnsCache();
+        DnsSnapshot.load(m_File, pool, cache, System.currentTimeMillis());
+        assertEquals(0, pool.size());
+        assertEquals(0, cache.size());
+    }
+
+    private static void writeChecksum(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length - DnsSnapshot.CHECKSUM_LENGTH);
+        ByteBuffer.wrap(content).putInt(content.length - DnsSnapshot.CHECKSUM_LENGTH, (int) crc.getValue());
+    }
+
+    @Test
+    public void roundTripAgesTtls() {
+        FakeIpPool pool = newPool();
+        DnsCache cache = new DnsCache();
+        long savedMillis = System.currentTimeMillis();
+        DnsSnapshot.load(m_File, pool, cache, savedMillis + 20000);
+        assertEquals("example.com", pool.reverseLookup(m_FakeIP));
+        assertEquals(1, cache.size());
+        int ttl = lookupTtl(cache);
+        assertTrue("ttl " + ttl, ttl >= TTL_SECONDS - 21 && ttl <= TTL_SECONDS - 20);
+    }
+
+    @Test
+    public void expiredAnswersAreNotRestored() {
+        FakeIpPool pool = newPool();
+        DnsCache cache = new DnsCache();
+        DnsSnapshot.load(m_File, pool, cache, System.currentTimeMillis() + (TTL_SECONDS + 1) * 1000L);
+        assertEquals(0, cache.size());
+        assertEquals(-1, lookupTtl(cache));
+        // Fake IPs do not expire.
+        assertEquals("example.com", pool.reverseLookup(m_FakeIP));
+    }
+
+    @Test
+    public void truncatedFileLoadsNothing() throws Exception {
+        byte[] content = Files.readAllBytes(m_File.toPath());
+        for (int length = 0; length < content.length; length++) {
+            assertLoadsNothing(Arrays.copyOf(content, length));
+        }
+    }
+
+    @Test
+    public void corruptFileLoadsNothing() throws Exception {
+        byte[] content = Files.readAllBytes(m_File.toPath());
+        for (int i = 0; i < content.length; i++) {
+            byte[] corrupt = content.clone();
+            corrupt[i] ^= 0x10;
+            assertLoadsNothing(corrupt);
+        }
+        // Trailing garbage moves the checksum.
+        assertLoadsNothing(Arrays.copyOf(content, content.length + 8));
+    }
+
+    @Test
+    public void otherVersionLoadsNothing() throws Exception {
+        byte[] content = Files.readAllBytes(m_File.toPath());
+        ByteBuffer.wrap(content).putInt(4, DnsSnapshot.VERSION - 1);
+        writeChecksum(content);
+        assertLoadsNothing(content);
+
+        // The same file with the right version again loads.
+        ByteBuffer.wrap(content).putInt(4, DnsSnapshot.VERSION);
+        writeChecksum(content);
+        Files.write(m_File.toPath(), content);
+        DnsCache cache = new DnsCache();
+        DnsSnapshot.load(m_File, newPool(), cache, System.currentTimeMillis());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void missingFileLoadsNothing() {
+        assertTrue(m_File.delete());
+        FakeIpPool pool = newPool();
+        DnsCache cache = new DnsCache();
+        DnsSnapshot.load(m_File, pool, cache, System.currentTimeMillis());
+        assertEquals(0, pool.size());
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,252 @@
+package com.noharayh.otokit.vpn.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.noharayh.otokit.vpn.dns.DnsView;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class DnsTcpSessionTest {
+
+    // Queries for names starting with "local" are answered in place, the rest are forwarded.
+    private static class FakeDnsProxy extends DnsProxy {
+        final LinkedBlockingQueue<Forwarded> Forwarded = new LinkedBlockingQueue<Forwarded>();
+
+        FakeDnsProxy(EventLoop eventLoop) throws IOException {
+            super(eventLoop);
+        }
+
+        @Override
+        int onTcpQuery(DnsTcpSession session, DnsView dnsView, byte[] data, int length, int remoteIP) {
+            if (!dnsView.wrap(data, 0, length)) {
+                return -1;
+            }
+            if (dnsView.getQuestionDomain().startsWith("local")) {
+                dnsView.setFlags((short) (dnsView.getFlags() | 0x8080));
+                return length;
+            }
+            Forwarded.add(new Forwarded(session, dnsView.getID()));
+            return 0;
+        }
+    }
+
+    private static class Forwarded {
+        final DnsTcpSession Session;
+        final short ID;
+
+        Forwarded(DnsTcpSession session, short id) {
+            Session = session;
+            ID = id;
+        }
+    }
+
+    private EventLoop m_EventLoop;
+    private FakeDnsProxy m_DnsProxy;
+    private ServerSocketChannel m_Server;
+    private Socket m_Client;
+    private DataInputStream m_In;
+    private OutputStream m_Out;
+
+    @Before
+    public void setUp() throws Exception {
+        m_EventLoop = new EventLoop("DnsTcpSessionTest", null);
+        m_EventLoop.start();
+        m_DnsProxy = new FakeDnsProxy(m_EventLoop);
+        m_Server = ServerSocketChannel.open();
+        m_Server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+
+        m_Client = new Socket("127.0.0.1", m_Server.socket().getLocalPort());
+        m_Client.setSoTimeout(5000);
+        m_Client.setTcpNoDelay(true);
+        m_In = new DataInputStream(m_Client.getInputStream());
+        m_Out = m_Client.getOutputStream();
+
+        final SocketChannel channel = m_Server.accept();
+        final DnsTcpSession session = new DnsTcpSession(channel, m_EventLoop, new DnsView(), m_DnsProxy, 0x08080808);
+        final LinkedBlockingQueue<Object> started = new LinkedBlockingQueue<Object>();
+        m_EventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    session.start();
+                    started.add(session);
+                } catch (IOException e) {
+                    started.add(e);
+                }
+            }
+        });
+        assertTrue(started.poll(5, TimeUnit.SECONDS) instanceof DnsTcpSession);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        m_Client.close();
+        m_Server.close();
+        m_DnsProxy.stop();
+        m_EventLoop.stop();
+    }
+
+    private static byte[] frame(int id, String domain) {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) id);
+        buffer.putShort((short) 0x0100);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        for (String label : domain.split("\\.")) {
+            buffer.put((byte) label.length());
+            buffer.put(label.getBytes());
+        }
+        buffer.put((byte) 0);
+        buffer.putShort((short) 28);
+        buffer.putShort((short) 1);
+        buffer.putShort(0, (short) (buffer.position() - 2));
+        byte[] frame = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(frame);
+        return frame;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (byte[] part : parts) {
+            buffer.put(part);
+        }
+        return buffer.array();
+    }
+
+    private void write(byte[] data, int offset, int length) throws IOException {
+        m_Out.write(data, offset, length);
+        m_Out.flush();
+    }
+
+    // Reads one length prefixed answer and returns its ID.
+    private int readAnswer() throws IOException {
+        int length = m_In.readUnsignedShort();
+        byte[] answer = new byte[length];
+        m_In.readFully(answer);
+        assertTrue("QR bit", (answer[2] & 0x80) != 0);
+        return ((answer[0] & 0xFF) << 8) | (answer[1] & 0xFF);
+    }
+
+    private void assertClosedByServer() throws IOException {
+        assertEquals(-1, m_In.read());
+    }
+
+    private Forwarded takeForwarded() throws InterruptedException {
+        Forwarded forwarded = m_DnsProxy.Forwarded.poll(5, TimeUnit.SECONDS);
+        assertNotNull("query not forwarded", forwarded);
+        return forwarded;
+    }
+
+    private static void answer(Forwarded forwarded) {
+        byte[] answer = frame(forwarded.ID & 0xFFFF, "remote.example.com");
+        answer[4] |= (byte) 0x80;
+        forwarded.Session.sendResponse(answer, 2, answer.length - 2);
+    }
+
+    @Test
+    public void readsQueriesSplitAcrossReads() throws Exception {
+        byte[] first = frame(1, "local.example.com");
+        byte[] second = frame(2, "local.example.org");
+        byte[] data = concat(first, second);
+        // Inside the length prefix, inside the first query, and inside the second prefix.
+        int[] cuts = {1, 2, 9, first.length, first.length + 1, data.length};
+        int start = 0;
+        for (int cut : cuts) {
+            write(data, start, cut - start);
+            start = cut;
+            Thread.sleep(30);
+        }
+        assertEquals(1, readAnswer());
+        assertEquals(2, readAnswer());
+    }
+
+    @Test
+    public void answersPipelinedQueriesInOrder() throws Exception {
+        byte[] data = concat(frame(1, "local.a.com"), frame(2, "local.b.com"), frame(3, "local.c.com"),
+                frame(4, "local.d.com"), frame(5, "local.e.com"));
+        write(data, 0, data.length);
+        for (int id = 1; id <= 5; id++) {
+            assertEquals(id, readAnswer());
+        }
+    }
+
+    @Test
+    public void deliversForwardedAnswersAsTheyArrive() throws Exception {
+        byte[] data = concat(frame(1, "remote.a.com"), frame(2, "local.b.com"), frame(3, "remote.c.com"));
+        write(data, 0, data.length);
+        assertEquals(2, readAnswer());
+        Forwarded first = takeForwarded();
+        Forwarded third = takeForwarded();
+        answer(third);
+        assertEquals(3, readAnswer());
+        answer(first);
+        assertEquals(1, readAnswer());
+    }
+
+    @Test
+    public void staysOpenAfterEofUntilForwardedQueriesAreDone() throws Exception {
+        byte[] data = concat(frame(1, "remote.a.com"), frame(2, "remote.b.com"), frame(3, "local.c.com"));
+        write(data, 0, data.length);
+        m_Client.shutdownOutput();
+        assertEquals(3, readAnswer());
+
+        Forwarded first = takeForwarded();
+        Forwarded second = takeForwarded();
+        answer(first);
+        assertEquals(1, readAnswer());
+        // One query is still outstanding, so the session must not close yet.
+        m_Client.setSoTimeout(200);
+        try {
+            m_In.read();
+            throw new AssertionError("closed with a query outstanding");
+        } catch (SocketTimeoutException expected) {
+            // Still open.
+        }
+        m_Client.setSoTimeout(5000);
+        second.Session.onQueryFailed();
+        assertClosedByServer();
+    }
+
+    @Test
+    public void closesAfterEofWhenNothingIsOutstanding() throws Exception {
+        byte[] data = frame(1, "local.a.com");
+        write(data, 0, data.length);
+        m_Client.shutdownOutput();
+        assertEquals(1, readAnswer());
+        assertClosedByServer();
+    }
+
+    @Test
+    public void dropsTheConnectionOnAnOversizedQuery() throws Exception {
+        byte[] data = frame(1, "local.a.com");
+        write(data, 0, data.length);
+        assertEquals(1, readAnswer());
+        byte[] oversized = {(byte) 0x7F, (byte) 0xFF, 0, 0};
+        write(oversized, 0, oversized.length);
+        assertClosedByServer();
+    }
+}
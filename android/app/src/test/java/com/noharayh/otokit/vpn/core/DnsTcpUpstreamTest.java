@@ -0,0 +1,282 @@
+package com.noharayh.otokit.vpn.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.noharayh.otokit.vpn.dns.DnsView;
+import com.noharayh.otokit.vpn.tcpip.CommonMethods;
+import com.noharayh.otokit.vpn.tcpip.IPHeader;
+import com.noharayh.otokit.vpn.tcpip.UDPHeader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs truncated UDP answers through {@link DnsProxy} against local stand-in
+ * upstreams, so the retry goes over a real {@link DnsTcpUpstream} connection.
+ */
+public class DnsTcpUpstreamTest {
+
+    private static final int CLIENT_IP = CommonMethods.ipStringToInt("10.8.0.2");
+    private static final int LOOPBACK_IP = CommonMethods.ipStringToInt("127.0.0.1");
+
+    // Captures what DnsProxy sends back to the TUN side.
+    private static class FakeVpnService extends LocalVpnService {
+        final LinkedBlockingQueue<byte[]> Answers = new LinkedBlockingQueue<byte[]>();
+
+        @Override
+        public boolean protect(Socket socket) {
+            return true;
+        }
+
+        @Override
+        public boolean protect(DatagramSocket socket) {
+            return true;
+        }
+
+        @Override
+        public void sendUDPPacket(IPHeader ipHeader, UDPHeader udpHeader) {
+            int length = udpHeader.getTotalLength() - 8;
+            int offset = udpHeader.m_Offset + 8;
+            Answers.add(Arrays.copyOfRange(udpHeader.m_Data, offset, offset + length));
+        }
+    }
+
+    private FakeVpnService m_VpnService;
+    private EventLoop m_EventLoop;
+    private DnsProxy m_DnsProxy;
+    private DatagramSocket m_UdpUpstream;
+    private ServerSocket m_TcpUpstream;
+
+    @Before
+    public void setUp() throws Exception {
+        m_VpnService = new FakeVpnService();
+        LocalVpnService.Instance = m_VpnService;
+        m_UdpUpstream = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+        m_UdpUpstream.setSoTimeout(5000);
+        m_TcpUpstream = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        m_TcpUpstream.setSoTimeout(5000);
+
+        m_EventLoop = new EventLoop("DnsTcpUpstreamTest", null);
+        m_DnsProxy = new DnsProxy(m_EventLoop, m_TcpUpstream.getLocalPort());
+        m_EventLoop.start();
+        m_DnsProxy.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        m_DnsProxy.stop();
+        m_EventLoop.stop();
+        m_UdpUpstream.close();
+        m_TcpUpstream.close();
+        LocalVpnService.Instance = null;
+    }
+
+    private static void putName(ByteBuffer buffer, String domain) {
+        for (String label : domain.split("\\.")) {
+            buffer.put((byte) label.length());
+            buffer.put(label.getBytes());
+        }
+        buffer.put((byte) 0);
+    }
+
+    // An AAAA query with RD and CD set and an OPT record asking for DNSSEC (DO).
+    private static byte[] query(int id, String domain) {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        buffer.putShort((short) id);
+        buffer.putShort((short) 0x0110);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 1);
+        putName(buffer, domain);
+        buffer.putShort((short) 28);
+        buffer.putShort((short) 1);
+        buffer.put((byte) 0);
+        buffer.putShort((short) DnsView.TYPE_OPT);
+        buffer.putShort((short) 1232);
+        buffer.putInt(0x8000);
+        buffer.putShort((short) 0);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    // The question of the query, with the header turned into a response.
+    private static byte[] truncatedAnswer(byte[] query) {
+        DnsView view = new DnsView();
+        assertTrue(view.wrap(query, 0, query.length));
+        byte[] answer = Arrays.copyOf(query, view.getQuestionEnd());
+        CommonMethods.writeShort(answer, 2, (short) (0x8000 | 0x0200 | (query[2] & 0xFF) << 8 | 0x80));
+        CommonMethods.writeShort(answer, 10, (short) 0);
+        return answer;
+    }
+
+    private static byte[] fullAnswer(byte[] query, int lastAddressByte) {
+        DnsView view = new DnsView();
+        assertTrue(view.wrap(query, 0, query.length));
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        buffer.put(query, 0, view.getQuestionEnd());
+        buffer.putShort(2, (short) (0x8000 | (query[2] & 0xFF) << 8 | 0x80));
+        buffer.putShort(6, (short) 1);
+        buffer.putShort(10, (short) 0);
+        buffer.putShort((short) 0xC00C);
+        buffer.putShort((short) 28);
+        buffer.putShort((short) 1);
+        buffer.putInt(60);
+        buffer.putShort((short) 16);
+        byte[] address = new byte[16];
+        address[0] = 0x20;
+        address[1] = 0x01;
+        address[15] = (byte) lastAddressByte;
+        buffer.put(address);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private void sendFromClient(byte[] query) {
+        byte[] packet = new byte[28 + 1024];
+        IPHeader ipHeader = new IPHeader(packet, 0);
+        ipHeader.Default();
+        ipHeader.setSourceIP(CLIENT_IP);
+        ipHeader.setDestinationIP(LOOPBACK_IP);
+        ipHeader.setProtocol(IPHeader.UDP);
+        ipHeader.setTotalLength(28 + query.length);
+        UDPHeader udpHeader = new UDPHeader(packet, 20);
+        udpHeader.setSourcePort((short) 40000);
+        udpHeader.setDestinationPort((short) m_UdpUpstream.getLocalPort());
+        udpHeader.setTotalLength(8 + query.length);
+        System.arraycopy(query, 0, packet, 28, query.length);
+
+        DnsView view = new DnsView();
+        assertTrue(view.wrap(packet, 28, query.length));
+        m_DnsProxy.onDnsRequestReceived(ipHeader, udpHeader, view);
+    }
+
+    // Receives one query on the UDP stand-in and answers it truncated.
+    private byte[] answerTruncated() throws Exception {
+        DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+        m_UdpUpstream.receive(packet);
+        byte[] sent = Arrays.copyOf(packet.getData(), packet.getLength());
+        byte[] answer = truncatedAnswer(sent);
+        m_UdpUpstream.send(new DatagramPacket(answer, answer.length, packet.getSocketAddress()));
+        return sent;
+    }
+
+    private static byte[] readFrame(DataInputStream in) throws Exception {
+        byte[] frame = new byte[in.readUnsignedShort()];
+        in.readFully(frame);
+        return frame;
+    }
+
+    private byte[] takeAnswer() throws Exception {
+        byte[] answer = m_VpnService.Answers.poll(5, TimeUnit.SECONDS);
+        assertNotNull("no answer delivered", answer);
+        return answer;
+    }
+
+    private static int id(byte[] message) {
+        return CommonMethods.readShort(message, 0) & 0xFFFF;
+    }
+
+    @Test
+    public void retriesTruncatedAnswersWithTheOriginalQuery() throws Exception {
+        byte[] query = query(0x4242, "retry.tcp-upstream.test");
+        sendFromClient(query);
+        byte[] sent = answerTruncated();
+        assertEquals(query.length, sent.length);
+
+        Socket connection = m_TcpUpstream.accept();
+        connection.setSoTimeout(5000);
+        DataInputStream in = new DataInputStream(connection.getInputStream());
+        byte[] retried = readFrame(in);
+        // Same upstream ID, CD flag and OPT record with DO as the UDP query.
+        assertArrayEquals(sent, retried);
+        assertEquals(0x0110, CommonMethods.readShort(retried, 2) & 0xFFFF);
+        DnsView view = new DnsView();
+        assertTrue(view.wrap(retried, 0, retried.length));
+        assertEquals(DnsView.EDNS_DO, view.getEdnsState());
+
+        OutputStream out = connection.getOutputStream();
+        byte[] answer = fullAnswer(retried, 1);
+        out.write(answer.length >>> 8);
+        out.write(answer.length);
+        out.write(answer);
+        out.flush();
+
+        byte[] delivered = takeAnswer();
+        assertEquals(0x4242, id(delivered));
+        assertEquals(0, delivered[2] & 0x02);
+        assertEquals(1, CommonMethods.readShort(delivered, 6));
+        assertEquals(1, delivered[delivered.length - 1]);
+        connection.close();
+    }
+
+    @Test
+    public void pipelinesRetriesOnOneConnectionAndReadsSplitAnswers() throws Exception {
+        String[] names = {"a.pipelined.test", "b.pipelined.test", "c.pipelined.test"};
+        HashMap<Integer, Integer> clientIDs = new HashMap<Integer, Integer>();
+        for (int i = 0; i < names.length; i++) {
+            sendFromClient(query(0x100 + i, names[i]));
+            byte[] sent = answerTruncated();
+            clientIDs.put(id(sent), 0x100 + i);
+        }
+
+        Socket connection = m_TcpUpstream.accept();
+        connection.setSoTimeout(5000);
+        DataInputStream in = new DataInputStream(connection.getInputStream());
+        byte[][] retried = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            retried[i] = readFrame(in);
+            assertTrue(clientIDs.containsKey(id(retried[i])));
+        }
+
+        // Answer in reverse order, as one stream cut inside a length prefix and inside a message.
+        ByteBuffer stream = ByteBuffer.allocate(4096);
+        for (int i = names.length - 1; i >= 0; i--) {
+            byte[] answer = fullAnswer(retried[i], i + 1);
+            stream.putShort((short) answer.length);
+            stream.put(answer);
+        }
+        byte[] data = Arrays.copyOf(stream.array(), stream.position());
+        OutputStream out = connection.getOutputStream();
+        int[] cuts = {1, 20, data.length / 2, data.length};
+        int start = 0;
+        for (int cut : cuts) {
+            out.write(data, start, cut - start);
+            out.flush();
+            start = cut;
+            Thread.sleep(30);
+        }
+
+        for (int i = names.length - 1; i >= 0; i--) {
+            byte[] delivered = takeAnswer();
+            assertEquals((int) clientIDs.get(id(retried[i])), id(delivered));
+            assertEquals(i + 1, delivered[delivered.length - 1]);
+        }
+        // Only one connection per upstream address.
+        m_TcpUpstream.setSoTimeout(200);
+        try {
+            m_TcpUpstream.accept().close();
+            throw new AssertionError("second connection to the same upstream");
+        } catch (SocketTimeoutException expected) {
+            // No further connection.
+        }
+        connection.close();
+    }
+}
@@ -0,0 +1,113 @@
+package com.noharayh.otokit.vpn.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.noharayh.otokit.vpn.tcpip.CommonMethods;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+public class DnsUpstreamsTest {
+
+    private static final long MS = 1000000L;
+
+    private static DnsUpstreams upstreams(String... addresses) {
+        ArrayList<ProxyConfig.IPAddress> list = new ArrayList<ProxyConfig.IPAddress>();
+        for (String address : addresses) {
+            list.add(ProxyConfig.Instance.new IPAddress(address));
+        }
+        return new DnsUpstreams(list);
+    }
+
+    private static DnsUpstreams.Upstream[] rank(DnsUpstreams upstreams) {
+        DnsUpstreams.Upstream[] order = new DnsUpstreams.Upstream[upstreams.size()];
+        upstreams.rank(order);
+        return order;
+    }
+
+    private static DnsUpstreams.Upstream find(DnsUpstreams upstreams, String address) {
+        return upstreams.find(CommonMethods.ipStringToInt(address));
+    }
+
+    @Test
+    public void keepsConfiguredOrderUntilThereAreStatistics() {
+        DnsUpstreams upstreams = upstreams("10.0.0.1", "10.0.0.2", "10.0.0.3");
+        DnsUpstreams.Upstream[] order = rank(upstreams);
+        assertSame(find(upstreams, "10.0.0.1"), order[0]);
+        assertSame(find(upstreams, "10.0.0.2"), order[1]);
+        assertSame(find(upstreams, "10.0.0.3"), order[2]);
+        assertEquals(53, order[0].Address.getPort());
+    }
+
+    @Test
+    public void ranksByRoundTripTime() {
+        DnsUpstreams upstreams = upstreams("10.0.0.1", "10.0.0.2", "10.0.0.3");
+        DnsUpstreams.Upstream slow = find(upstreams, "10.0.0.1");
+        DnsUpstreams.Upstream fast = find(upstreams, "10.0.0.2");
+        DnsUpstreams.Upstream fresh = find(upstreams, "10.0.0.3");
+        for (int i = 0; i < 10; i++) {
+            upstreams.onAnswer(slow, 400 * MS);
+            upstreams.onAnswer(fast, 20 * MS);
+        }
+        DnsUpstreams.Upstream[] order = rank(upstreams);
+        assertSame(fast, order[0]);
+        // Never asked, so it still sits at INITIAL_RTT_NANOS, between the two.
+        assertSame(fresh, order[1]);
+        assertSame(slow, order[2]);
+    }
+
+    @Test
+    public void lossesPushAFastUpstreamDown() {
+        DnsUpstreams upstreams = upstreams("10.0.0.1", "10.0.0.2");
+        DnsUpstreams.Upstream lossy = find(upstreams, "10.0.0.1");
+        DnsUpstreams.Upstream steady = find(upstreams, "10.0.0.2");
+        upstreams.onAnswer(lossy, 30 * MS);
+        upstreams.onAnswer(steady, 60 * MS);
+        assertSame(lossy, rank(upstreams)[0]);
+
+        for (int i = 0; i < 5; i++) {
+            upstreams.onLoss(lossy);
+        }
+        assertSame(steady, rank(upstreams)[0]);
+
+        // Answers decay the loss rate again.
+        for (int i = 0; i < 40; i++) {
+            upstreams.onAnswer(lossy, 30 * MS);
+        }
+        assertSame(lossy, rank(upstreams)[0]);
+    }
+
+    @Test
+    public void smoothsRoundTripTimes() {
+        DnsUpstreams upstreams = upstreams("10.0.0.1");
+        DnsUpstreams.Upstream upstream = find(upstreams, "10.0.0.1");
+        upstreams.onAnswer(upstream, 80 * MS);
+        assertEquals(80 * MS, upstream.SrttNanos);
+        assertEquals(40 * MS, upstream.RttVarNanos);
+
+        // One outlier moves SRTT by an eighth of the difference.
+        upstreams.onAnswer(upstream, 880 * MS);
+        assertEquals(180 * MS, upstream.SrttNanos);
+        assertEquals(230 * MS, upstream.RttVarNanos);
+    }
+
+    @Test
+    public void clampsTheStagger() {
+        DnsUpstreams upstreams = upstreams("10.0.0.1", "10.0.0.2", "10.0.0.3");
+        DnsUpstreams.Upstream fast = find(upstreams, "10.0.0.1");
+        DnsUpstreams.Upstream slow = find(upstreams, "10.0.0.2");
+        DnsUpstreams.Upstream fresh = find(upstreams, "10.0.0.3");
+        for (int i = 0; i < 20; i++) {
+            upstreams.onAnswer(fast, MS);
+            upstreams.onAnswer(slow, 3000 * MS);
+        }
+        assertEquals(DnsUpstreams.MIN_STAGGER_NANOS, upstreams.getStaggerNanos(fast));
+        assertEquals(DnsUpstreams.MAX_STAGGER_NANOS, upstreams.getStaggerNanos(slow));
+        long initial = DnsUpstreams.INITIAL_RTT_NANOS * 2;
+        assertTrue(initial > DnsUpstreams.MIN_STAGGER_NANOS && initial < DnsUpstreams.MAX_STAGGER_NANOS);
+        assertEquals(initial, upstreams.getStaggerNanos(fresh));
+    }
+}
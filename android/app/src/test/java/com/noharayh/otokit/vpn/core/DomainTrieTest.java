@@ -0,0 +1,212 @@
+package com.noharayh.otokit.vpn.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Random;
+
+public class DomainTrieTest {
+
+    private static final int NO_MATCH = DomainTrie.NO_MATCH;
+
+    private static byte[] wire(String domain) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (domain.length() > 0) {
+            for (String label : domain.split("\\.")) {
+                byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+                out.write(bytes.length);
+                out.write(bytes, 0, bytes.length);
+            }
+        }
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    // Matches both ways, checking the two paths agree.
+    private static int match(DomainTrie trie, String host) {
+        int value = trie.match(host);
+        byte[] name = wire(host);
+        // Put the name in the middle of a larger message, as a DNS question would be.
+        byte[] message = new byte[name.length + 20];
+        System.arraycopy(name, 0, message, 12, name.length);
+        assertEquals(host, value, trie.match(message, 12, name.length));
+        return value;
+    }
+
+    private static DomainTrie trie(String... rules) {
+        DomainTrie.Builder builder = new DomainTrie.Builder();
+        for (int i = 0; i < rules.length; i++) {
+            builder.add(rules[i], i);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void suffixRuleMatchesDomainAndSubdomains() {
+        DomainTrie trie = trie("example.com", ".example.org");
+        assertEquals(0, match(trie, "example.com"));
+        assertEquals(0, match(trie, "www.example.com"));
+        assertEquals(0, match(trie, "a.b.example.com"));
+        assertEquals(1, match(trie, "example.org"));
+        assertEquals(1, match(trie, "www.example.org"));
+        assertEquals(NO_MATCH, match(trie, "com"));
+        assertEquals(NO_MATCH, match(trie, "badexample.com"));
+        assertEquals(NO_MATCH, match(trie, "example.com.cn"));
+        assertEquals(NO_MATCH, match(trie, ""));
+    }
+
+    @Test
+    public void wildcardRuleMatchesSubdomainsOnly() {
+        DomainTrie trie = trie("*.example.com");
+        assertEquals(NO_MATCH, match(trie, "example.com"));
+        assertEquals(0, match(trie, "www.example.com"));
+        assertEquals(0, match(trie, "a.b.example.com"));
+    }
+
+    @Test
+    public void exactRuleMatchesDomainOnly() {
+        DomainTrie trie = trie("=example.com");
+        assertEquals(0, match(trie, "example.com"));
+        assertEquals(NO_MATCH, match(trie, "www.example.com"));
+    }
+
+    @Test
+    public void wildcardAndExactCombine() {
+        DomainTrie trie = trie("*.example.com", "=example.com");
+        assertEquals(1, match(trie, "example.com"));
+        assertEquals(0, match(trie, "www.example.com"));
+    }
+
+    @Test
+    public void mostSpecificRuleWins() {
+        DomainTrie trie = trie("com", "example.com", "=www.example.com", "*.cdn.example.com");
+        assertEquals(0, match(trie, "other.com"));
+        assertEquals(1, match(trie, "example.com"));
+        assertEquals(1, match(trie, "mail.example.com"));
+        assertEquals(2, match(trie, "www.example.com"));
+        // The exact rule does not cover its subdomains, the suffix rule above does.
+        assertEquals(1, match(trie, "a.www.example.com"));
+        // Nor does the wildcard cover its own domain.
+        assertEquals(1, match(trie, "cdn.example.com"));
+        assertEquals(3, match(trie, "img.cdn.example.com"));
+        // Deeper than any rule, the deepest match on the way down wins.
+        assertEquals(3, match(trie, "x.y.img.cdn.example.com"));
+    }
+
+    @Test
+    public void laterRuleReplacesEarlier() {
+        DomainTrie trie = trie("example.com", "example.com.", ".EXAMPLE.com");
+        assertEquals(2, match(trie, "www.example.com"));
+        assertEquals(3, trie.getRuleCount());
+    }
+
+    @Test
+    public void ignoresCaseAndTrailingDot() {
+        DomainTrie trie = trie("Example.COM");
+        assertEquals(0, match(trie, "WWW.example.Com"));
+        assertEquals(0, trie.match("www.example.com."));
+    }
+
+    @Test
+    public void skipsMalformedRules() {
+        DomainTrie.Builder builder = new DomainTrie.Builder();
+        builder.add("", 1).add("  ", 1).add("*.", 1).add("=", 1).add("a..com", 1)
+                .add("bé.com", 1).add(new String(new char[64]).replace('\0', 'x') + ".com", 1);
+        DomainTrie trie = builder.build();
+        assertEquals(0, trie.getRuleCount());
+        assertEquals(NO_MATCH, match(trie, "com"));
+        assertEquals(NO_MATCH, trie.match("bé.com"));
+    }
+
+    @Test
+    public void rejectsMalformedWireNames() {
+        DomainTrie trie = trie("example.com");
+        byte[] name = wire("www.example.com");
+        // Truncated before the root label.
+        assertEquals(NO_MATCH, trie.match(name, 0, name.length - 3));
+        // A compression pointer.
+        byte[] pointer = {3, 'w', 'w', 'w', (byte) 0xC0, 12};
+        assertEquals(NO_MATCH, trie.match(pointer, 0, pointer.length));
+        // A length byte running past the end.
+        byte[] overrun = {7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 30, 'c', 'o', 'm', 0};
+        assertEquals(NO_MATCH, trie.match(overrun, 0, overrun.length));
+        // Case differs only on the wire.
+        assertEquals(0, trie.match(wire("WWW.EXAMPLE.COM"), 0, name.length));
+    }
+
+    @Test
+    public void agreesWithMapLookupOnManyRules() {
+        Random random = new Random(7);
+        String[] labels = new String[40];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = "l" + Integer.toString(i, 36) + (i % 3 == 0 ? "-x" : "");
+        }
+
+        DomainTrie.Builder builder = new DomainTrie.Builder();
+        HashMap<String, Integer> selfValues = new HashMap<String, Integer>();
+        HashMap<String, Integer> subValues = new HashMap<String, Integer>();
+        for (int i = 0; i < 10000; i++) {
+            String domain = randomDomain(random, labels, 1 + random.nextInt(4));
+            int kind = random.nextInt(4);
+            if (kind == 0) {
+                builder.add("*." + domain, i);
+                subValues.put(domain, i);
+            } else if (kind == 1) {
+                builder.add("=" + domain, i);
+                selfValues.put(domain, i);
+            } else {
+                builder.add(kind == 2 ? domain : "." + domain, i);
+                selfValues.put(domain, i);
+                subValues.put(domain, i);
+            }
+        }
+        DomainTrie trie = builder.build();
+        assertEquals(10000, trie.getRuleCount());
+
+        int matched = 0;
+        for (int i = 0; i < 20000; i++) {
+            String host = randomDomain(random, labels, 1 + random.nextInt(6));
+            int expected = mapLookup(selfValues, subValues, host);
+            assertEquals(host, expected, match(trie, host));
+            if (expected != NO_MATCH) {
+                matched++;
+            }
+        }
+        // Make sure the comparison is not all misses.
+        assertTrue(matched > 2000);
+    }
+
+    private static String randomDomain(Random random, String[] labels, int labelCount) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labelCount; i++) {
+            if (i > 0) {
+                sb.append('.');
+            }
+            // Skewed so that rules share suffixes.
+            sb.append(labels[Math.min(random.nextInt(labels.length), random.nextInt(labels.length))]);
+        }
+        return sb.toString();
+    }
+
+    private static int mapLookup(HashMap<String, Integer> selfValues, HashMap<String, Integer> subValues, String host) {
+        String suffix = host;
+        boolean whole = true;
+        while (true) {
+            Integer value = whole ? selfValues.get(suffix) : subValues.get(suffix);
+            if (value != null) {
+                return value;
+            }
+            int dot = suffix.indexOf('.');
+            if (dot < 0) {
+                return NO_MATCH;
+            }
+            suffix = suffix.substring(dot + 1);
+            whole = false;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.noharayh.otokit.vpn.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class FakeIpPoolTest {
+
+    private static final int NETWORK_IP = ProxyConfig.FAKE_NETWORK_IP;
+    private static final int CAPACITY = FakeIpPool.SLOT_COUNT - 2;
+
+    private static byte[] wire(String domain) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String label : domain.split("\\.")) {
+            byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+            out.write(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    private static String domain(int i) {
+        return "d" + i + ".example.com";
+    }
+
+    private static int get(FakeIpPool pool, String domain) {
+        byte[] name = wire(domain);
+        return pool.getOrCreate(name, 0, name.length);
+    }
+
+    private static int[] fill(FakeIpPool pool, int count) {
+        int[] ips = new int[count];
+        for (int i = 0; i < count; i++) {
+            ips[i] = get(pool, domain(i));
+            assertNotEquals(0, ips[i]);
+        }
+        return ips;
+    }
+
+    @Test
+    public void allocatesFarMoreThanTheAddressSpace() {
+        FakeIpPool pool = new FakeIpPool(NETWORK_IP, 0);
+        int total = 200000;
+        for (int i = 0; i < total; i++) {
+            String domain = domain(i);
+            int ip = get(pool, domain);
+            assertTrue(pool.contains(ip));
+            int slot = ip & 0xFFFF;
+            assertTrue("slot " + slot, slot != 0 && slot != 0xFFFF);
+            assertEquals(domain, pool.reverseLookup(ip));
+            // Asking again for a live name returns the same address.
+            assertEquals(ip, get(pool, domain));
+        }
+        assertEquals(CAPACITY, pool.size());
+        assertEquals(total - CAPACITY, pool.getRecycleCount());
+        assertEquals(0, pool.getExhaustedCount());
+
+        // The most recent names are all still mapped, each to its own address.
+        boolean[] seen = new boolean[FakeIpPool.SLOT_COUNT];
+        for (int i = total - CAPACITY; i < total; i++) {
+            int ip = get(pool, domain(i));
+            assertEquals(domain(i), pool.reverseLookup(ip));
+            assertTrue(!seen[ip & 0xFFFF]);
+            seen[ip & 0xFFFF] = true;
+        }
+        assertEquals(total - CAPACITY, pool.getRecycleCount());
+    }
+
+    @Test
+    public void recyclesTheLeastRecentlyUsedAddress() {
+        FakeIpPool pool = new FakeIpPool(NETWORK_IP, 0);
+        int[] ips = fill(pool, CAPACITY);
+        // Looking domain(0..2) up again makes domain(3) the oldest.
+        for (int i = 0; i < 3; i++) {
+            assertEquals(ips[i], get(pool, domain(i)));
+        }
+        int reused = get(pool, "new.example.com");
+        assertEquals(ips[3], reused);
+        assertEquals("new.example.com", pool.reverseLookup(reused));
+        assertEquals(ips[4], get(pool, "newer.example.com"));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(domain(i), pool.reverseLookup(ips[i]));
+        }
+        assertEquals(2, pool.getRecycleCount());
+    }
+
+    @Test
+    public void neverRecyclesPinnedAddresses() {
+        FakeIpPool pool = new FakeIpPool(NETWORK_IP, 0);
+        int[] pinned = new int[100];
+        for (int i = 0; i < pinned.length; i++) {
+            pinned[i] = get(pool, domain(i));
+            pool.retain(pinned[i]);
+        }
+        for (int i = pinned.length; i < 3 * CAPACITY; i++) {
+            get(pool, domain(i));
+        }
+        // A lookup only fails when more than MAX_EVICT_SCAN pinned addresses sit at
+        // the head of the LRU list, which here happens about once per cycle.
+        assertTrue(pool.getExhaustedCount() <= 3);
+        assertTrue(pool.getRecycleCount() > 2 * CAPACITY - pinned.length - 3);
+        for (int i = 0; i < pinned.length; i++) {
+            assertEquals(domain(i), pool.reverseLookup(pinned[i]));
+            assertEquals(pinned[i], get(pool, domain(i)));
+        }
+
+        // Once released, they age out like any other address.
+        for (int ip : pinned) {
+            pool.release(ip);
+        }
+        for (int i = 0; i < CAPACITY; i++) {
+            get(pool, "late" + i + ".example.com");
+        }
+        for (int i = 0; i < pinned.length; i++) {
+            assertNotEquals(domain(i), pool.reverseLookup(pinned[i]));
+        }
+    }
+
+    @Test
+    public void reportsExhaustionInsteadOfStealingAddresses() {
+        FakeIpPool pinnedPool = new FakeIpPool(NETWORK_IP, 0);
+        for (int i = 0; i < CAPACITY; i++) {
+            pinnedPool.retain(get(pinnedPool, domain(i)));
+        }
+        assertEquals(0, get(pinnedPool, "one.more.com"));
+        assertEquals(1, pinnedPool.getExhaustedCount());
+
+        FakeIpPool freshPool = new FakeIpPool(NETWORK_IP, Long.MAX_VALUE / 2);
+        fill(freshPool, CAPACITY);
+        assertEquals(0, get(freshPool, "one.more.com"));
+        assertEquals(0, freshPool.getRecycleCount());
+    }
+
+    @Test
+    public void matchesNamesIgnoringCase() {
+        FakeIpPool pool = new FakeIpPool(NETWORK_IP, 0);
+        int ip = get(pool, "WWW.Example.COM");
+        assertEquals(ip, get(pool, "www.example.com"));
+        assertEquals("www.example.com", pool.reverseLookup(ip));
+        assertNull(pool.reverseLookup(NETWORK_IP | 0x1234));
+        assertNull(pool.reverseLookup(0x01020304));
+    }
+
+    @Test
+    public void rejectsOverlongNames() {
+        FakeIpPool pool = new FakeIpPool(NETWORK_IP, 0);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            sb.append(i > 0 ? "." : "").append(String.format("%063d", i));
+        }
+        byte[] name = wire(sb.toString());
+        assertTrue(name.length > FakeIpPool.MAX_NAME_LENGTH);
+        assertEquals(0, pool.getOrCreate(name, 0, name.length));
+        assertEquals(0, pool.size());
+
+        byte[] longest = wire(sb.substring(0, 253));
+        assertEquals(FakeIpPool.MAX_NAME_LENGTH, longest.length);
+        assertNotEquals(0, pool.getOrCreate(longest, 0, longest.length));
+    }
+
+    @Test
+    public void saveAndRestoreKeepAddresses() throws Exception {
+        FakeIpPool pool = new FakeIpPool(NETWORK_IP, 0);
+        int count = 70000;
+        fill(pool, count);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        pool.save(new DataOutputStream(bytes));
+
+        FakeIpPool restored = new FakeIpPool(NETWORK_IP, 0);
+        ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray());
+        assertEquals(CAPACITY, restored.restore(in));
+        assertEquals(0, in.remaining());
+        for (int i = count - CAPACITY; i < count; i++) {
+            int ip = get(pool, domain(i));
+            assertEquals(domain(i), restored.reverseLookup(ip));
+            assertEquals(ip, get(restored, domain(i)));
+        }
+        assertEquals(0, restored.getRecycleCount());
+
+        // The LRU order survives: the least recently used name is recycled first.
+        int touched = get(pool, domain(count - CAPACITY));
+        FakeIpPool ordered = new FakeIpPool(NETWORK_IP, 0);
+        bytes.reset();
+        pool.save(new DataOutputStream(bytes));
+        ordered.restore(ByteBuffer.wrap(bytes.toByteArray()));
+        int reused = get(ordered, "new.example.com");
+        assertEquals(domain(count - CAPACITY + 1), pool.reverseLookup(reused));
+        assertEquals(domain(count - CAPACITY), ordered.reverseLookup(touched));
+    }
+
+    @Test
+    public void restoreKeepsAddressesTakenSinceStart() throws Exception {
+        FakeIpPool pool = new FakeIpPool(NETWORK_IP, 0);
+        int ip = get(pool, "saved.example.com");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        pool.save(new DataOutputStream(bytes));
+
+        FakeIpPool restored = new FakeIpPool(NETWORK_IP, 0);
+        int taken = get(restored, "fresh.example.com");
+        assertEquals(ip, taken);
+        assertEquals(0, restored.restore(ByteBuffer.wrap(bytes.toByteArray())));
+        assertEquals("fresh.example.com", restored.reverseLookup(taken));
+        assertNotEquals(ip, get(restored, "saved.example.com"));
+    }
+
+    @Test
+    public void restoreRejectsMisalignedRecords() throws Exception {
+        // What an over-long name used to produce: a length byte truncated to 300 & 0xFF.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(2);
+        out.writeShort(5);
+        out.writeByte(300);
+        byte[] name = new byte[300];
+        name[0] = 63;
+        out.write(name);
+        out.writeShort(6);
+        byte[] next = wire("ok.example.com");
+        out.writeByte(next.length);
+        out.write(next);
+
+        FakeIpPool pool = new FakeIpPool(NETWORK_IP, 0);
+        try {
+            pool.restore(ByteBuffer.wrap(bytes.toByteArray()));
+            fail("misaligned record accepted");
+        } catch (IllegalArgumentException expected) {
+            // The snapshot is dropped as a whole by DnsSnapshot.
+        }
+        assertEquals(0, pool.size());
+    }
+}
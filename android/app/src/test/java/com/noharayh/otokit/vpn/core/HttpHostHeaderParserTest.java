@@ -0,0 +1,163 @@
+package com.noharayh.otokit.vpn.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+public class HttpHostHeaderParserTest {
+
+    private static final String REQUEST = "GET /index.html HTTP/1.1\r\n"
+            + "User-Agent: test\r\n"
+            + "Host: www.example.com:8080\r\n"
+            + "Accept: */*\r\n"
+            + "\r\n";
+
+    private static String parse(String request) {
+        byte[] data = request.getBytes(StandardCharsets.ISO_8859_1);
+        return HttpHostHeaderParser.getHttpHost(data, 0, data.length);
+    }
+
+    @Test
+    public void parsesHostAndStripsPort() {
+        assertEquals("www.example.com", parse(REQUEST));
+        assertEquals("example.com", parse("POST / HTTP/1.1\nhost:example.com\n\n"));
+        assertEquals("example.com", parse("GET / HTTP/1.1\r\nHOST \t:  example.com:  \r\n\r\n"));
+        assertEquals("example.com", parse("GET / HTTP/1.1\r\nHost: example.com:\r\n\r\n"));
+        assertEquals("::1", parse("GET / HTTP/1.1\r\nHost: [::1]:80\r\n\r\n"));
+    }
+
+    @Test
+    public void parsesAtAnOffset() {
+        byte[] request = REQUEST.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] data = new byte[request.length + 20];
+        Arrays.fill(data, (byte) 'x');
+        System.arraycopy(request, 0, data, 7, request.length);
+        assertEquals("www.example.com", HttpHostHeaderParser.parseHost(data, 7, request.length));
+    }
+
+    @Test
+    public void truncatedRequestYieldsNullUntilHostLineIsComplete() {
+        byte[] data = REQUEST.getBytes(StandardCharsets.ISO_8859_1);
+        int hostLineEnd = REQUEST.indexOf("\r\nAccept") + 2;
+        for (int count = 0; count <= data.length; count++) {
+            String host = HttpHostHeaderParser.getHttpHost(data, 0, count);
+            if (count < hostLineEnd) {
+                assertNull("count " + count, host);
+            } else {
+                assertEquals("count " + count, "www.example.com", host);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsMalformedRequestLines() {
+        assertNull(parse("GE"));
+        assertNull(parse("GET"));
+        assertNull(parse("GET / HTTP/1.1"));
+        assertNull(parse("GETX / HTTP/1.1\r\nHost: example.com\r\n\r\n"));
+        assertNull(parse("get / HTTP/1.1\r\nHost: example.com\r\n\r\n"));
+        assertNull(parse("\r\nGET / HTTP/1.1\r\nHost: example.com\r\n\r\n"));
+        assertNull(HttpHostHeaderParser.parseHost(new byte[]{'Z', 'G', 'E', 'T'}, 0, 4));
+    }
+
+    @Test
+    public void rejectsMalformedHostValues() {
+        assertNull(parse("GET / HTTP/1.1\r\nHost:\r\n\r\n"));
+        assertNull(parse("GET / HTTP/1.1\r\nHost: \r\n\r\n"));
+        assertNull(parse("GET / HTTP/1.1\r\nHost: :80\r\n\r\n"));
+        assertNull(parse("GET / HTTP/1.1\r\nHost: example.com:80x\r\n\r\n"));
+        assertNull(parse("GET / HTTP/1.1\r\nHost: exa mple.com\r\n\r\n"));
+        assertNull(parse("GET / HTTP/1.1\r\nHost: exa\u0001mple.com\r\n\r\n"));
+        assertNull(parse("GET / HTTP/1.1\r\nHost: [::1\r\n\r\n"));
+        assertNull(parse("GET / HTTP/1.1\r\nHost: [::1]x\r\n\r\n"));
+    }
+
+    @Test
+    public void ignoresHeadersThatOnlyLookLikeHost() {
+        assertNull(parse("GET / HTTP/1.1\r\nHostname: example.com\r\n\r\n"));
+        assertNull(parse("GET / HTTP/1.1\r\nX-Host: example.com\r\n\r\n"));
+        assertNull(parse("GET / HTTP/1.1\r\nHost example.com\r\n\r\n"));
+        // A Host header after the end of the headers belongs to the body.
+        assertNull(parse("GET / HTTP/1.1\r\nAccept: */*\r\n\r\nHost: example.com\r\n"));
+    }
+
+    @Test
+    public void foldedHostHeaderIsRejected() {
+        // obs-fold (RFC 7230 section 3.2.4): the value on the Host line itself is empty.
+        assertNull(parse("GET / HTTP/1.1\r\nHost:\r\n example.com\r\n\r\n"));
+        // A continuation line is part of the previous header, never a Host header.
+        assertNull(parse("GET / HTTP/1.1\r\nX-Note: a\r\n Host: example.com\r\n\r\n"));
+        assertEquals("example.com",
+                parse("GET / HTTP/1.1\r\nX-Note: a\r\n\tHost: evil.com\r\nHost: example.com\r\n\r\n"));
+    }
+
+    @Test
+    public void duplicateHostHeadersUseTheFirst() {
+        assertEquals("first.com", parse("GET / HTTP/1.1\r\nHost: first.com\r\nHost: second.com\r\n\r\n"));
+        assertNull(parse("GET / HTTP/1.1\r\nHost: \r\nHost: second.com\r\n\r\n"));
+    }
+
+    @Test
+    public void handlesOversizedHeaders() {
+        StringBuilder sb = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i < 2000; i++) {
+            sb.append("X-Filler-").append(i).append(": ").append("0123456789abcdef0123456789abcdef").append("\r\n");
+        }
+        String headers = sb.toString();
+        assertTrue(headers.length() > 64 * 1024);
+        assertEquals("late.example.com", parse(headers + "Host: late.example.com\r\n\r\n"));
+        assertNull(parse(headers));
+
+        char[] longValue = new char[128 * 1024];
+        Arrays.fill(longValue, 'a');
+        assertEquals(new String(longValue), parse("GET / HTTP/1.1\r\nHost: " + new String(longValue) + "\r\n\r\n"));
+        // One endless line without a newline.
+        assertNull(parse("GET /" + new String(longValue)));
+        assertNull(parse("GET / HTTP/1.1\r\nX-Long: " + new String(longValue)));
+    }
+
+    @Test
+    public void fuzzedRequestsNeverThrowAndYieldCleanHosts() {
+        Random random = new Random(7);
+        byte[] seed = REQUEST.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] interesting = {'\r', '\n', ':', ' ', '\t', '[', ']', 'H', 'h', 0, (byte) 0x80, 0x7F};
+        for (int round = 0; round < 50000; round++) {
+            byte[] data = Arrays.copyOf(seed, seed.length + 16);
+            int length = seed.length;
+            int mutations = 1 + random.nextInt(4);
+            for (int i = 0; i < mutations; i++) {
+                int pos = random.nextInt(length);
+                switch (random.nextInt(3)) {
+                    case 0:
+                        data[pos] = (byte) random.nextInt(256);
+                        break;
+                    case 1:
+                        data[pos] = interesting[random.nextInt(interesting.length)];
+                        break;
+                    default:
+                        length = pos;
+                        break;
+                }
+                if (length == 0) {
+                    break;
+                }
+            }
+
+            String host = HttpHostHeaderParser.getHttpHost(data, 0, length);
+            if (host != null) {
+                assertTrue(host, host.length() > 0);
+                for (int i = 0; i < host.length(); i++) {
+                    char c = host.charAt(i);
+                    assertTrue(host, c > ' ' && c != 0x7F);
+                }
+                assertTrue(host, new String(data, 0, length, StandardCharsets.ISO_8859_1).contains(host));
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.noharayh.otokit.vpn.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.noharayh.otokit.vpn.tcpip.CommonMethods;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class NatTableTest {
+
+    private static NatSession session(int port, int remoteIP) {
+        NatSession session = new NatSession();
+        session.PortKey = port;
+        session.RemoteIP = remoteIP;
+        return session;
+    }
+
+    private static HashSet<Integer> livePorts(NatTable table) {
+        HashSet<Integer> ports = new HashSet<Integer>();
+        for (int i = 0; i < table.size(); i++) {
+            assertTrue("port listed twice", ports.add(table.portAt(i)));
+            assertSame(table.get(table.portAt(i)), table.valueAt(i));
+        }
+        return ports;
+    }
+
+    @Test
+    public void putReplacesTheSessionOfAReusedPort() {
+        NatTable table = new NatTable();
+        NatSession first = session(40000, 1);
+        table.put(40000, first);
+        NatSession second = session(40000, 2);
+        table.put(40000, second);
+        assertSame(second, table.get(40000));
+        assertEquals(1, table.size());
+        assertEquals(40000, table.portAt(0));
+    }
+
+    @Test
+    public void portKeysAreMaskedTo16Bits() {
+        NatTable table = new NatTable();
+        NatSession session = session(50000, 1);
+        // Ports above 32767 arrive as negative shorts.
+        table.put((short) 50000, session);
+        assertSame(session, table.get(50000));
+        assertSame(session, table.get(50000 + 0x10000));
+        table.remove((short) 50000);
+        assertNull(table.get(50000));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void removeKeepsTheLivePortsDense() {
+        NatTable table = new NatTable();
+        for (int port = 1000; port < 1010; port++) {
+            table.put(port, session(port, port));
+        }
+        table.remove(1000);
+        table.remove(1005);
+        table.remove(1009);
+        // Removing a free port is a no-op.
+        table.remove(1005);
+        table.remove(2000);
+        assertEquals(7, table.size());
+        HashSet<Integer> ports = livePorts(table);
+        assertEquals(7, ports.size());
+        assertFalse(ports.contains(1000));
+        assertFalse(ports.contains(1005));
+        assertFalse(ports.contains(1009));
+        assertNull(table.get(1005));
+
+        // A removed port can be used again.
+        table.put(1005, session(1005, 7));
+        assertEquals(8, table.size());
+        assertEquals(7, table.get(1005).RemoteIP);
+    }
+
+    @Test
+    public void clearFreesEveryPort() {
+        NatTable table = new NatTable();
+        for (int port = 0; port < 100; port++) {
+            table.put(port * 600, session(port * 600, port));
+        }
+        table.clear();
+        assertEquals(0, table.size());
+        for (int port = 0; port < 100; port++) {
+            assertNull(table.get(port * 600));
+        }
+        table.put(600, session(600, 1));
+        assertEquals(1, table.size());
+        assertEquals(600, table.portAt(0));
+    }
+
+    @Test
+    public void agreesWithAMapUnderRandomChurn() {
+        NatTable table = new NatTable();
+        HashMap<Integer, NatSession> expected = new HashMap<Integer, NatSession>();
+        Random random = new Random(3);
+        for (int i = 0; i < 200000; i++) {
+            // A narrow port range, so ports are reused often.
+            int port = random.nextInt(2000) * 31;
+            if (random.nextInt(3) == 0) {
+                table.remove(port);
+                expected.remove(port);
+            } else {
+                NatSession session = session(port, i);
+                table.put(port, session);
+                expected.put(port, session);
+            }
+        }
+        assertEquals(expected.size(), table.size());
+        assertEquals(expected.keySet(), livePorts(table));
+        for (int port = 0; port < NatTable.CAPACITY; port++) {
+            assertSame(expected.get(port), table.get(port));
+        }
+    }
+
+    @Test
+    public void readersOnlySeeInitializedSessions() throws Exception {
+        final NatTable table = new NatTable();
+        final int[] ports = {1024, 2048, 65535};
+        final AtomicReference<String> error = new AtomicReference<String>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    for (int port : ports) {
+                        NatSession session = table.get(port);
+                        if (session != null && session.PortKey != port) {
+                            error.compareAndSet(null, "port " + port + " saw " + session.PortKey);
+                        }
+                    }
+                }
+            }
+        });
+        reader.start();
+        try {
+            for (int i = 0; i < 200000; i++) {
+                int port = ports[i % ports.length];
+                if (i % 7 == 0) {
+                    table.remove(port);
+                } else {
+                    table.put(port, session(port, i));
+                }
+            }
+        } finally {
+            reader.interrupt();
+            reader.join();
+        }
+        assertNull(error.get());
+    }
+
+    @Test
+    public void createSessionAllocatesAFreshSessionForAReusedPort() {
+        int remoteIP = CommonMethods.ipStringToInt("192.0.2.1");
+        try {
+            NatSession first = NatSessionManager.createSession(41000, remoteIP, (short) 443);
+            first.RouteAction = RouteTable.ACTION_CAPTURE;
+            NatSession second = NatSessionManager.createSession(41000, remoteIP, (short) 443);
+            assertNotSame(first, second);
+            assertSame(second, NatSessionManager.getSession(41000));
+            // The old object keeps its state for whoever still holds it.
+            assertEquals(RouteTable.ACTION_CAPTURE, first.RouteAction);
+            assertEquals(RouteTable.ACTION_UNDECIDED, second.RouteAction);
+            assertEquals("192.0.2.1", second.RemoteHost);
+
+            // The replaced session's timer does not remove the new one.
+            assertFalse(NatSessionManager.onSessionTimeout(first, System.nanoTime() + NatSessionManager.SESSION_TIMEOUT_NS * 2));
+            assertSame(second, NatSessionManager.getSession(41000));
+            assertFalse(NatSessionManager.onSessionTimeout(second, System.nanoTime() + NatSessionManager.SESSION_TIMEOUT_NS * 2));
+            assertNull(NatSessionManager.getSession(41000));
+        } finally {
+            NatSessionManager.clearAllSessions();
+        }
+    }
+}
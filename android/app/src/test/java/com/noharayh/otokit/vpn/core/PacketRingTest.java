@@ -0,0 +1,183 @@
+package com.noharayh.otokit.vpn.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class PacketRingTest {
+
+    private static final int SLOT_SIZE = 64;
+
+    private static byte[] packet(int sequence, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (sequence + i);
+        }
+        data[0] = (byte) (sequence >>> 24);
+        data[1] = (byte) (sequence >>> 16);
+        data[2] = (byte) (sequence >>> 8);
+        data[3] = (byte) sequence;
+        return data;
+    }
+
+    private static int sequence(byte[] slot) {
+        return (slot[0] & 0xFF) << 24 | (slot[1] & 0xFF) << 16 | (slot[2] & 0xFF) << 8 | (slot[3] & 0xFF);
+    }
+
+    // Null if the slot holds the packet, otherwise what is wrong with it.
+    private static String check(byte[] slot, int length, int sequence, int expectedLength) {
+        if (length != expectedLength) {
+            return "packet " + sequence + " has length " + length;
+        }
+        if (sequence(slot) != sequence) {
+            return "expected packet " + sequence + " got " + sequence(slot);
+        }
+        for (int i = 4; i < length; i++) {
+            if (slot[i] != (byte) (sequence + i)) {
+                return "packet " + sequence + " corrupt at " + i;
+            }
+        }
+        return null;
+    }
+
+    private static int lengthOf(int sequence) {
+        return 4 + sequence % (SLOT_SIZE - 3);
+    }
+
+    @Test
+    public void rejectsCapacityNotAPowerOfTwo() {
+        try {
+            new PacketRing(6, SLOT_SIZE);
+            fail("accepted capacity 6");
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+    }
+
+    @Test
+    public void keepsOrderAcrossWraparound() {
+        PacketRing ring = new PacketRing(4, SLOT_SIZE);
+        assertTrue(ring.isEmpty());
+        assertNull(ring.peek());
+        int next = 0;
+        for (int round = 0; round < 10; round++) {
+            int count = 1 + round % 4;
+            for (int i = 0; i < count; i++) {
+                int sequence = next + i;
+                assertTrue(ring.offer(packet(sequence, lengthOf(sequence)), 0, lengthOf(sequence)));
+            }
+            for (int i = 0; i < count; i++) {
+                int sequence = next + i;
+                assertFalse(ring.isEmpty());
+                assertNull(check(ring.peek(), ring.peekLength(), sequence, lengthOf(sequence)));
+                ring.advance();
+            }
+            next += count;
+            assertTrue(ring.isEmpty());
+        }
+        assertEquals(0, ring.getDropCount());
+    }
+
+    @Test
+    public void dropsWhenFullOrOversized() {
+        PacketRing ring = new PacketRing(4, SLOT_SIZE);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(packet(i, 8), 0, 8));
+        }
+        assertFalse(ring.offer(packet(4, 8), 0, 8));
+        assertFalse(ring.offer(packet(5, 8), 0, 8));
+        assertEquals(2, ring.getDropCount());
+
+        // Freeing one slot makes room for exactly one more.
+        ring.advance();
+        assertTrue(ring.offer(packet(6, 8), 0, 8));
+        assertFalse(ring.offer(packet(7, 8), 0, 8));
+        assertEquals(3, ring.getDropCount());
+
+        ring.advance();
+        assertFalse(ring.offer(new byte[SLOT_SIZE + 1], 0, SLOT_SIZE + 1));
+        assertEquals(4, ring.getDropCount());
+        assertTrue(ring.offer(new byte[SLOT_SIZE], 0, SLOT_SIZE));
+
+        // The queued packets are unchanged by the drops.
+        int[] expected = {2, 3, 6};
+        for (int sequence : expected) {
+            assertNull(check(ring.peek(), ring.peekLength(), sequence, 8));
+            ring.advance();
+        }
+        assertEquals(SLOT_SIZE, ring.peekLength());
+    }
+
+    @Test
+    public void copiesFromTheGivenOffset() {
+        PacketRing ring = new PacketRing(2, SLOT_SIZE);
+        byte[] data = new byte[20];
+        byte[] payload = packet(9, 10);
+        System.arraycopy(payload, 0, data, 5, payload.length);
+        assertTrue(ring.offer(data, 5, 10));
+        // Reusing the caller's buffer does not touch the queued copy.
+        data[5] = 1;
+        assertNull(check(ring.peek(), ring.peekLength(), 9, 10));
+    }
+
+    @Test
+    public void producerAndConsumerThreadsSeeEveryPacketInOrder() throws Exception {
+        final PacketRing ring = new PacketRing(64, SLOT_SIZE);
+        final int total = 500000;
+        final AtomicLong offered = new AtomicLong();
+        final AtomicReference<String> error = new AtomicReference<String>();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int sequence = 0; sequence < total; sequence++) {
+                    byte[] data = packet(sequence, lengthOf(sequence));
+                    // Retry a few times, then give up on the packet like a real producer.
+                    for (int attempt = 0; attempt < 3; attempt++) {
+                        if (ring.offer(data, 0, data.length)) {
+                            offered.incrementAndGet();
+                            break;
+                        }
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+
+        long received = 0;
+        int last = -1;
+        while (producer.isAlive() || !ring.isEmpty()) {
+            byte[] slot = ring.peek();
+            if (slot == null) {
+                Thread.yield();
+                continue;
+            }
+            int sequence = sequence(slot);
+            if (sequence <= last) {
+                error.compareAndSet(null, "packet " + sequence + " after " + last);
+            } else {
+                String problem = check(slot, ring.peekLength(), sequence, lengthOf(sequence));
+                if (problem != null) {
+                    error.compareAndSet(null, problem);
+                }
+            }
+            last = sequence;
+            ring.advance();
+            received++;
+        }
+        producer.join();
+
+        assertNull(error.get());
+        assertEquals(offered.get(), received);
+        // Every packet is either delivered or counted as dropped, once per failed attempt.
+        assertTrue(received <= total);
+        assertTrue(ring.getDropCount() >= (total - received) * 3);
+    }
+}
@@ -0,0 +1,137 @@
+package com.noharayh.otokit.vpn.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class PendingQueryTableTest {
+
+    private static final int THREADS = 4;
+    private static final int ROUNDS = 50000;
+
+    private static void runAll(Thread[] threads, final Throwable[] failure) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+    }
+
+    @Test
+    public void claimedIDsAreExclusive() throws Exception {
+        final PendingQueryTable<Object> table = new PendingQueryTable<Object>();
+        final AtomicIntegerArray owners = new AtomicIntegerArray(PendingQueryTable.CAPACITY);
+        final AtomicInteger claimed = new AtomicInteger();
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        // Hold a window of IDs, so claims keep hitting a busy table.
+                        int[] held = new int[256];
+                        Object[] values = new Object[held.length];
+                        for (int i = 0; i < ROUNDS; i++) {
+                            int slot = i % held.length;
+                            if (values[slot] != null) {
+                                assertSame(values[slot], table.get(held[slot]));
+                                assertEquals(0, owners.decrementAndGet(held[slot]));
+                                assertTrue(table.release(held[slot], values[slot]));
+                                values[slot] = null;
+                            }
+                            int id = table.nextFreeID();
+                            Object value = new Object();
+                            if (id >= 0 && table.claim(id, value)) {
+                                assertEquals(1, owners.incrementAndGet(id));
+                                held[slot] = id;
+                                values[slot] = value;
+                                claimed.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+        }
+        runAll(threads, failure);
+        assertTrue(claimed.get() > ROUNDS);
+    }
+
+    @Test
+    public void answerAndTimeoutReleaseExactlyOnce() throws Exception {
+        final PendingQueryTable<Object> table = new PendingQueryTable<Object>();
+        final int rounds = 5000;
+        final Object[] values = new Object[rounds];
+        final int[] ids = new int[rounds];
+        final AtomicIntegerArray wins = new AtomicIntegerArray(rounds);
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final Throwable[] failure = new Throwable[1];
+        for (int i = 0; i < rounds; i++) {
+            values[i] = new Object();
+            ids[i] = table.nextFreeID();
+            assertTrue(table.claim(ids[i], values[i]));
+        }
+
+        Thread[] threads = new Thread[2];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < rounds; i++) {
+                            barrier.await();
+                            if (table.release(ids[i], values[i])) {
+                                wins.incrementAndGet(i);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                        barrier.reset();
+                    }
+                }
+            };
+        }
+        runAll(threads, failure);
+        for (int i = 0; i < rounds; i++) {
+            assertEquals(1, wins.get(i));
+        }
+    }
+
+    @Test
+    public void staleReleaseKeepsReusedID() {
+        PendingQueryTable<Object> table = new PendingQueryTable<Object>();
+        Object first = new Object();
+        Object second = new Object();
+        int id = table.nextFreeID();
+        assertTrue(table.claim(id, first));
+        assertFalse(table.claim(id, second));
+        assertTrue(table.release(id, first));
+        assertTrue(table.claim(id, second));
+        // A late timeout for the first query must not free the second one.
+        assertFalse(table.release(id, first));
+        assertSame(second, table.get(id));
+    }
+
+    @Test
+    public void fullTableHasNoFreeID() {
+        PendingQueryTable<Object> table = new PendingQueryTable<Object>();
+        Object value = new Object();
+        for (int id = 0; id < PendingQueryTable.CAPACITY; id++) {
+            assertTrue(table.claim(id, value));
+        }
+        assertEquals(-1, table.nextFreeID());
+    }
+}
@@ -0,0 +1,204 @@
+package com.noharayh.otokit.vpn.core;
+
+import static org.junit.Assert.assertEquals;
+
+import com.noharayh.otokit.vpn.tcpip.CommonMethods;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+public class RouteTableTest {
+
+    private static final byte RAW = RouteTable.ACTION_RAW;
+    private static final byte CAPTURE = RouteTable.ACTION_CAPTURE;
+    private static final byte CONNECT = RouteTable.ACTION_HTTP_CONNECT;
+
+    private static int ip(String address) {
+        return CommonMethods.ipStringToInt(address);
+    }
+
+    @Test
+    public void compilesRulesAndSkipsMalformedOnes() {
+        RouteTable table = RouteTable.compile(new String[]{
+                "example.com capture",
+                "  10.0.0.0/8   CONNECT  ",
+                ":8080 capture",
+                "* connect",
+                "",
+                "example.org",
+                "example.net tunnel",
+                "example.com:0 raw",
+                "example.com:70000 raw",
+                "example.com:http raw",
+                "10.0.0.0/33 raw",
+                "10.0.0/8 raw",
+                "a b c",
+        });
+        assertEquals(4, table.getRuleCount());
+        assertEquals(CAPTURE, table.lookup("www.example.com", ip("1.2.3.4"), 443));
+        assertEquals(CONNECT, table.lookup(null, ip("10.1.2.3"), 443));
+        assertEquals(CAPTURE, table.lookup(null, ip("1.2.3.4"), 8080));
+        assertEquals(CONNECT, table.lookup("example.net", ip("1.2.3.4"), 443));
+    }
+
+    @Test
+    public void defaultsToRaw() {
+        RouteTable table = RouteTable.compile(new String[0]);
+        assertEquals(0, table.getRuleCount());
+        assertEquals(RAW, table.lookup("example.com", ip("1.2.3.4"), 443));
+        assertEquals(RAW, table.lookup(null, 0, 0));
+    }
+
+    @Test
+    public void domainBeatsCidrBeatsPort() {
+        RouteTable table = RouteTable.compile(new String[]{
+                "example.com connect",
+                "93.184.0.0/16 capture",
+                ":443 connect",
+                "* raw",
+        });
+        // The domain rule wins over the CIDR the address falls in.
+        assertEquals(CONNECT, table.lookup("example.com", ip("93.184.216.34"), 80));
+        // Without a name, or with one no rule knows, the CIDR decides.
+        assertEquals(CAPTURE, table.lookup(null, ip("93.184.216.34"), 443));
+        assertEquals(CAPTURE, table.lookup("other.com", ip("93.184.216.34"), 443));
+        // Then the port, then the default.
+        assertEquals(CONNECT, table.lookup("other.com", ip("1.1.1.1"), 443));
+        assertEquals(RAW, table.lookup("other.com", ip("1.1.1.1"), 80));
+    }
+
+    @Test
+    public void mostSpecificDomainRuleWins() {
+        RouteTable table = RouteTable.compile(new String[]{
+                "example.com capture",
+                "*.cdn.example.com connect",
+                "=cdn.example.com raw",
+                "* connect",
+        });
+        assertEquals(CAPTURE, table.lookup("example.com", 0, 443));
+        assertEquals(CAPTURE, table.lookup("www.example.com", 0, 443));
+        assertEquals(RAW, table.lookup("cdn.example.com", 0, 443));
+        assertEquals(CONNECT, table.lookup("img.cdn.example.com", 0, 443));
+        assertEquals(CONNECT, table.lookup("example.org", 0, 443));
+    }
+
+    @Test
+    public void portRuleBeatsAnyPortRuleOfTheSameKind() {
+        RouteTable table = RouteTable.compile(new String[]{
+                "example.com capture",
+                "example.com:443 connect",
+                "10.0.0.0/8 capture",
+                "10.1.0.0/16:22 connect",
+        });
+        assertEquals(CONNECT, table.lookup("www.example.com", 0, 443));
+        assertEquals(CAPTURE, table.lookup("www.example.com", 0, 80));
+        assertEquals(CONNECT, table.lookup(null, ip("10.1.2.3"), 22));
+        assertEquals(CAPTURE, table.lookup(null, ip("10.1.2.3"), 80));
+        // The port rule's CIDR does not match, so the any-port one does.
+        assertEquals(CAPTURE, table.lookup(null, ip("10.2.0.1"), 22));
+        // A port rule wins even over a more specific any-port rule.
+        table = RouteTable.compile(new String[]{
+                "example.com:443 connect",
+                "www.example.com capture",
+                "10.0.0.0/8:443 connect",
+                "10.1.2.3 capture",
+        });
+        assertEquals(CONNECT, table.lookup("www.example.com", 0, 443));
+        assertEquals(CONNECT, table.lookup(null, ip("10.1.2.3"), 443));
+        assertEquals(CAPTURE, table.lookup(null, ip("10.1.2.3"), 80));
+    }
+
+    @Test
+    public void longestCidrPrefixWins() {
+        RouteTable table = RouteTable.compile(new String[]{
+                "0.0.0.0/0 capture",
+                "10.0.0.0/8 connect",
+                "10.1.0.0/16 raw",
+                "10.1.2.0/24 capture",
+                "10.1.2.3 connect",
+                // Bits past the prefix are ignored.
+                "192.168.1.77/24 connect",
+        });
+        assertEquals(CAPTURE, table.lookup(null, ip("9.255.255.255"), 80));
+        assertEquals(CONNECT, table.lookup(null, ip("10.0.0.0"), 80));
+        assertEquals(RAW, table.lookup(null, ip("10.1.0.0"), 80));
+        assertEquals(CAPTURE, table.lookup(null, ip("10.1.2.2"), 80));
+        assertEquals(CONNECT, table.lookup(null, ip("10.1.2.3"), 80));
+        assertEquals(CAPTURE, table.lookup(null, ip("10.1.2.4"), 80));
+        assertEquals(RAW, table.lookup(null, ip("10.1.255.255"), 80));
+        assertEquals(CONNECT, table.lookup(null, ip("10.255.255.255"), 80));
+        assertEquals(CAPTURE, table.lookup(null, ip("11.0.0.0"), 80));
+        assertEquals(CONNECT, table.lookup(null, ip("192.168.1.1"), 80));
+        assertEquals(CAPTURE, table.lookup(null, ip("255.255.255.255"), 80));
+    }
+
+    @Test
+    public void laterDuplicateCidrWins() {
+        RouteTable table = RouteTable.compile(new String[]{
+                "10.0.0.0/8 capture",
+                "10.0.0.0/8 connect",
+                "172.16.0.0/12 connect",
+                "172.16.0.0/12 raw",
+                "* capture",
+        });
+        assertEquals(CONNECT, table.lookup(null, ip("10.9.9.9"), 80));
+        assertEquals(RAW, table.lookup(null, ip("172.20.0.1"), 80));
+    }
+
+    @Test
+    public void cidrSetMatchesBruteForceLongestPrefix() {
+        Random random = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            ArrayList<long[]> rules = new ArrayList<long[]>();
+            int count = 1 + random.nextInt(40);
+            for (int i = 0; i < count; i++) {
+                int prefixLength = random.nextInt(33);
+                // Keep the networks close together so they nest and overlap.
+                int network = (0x0A000000 | random.nextInt(1 << 12) << 12) & RouteTable.mask(prefixLength);
+                rules.add(new long[]{network & 0xFFFFFFFFL, prefixLength, random.nextInt(3)});
+            }
+            RouteTable.CidrSet set = new RouteTable.CidrSet(rules);
+            for (int i = 0; i < 2000; i++) {
+                int address = i % 2 == 0 ? random.nextInt() : 0x0A000000 | random.nextInt(1 << 24);
+                assertEquals("round " + round + " " + CommonMethods.ipIntToString(address),
+                        bruteForce(rules, address), set.match(address));
+            }
+        }
+    }
+
+    // The last of the longest rules containing the address.
+    private static int bruteForce(ArrayList<long[]> rules, int address) {
+        int best = DomainTrie.NO_MATCH;
+        int bestLength = -1;
+        for (long[] rule : rules) {
+            int prefixLength = (int) rule[1];
+            if ((address & RouteTable.mask(prefixLength)) == (int) rule[0] && prefixLength >= bestLength) {
+                best = (int) rule[2];
+                bestLength = prefixLength;
+            }
+        }
+        return best;
+    }
+
+    @Test
+    public void decideCachesTheAction() {
+        RouteTable table = RouteTable.compile(new String[]{"example.com capture"});
+        NatSession session = new NatSession();
+        session.RemoteHost = "www.example.com";
+        session.RemoteIP = ip("1.2.3.4");
+        session.RemotePort = (short) 443;
+        assertEquals(CAPTURE, table.decide(session));
+        assertEquals(CAPTURE, session.RouteAction);
+
+        // A later table does not change an already decided session.
+        assertEquals(CAPTURE, RouteTable.compile(new String[]{"* connect"}).decide(session));
+
+        // Ports above 32767 arrive as negative shorts.
+        RouteTable byPort = RouteTable.compile(new String[]{":50000 connect"});
+        session = new NatSession();
+        session.RemotePort = (short) 50000;
+        assertEquals(CONNECT, byPort.decide(session));
+    }
+}
@@ -0,0 +1,196 @@
+package com.noharayh.otokit.vpn.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.noharayh.otokit.vpn.dns.DnsView;
+import com.noharayh.otokit.vpn.tcpip.CommonMethods;
+import com.noharayh.otokit.vpn.tunnel.httpconnect.HttpConnectPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the server with several event loops, relaying to a local echo server.
+ */
+public class TcpProxyServerTest {
+
+    private static final int LOOP_COUNT = 3;
+
+    // Which loop each accepted connection went to, and whether it was handled there.
+    private static class Accepted {
+        final EventLoop Loop;
+        final boolean InLoop;
+
+        Accepted(EventLoop loop, boolean inLoop) {
+            Loop = loop;
+            InLoop = inLoop;
+        }
+    }
+
+    private class RecordingServer extends TcpProxyServer {
+        RecordingServer() throws Exception {
+            super(0, LOOP_COUNT);
+        }
+
+        @Override
+        void onAccepted(SocketChannel localChannel, EventLoop eventLoop, HttpConnectPool connectPool, DnsView dnsView) {
+            m_Accepted.add(new Accepted(eventLoop, eventLoop.inLoop()));
+            super.onAccepted(localChannel, eventLoop, connectPool, dnsView);
+        }
+    }
+
+    private final LinkedBlockingQueue<Accepted> m_Accepted = new LinkedBlockingQueue<Accepted>();
+    private final ArrayList<Socket> m_Clients = new ArrayList<Socket>();
+    private ServerSocket m_EchoServer;
+    private Thread m_EchoThread;
+    private RecordingServer m_Server;
+
+    @Before
+    public void setUp() throws Exception {
+        LocalVpnService.Instance = new LocalVpnService() {
+            @Override
+            public boolean protect(Socket socket) {
+                return true;
+            }
+        };
+        m_EchoServer = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+        m_EchoThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = m_EchoServer.accept();
+                        Thread echo = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    InputStream in = socket.getInputStream();
+                                    OutputStream out = socket.getOutputStream();
+                                    byte[] buffer = new byte[1024];
+                                    int size;
+                                    while ((size = in.read(buffer)) > 0) {
+                                        out.write(buffer, 0, size);
+                                    }
+                                    socket.close();
+                                } catch (Exception e) {
+                                    // The test is over.
+                                }
+                            }
+                        });
+                        echo.setDaemon(true);
+                        echo.start();
+                    }
+                } catch (Exception e) {
+                    // Closed.
+                }
+            }
+        });
+        m_EchoThread.setDaemon(true);
+        m_EchoThread.start();
+        m_Server = new RecordingServer();
+        m_Server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (Socket client : m_Clients) {
+            client.close();
+        }
+        m_Server.stop();
+        m_EchoServer.close();
+        NatSessionManager.clearAllSessions();
+        LocalVpnService.Instance = null;
+    }
+
+    // Connects to the server as an app would through the VPN, with a NAT session for
+    // its source port pointing at the echo server.
+    private Socket connect() throws Exception {
+        Socket client = new Socket();
+        m_Clients.add(client);
+        client.bind(new InetSocketAddress("127.0.0.1", 0));
+        NatSessionManager.createSession((short) client.getLocalPort(), CommonMethods.ipStringToInt("127.0.0.1"),
+                (short) m_EchoServer.getLocalPort());
+        client.connect(new InetSocketAddress("127.0.0.1", m_Server.Port & 0xFFFF), 5000);
+        client.setSoTimeout(5000);
+        return client;
+    }
+
+    private static void assertEchoes(Socket client, String message) throws Exception {
+        byte[] data = message.getBytes("US-ASCII");
+        client.getOutputStream().write(data);
+        byte[] received = new byte[data.length];
+        int total = 0;
+        while (total < data.length) {
+            int size = client.getInputStream().read(received, total, data.length - total);
+            assertTrue("connection closed", size > 0);
+            total += size;
+        }
+        assertEquals(message, new String(received, "US-ASCII"));
+    }
+
+    private Accepted takeAccepted() throws Exception {
+        Accepted accepted = m_Accepted.poll(5, TimeUnit.SECONDS);
+        assertNotNull("connection not accepted", accepted);
+        return accepted;
+    }
+
+    @Test
+    public void spreadsConnectionsOverTheLoopsInTurn() throws Exception {
+        assertEquals(LOOP_COUNT, m_Server.getEventLoopCount());
+        int count = LOOP_COUNT * 3;
+        for (int i = 0; i < count; i++) {
+            Socket client = connect();
+            Accepted accepted = takeAccepted();
+            assertTrue("handled off its loop", accepted.InLoop);
+            assertEquals(m_Server.getEventLoop(i % LOOP_COUNT), accepted.Loop);
+            assertEchoes(client, "hello " + i);
+        }
+        // Every connection still relays while the others are open.
+        for (int i = 0; i < count; i++) {
+            assertEchoes(m_Clients.get(i), "again " + i);
+        }
+    }
+
+    @Test
+    public void defaultLoopCountIsBounded() {
+        int count = TcpProxyServer.defaultEventLoopCount();
+        assertTrue(count >= 1 && count <= TcpProxyServer.MAX_EVENT_LOOP_COUNT);
+    }
+
+    @Test
+    public void aStoppedLoopStopsTheServer() throws Exception {
+        m_Server.getEventLoop(1).stop();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!allStopped() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(allStopped());
+    }
+
+    // The server flags itself stopped before it stops the loops.
+    private boolean allStopped() {
+        if (!m_Server.Stopped) {
+            return false;
+        }
+        for (int i = 0; i < LOOP_COUNT; i++) {
+            if (!m_Server.getEventLoop(i).Stopped) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
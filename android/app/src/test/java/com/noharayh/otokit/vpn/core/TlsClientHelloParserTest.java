@@ -0,0 +1,229 @@
+package com.noharayh.otokit.vpn.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class TlsClientHelloParserTest {
+
+    private static final String HOST = "www.example.com";
+    private static final int SEQ = 0x7FFFFF00; // Wraps past Integer.MAX_VALUE on the way.
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    // A ClientHello handshake message (type and 24-bit length included) with SNI, ALPN
+    // and a padding extension that brings the message to about messageLength bytes.
+    private static byte[] handshake(String host, String alpn, int messageLength) {
+        ByteArrayOutputStream extensions = new ByteArrayOutputStream();
+        byte[] name = host.getBytes(StandardCharsets.US_ASCII);
+        writeShort(extensions, 0);
+        writeShort(extensions, name.length + 5);
+        writeShort(extensions, name.length + 3);
+        extensions.write(0);
+        writeShort(extensions, name.length);
+        extensions.write(name, 0, name.length);
+
+        byte[] protocol = alpn.getBytes(StandardCharsets.US_ASCII);
+        writeShort(extensions, 16);
+        writeShort(extensions, protocol.length + 3);
+        writeShort(extensions, protocol.length + 1);
+        extensions.write(protocol.length);
+        extensions.write(protocol, 0, protocol.length);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeShort(body, 0x0303);
+        body.write(new byte[32], 0, 32);
+        body.write(32);
+        body.write(new byte[32], 0, 32);
+        writeShort(body, 4);
+        writeShort(body, 0x1301);
+        writeShort(body, 0x1302);
+        body.write(1);
+        body.write(0);
+
+        int padding = Math.max(0, messageLength - 4 - body.size() - 2 - extensions.size() - 4);
+        writeShort(extensions, 21);
+        writeShort(extensions, padding);
+        extensions.write(new byte[padding], 0, padding);
+        writeShort(body, extensions.size());
+        body.write(extensions.toByteArray(), 0, extensions.size());
+
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        message.write(1);
+        message.write(body.size() >>> 16);
+        writeShort(message, body.size());
+        message.write(body.toByteArray(), 0, body.size());
+        return message.toByteArray();
+    }
+
+    // Wraps the message in handshake records of at most the given fragment sizes;
+    // the last size repeats.
+    private static byte[] records(byte[] message, int... fragmentSizes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int pos = 0;
+        for (int i = 0; pos < message.length; i++) {
+            int size = Math.min(fragmentSizes[Math.min(i, fragmentSizes.length - 1)], message.length - pos);
+            out.write(0x16);
+            writeShort(out, 0x0301);
+            writeShort(out, size);
+            out.write(message, pos, size);
+            pos += size;
+        }
+        return out.toByteArray();
+    }
+
+    private static NatSession feedSegments(byte[] data, int... cuts) {
+        NatSession session = new NatSession();
+        int start = 0;
+        for (int i = 0; i <= cuts.length; i++) {
+            int end = i < cuts.length ? cuts[i] : data.length;
+            feed(session, data, start, end);
+            start = end;
+        }
+        return session;
+    }
+
+    private static void feed(NatSession session, byte[] data, int start, int end) {
+        // Copy the segment, as the parser must not rely on a packet buffer staying put.
+        byte[] packet = new byte[end - start + 40];
+        Arrays.fill(packet, (byte) 0xEE);
+        System.arraycopy(data, start, packet, 40, end - start);
+        TlsClientHelloParser.feed(session, SEQ + start, packet, 40, end - start);
+    }
+
+    private static void assertParsed(String message, NatSession session) {
+        assertEquals(message, HOST, session.RemoteHost);
+        assertEquals(message, "h2", session.Alpn);
+        assertDone(message, session);
+    }
+
+    private static void assertDone(String message, NatSession session) {
+        assertEquals(message, TlsClientHelloParser.STATE_DONE, session.HelloState);
+        assertNull(message, session.HelloBuffer);
+    }
+
+    @Test
+    public void parsesHelloInOneSegment() {
+        NatSession session = feedSegments(records(handshake(HOST, "h2", 512), 16384));
+        assertParsed("one segment", session);
+    }
+
+    @Test
+    public void parsesHelloSplitAtEveryByte() {
+        byte[] data = records(handshake(HOST, "h2", 300), 16384);
+        for (int cut = 1; cut < data.length; cut++) {
+            assertParsed("cut " + cut, feedSegments(data, cut));
+        }
+    }
+
+    @Test
+    public void parsesMultiRecordHelloSplitAtEveryByte() {
+        byte[] data = records(handshake(HOST, "h2", 400), 37, 150, 64);
+        assertParsed("unsplit", feedSegments(data));
+        for (int cut = 1; cut < data.length; cut++) {
+            assertParsed("cut " + cut, feedSegments(data, cut));
+        }
+        for (int first = 1; first < data.length; first += 7) {
+            for (int second = first + 1; second < data.length; second += 5) {
+                assertParsed("cuts " + first + ", " + second, feedSegments(data, first, second));
+            }
+        }
+    }
+
+    @Test
+    public void parsesHelloFedOneByteAtATime() {
+        byte[] data = records(handshake(HOST, "h2", 600), 200, 1);
+        int[] cuts = new int[data.length - 1];
+        for (int i = 0; i < cuts.length; i++) {
+            cuts[i] = i + 1;
+        }
+        assertParsed("one byte records and segments", feedSegments(data, cuts));
+    }
+
+    @Test
+    public void skipsRetransmittedBytes() {
+        byte[] data = records(handshake(HOST, "h2", 800), 300, 16384);
+        NatSession session = new NatSession();
+        feed(session, data, 0, 200);
+        // A plain retransmission, then a segment inside what was already taken.
+        feed(session, data, 0, 200);
+        feed(session, data, 100, 200);
+        assertEquals(TlsClientHelloParser.STATE_PARTIAL, session.HelloState);
+        feed(session, data, 150, 500);
+        feed(session, data, 400, data.length);
+        assertParsed("overlapping segments", session);
+        // Late duplicates after the hello are ignored.
+        feed(session, data, 0, data.length);
+        assertParsed("after completion", session);
+    }
+
+    @Test
+    public void givesUpOnAGap() {
+        byte[] data = records(handshake(HOST, "h2", 800), 16384);
+        NatSession session = new NatSession();
+        feed(session, data, 0, 200);
+        feed(session, data, 201, data.length);
+        assertNull(session.RemoteHost);
+        assertDone("gap", session);
+        // Filling the gap afterwards does not revive the parse.
+        feed(session, data, 200, 201);
+        assertNull(session.RemoteHost);
+    }
+
+    @Test
+    public void rejectsHelloAboveTheCap() {
+        // Declared larger than the cap: fails on the first segment, nothing buffered.
+        byte[] large = records(handshake(HOST, "h2", TlsClientHelloParser.MAX_HELLO_LENGTH + 100), 16000);
+        NatSession session = feedSegments(large, 100);
+        assertNull(session.RemoteHost);
+        assertDone("declared too large", session);
+
+        // Within the cap on its own, but record headers push the buffered bytes over it.
+        byte[] fragmented = records(handshake(HOST, "h2", TlsClientHelloParser.MAX_HELLO_LENGTH - 100), 512);
+        session = feedSegments(fragmented, 1000, 9000);
+        assertNull(session.RemoteHost);
+        assertDone("buffered too much", session);
+
+        // Just under the cap once framed, still fine.
+        byte[] fits = records(handshake(HOST, "h2", TlsClientHelloParser.MAX_HELLO_LENGTH - 5 - 100), 16384);
+        assertParsed("fits", feedSegments(fits, 1000, 9000));
+    }
+
+    @Test
+    public void marksNonTlsStreamsDoneRightAway() {
+        byte[] http = "GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        NatSession session = feedSegments(http);
+        assertNull(session.RemoteHost);
+        assertDone("http", session);
+
+        byte[] alert = {0x15, 0x03, 0x03, 0x00, 0x02, 0x02, 0x28};
+        session = feedSegments(alert, 1);
+        assertDone("alert", session);
+    }
+
+    @Test
+    public void failsOnNonHandshakeRecordInsideHello() {
+        byte[] data = records(handshake(HOST, "h2", 400), 100, 16384);
+        data[105] = 0x17;
+        NatSession session = feedSegments(data, 50);
+        assertNull(session.RemoteHost);
+        assertDone("application data record", session);
+    }
+
+    @Test
+    public void releaseReturnsThePartialBuffer() {
+        byte[] data = records(handshake(HOST, "h2", 400), 16384);
+        NatSession session = feedSegments(Arrays.copyOf(data, 100));
+        assertEquals(TlsClientHelloParser.STATE_PARTIAL, session.HelloState);
+        TlsClientHelloParser.release(session);
+        assertDone("released", session);
+    }
+}
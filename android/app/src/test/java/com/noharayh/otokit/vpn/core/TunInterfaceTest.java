@@ -0,0 +1,112 @@
+package com.noharayh.otokit.vpn.core;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Covers the batch read behind the poll; the poll itself needs a real tun fd.
+ */
+public class TunInterfaceTest {
+
+    // Stands in for a non-blocking tun fd: one packet per read, 0 when none is ready.
+    private static class FakeTun extends InputStream {
+        final ArrayDeque<byte[]> Packets = new ArrayDeque<byte[]>();
+        boolean Closed;
+        int Reads;
+
+        void add(int count) {
+            for (int i = 0; i < count; i++) {
+                int sequence = Packets.size() + Reads;
+                byte[] packet = new byte[20 + sequence % 100];
+                packet[0] = (byte) sequence;
+                Packets.add(packet);
+            }
+        }
+
+        @Override
+        public int read() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] buffer) {
+            Reads++;
+            byte[] packet = Packets.poll();
+            if (packet == null) {
+                return Closed ? -1 : 0;
+            }
+            System.arraycopy(packet, 0, buffer, 0, packet.length);
+            return packet.length;
+        }
+    }
+
+    private static class Recorder implements TunInterface.PacketHandler {
+        final ArrayList<Integer> Sizes = new ArrayList<Integer>();
+        final ArrayList<Integer> Firsts = new ArrayList<Integer>();
+        boolean Fail;
+
+        @Override
+        public void onPacketReceived(byte[] packet, int size) throws IOException {
+            Sizes.add(size);
+            Firsts.add(packet[0] & 0xFF);
+            if (Fail) {
+                throw new IOException("bad packet");
+            }
+        }
+    }
+
+    private final byte[] m_Buffer = new byte[2048];
+
+    @Test
+    public void dispatchesEveryReadyPacketInOrder() throws Exception {
+        FakeTun tun = new FakeTun();
+        tun.add(10);
+        Recorder recorder = new Recorder();
+        assertEquals(10, TunInterface.readReady(tun, m_Buffer, recorder));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(20 + i, (int) recorder.Sizes.get(i));
+            assertEquals(i, (int) recorder.Firsts.get(i));
+        }
+        // One extra read found the fd drained.
+        assertEquals(11, tun.Reads);
+        assertEquals(0, TunInterface.readReady(tun, m_Buffer, recorder));
+    }
+
+    @Test
+    public void stopsAtTheBatchLimit() throws Exception {
+        FakeTun tun = new FakeTun();
+        tun.add(TunInterface.MAX_BATCH_SIZE + 10);
+        Recorder recorder = new Recorder();
+        assertEquals(TunInterface.MAX_BATCH_SIZE, TunInterface.readReady(tun, m_Buffer, recorder));
+        assertEquals(TunInterface.MAX_BATCH_SIZE, tun.Reads);
+        assertEquals(10, TunInterface.readReady(tun, m_Buffer, recorder));
+        assertEquals(TunInterface.MAX_BATCH_SIZE + 10, recorder.Sizes.size());
+    }
+
+    @Test
+    public void endOfStreamEndsTheBatch() throws Exception {
+        FakeTun tun = new FakeTun();
+        tun.add(3);
+        tun.Closed = true;
+        Recorder recorder = new Recorder();
+        assertEquals(-1, TunInterface.readReady(tun, m_Buffer, recorder));
+        // The packets read before it were still dispatched.
+        assertEquals(3, recorder.Sizes.size());
+    }
+
+    @Test
+    public void aFailingPacketDoesNotStopTheBatch() throws Exception {
+        FakeTun tun = new FakeTun();
+        tun.add(5);
+        Recorder recorder = new Recorder();
+        recorder.Fail = true;
+        assertEquals(5, TunInterface.readReady(tun, m_Buffer, recorder));
+        assertEquals(5, recorder.Sizes.size());
+    }
+}
@@ -0,0 +1,102 @@
+package com.noharayh.otokit.vpn.tcpip;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class CommonMethodsTest {
+
+    private static final int ROUNDS = 20000;
+
+    // The word-at-a-time loop getsum replaced.
+    private static long referenceSum(byte[] buf, int offset, int len) {
+        long sum = 0;
+        while (len > 1) {
+            sum += CommonMethods.readShort(buf, offset) & 0xFFFF;
+            offset += 2;
+            len -= 2;
+        }
+        if (len > 0) {
+            sum += (buf[offset] & 0xFF) << 8;
+        }
+        return sum;
+    }
+
+    private static short referenceChecksum(long sum, byte[] buf, int offset, int len) {
+        sum += referenceSum(buf, offset, len);
+        while ((sum >> 16) > 0)
+            sum = (sum & 0xFFFF) + (sum >> 16);
+        return (short) ~sum;
+    }
+
+    @Test
+    public void getsumMatchesReferenceOnRandomSlices() {
+        Random random = new Random(1);
+        byte[] buf = new byte[2048];
+        for (int round = 0; round < ROUNDS; round++) {
+            random.nextBytes(buf);
+            int offset = random.nextInt(64);
+            int len = random.nextInt(buf.length - offset + 1);
+            assertEquals("offset " + offset + " len " + len,
+                    referenceSum(buf, offset, len), CommonMethods.getsum(buf, offset, len));
+        }
+    }
+
+    @Test
+    public void getsumMatchesReferenceForEveryShortLength() {
+        Random random = new Random(2);
+        byte[] buf = new byte[64];
+        random.nextBytes(buf);
+        for (int offset = 0; offset < 8; offset++) {
+            for (int len = 0; offset + len <= buf.length; len++) {
+                assertEquals(referenceSum(buf, offset, len), CommonMethods.getsum(buf, offset, len));
+            }
+        }
+    }
+
+    @Test
+    public void getsumMatchesReferenceOnAllOnes() {
+        byte[] buf = new byte[65535];
+        java.util.Arrays.fill(buf, (byte) 0xFF);
+        assertEquals(referenceSum(buf, 0, buf.length), CommonMethods.getsum(buf, 0, buf.length));
+        assertEquals(referenceSum(buf, 1, buf.length - 1), CommonMethods.getsum(buf, 1, buf.length - 1));
+    }
+
+    @Test
+    public void checksumMatchesReference() {
+        Random random = new Random(3);
+        byte[] buf = new byte[1500];
+        for (int round = 0; round < ROUNDS; round++) {
+            random.nextBytes(buf);
+            int len = random.nextInt(buf.length + 1);
+            long seed = random.nextInt() & 0xFFFFFFFFL;
+            assertEquals(referenceChecksum(seed, buf, 0, len), CommonMethods.checksum(seed, buf, 0, len));
+        }
+    }
+
+    @Test
+    public void adjustChecksumMatchesRecomputation() {
+        Random random = new Random(4);
+        byte[] buf = new byte[60];
+        for (int round = 0; round < ROUNDS; round++) {
+            random.nextBytes(buf);
+            short crc = CommonMethods.checksum(0, buf, 0, buf.length);
+
+            int wordOffset = random.nextInt(buf.length / 2) * 2;
+            short oldWord = CommonMethods.readShort(buf, wordOffset);
+            short newWord = (short) random.nextInt();
+            CommonMethods.writeShort(buf, wordOffset, newWord);
+            crc = CommonMethods.adjustChecksum16(crc, oldWord, newWord);
+            assertEquals(CommonMethods.checksum(0, buf, 0, buf.length), crc);
+
+            int intOffset = random.nextInt(buf.length / 4) * 4;
+            int oldInt = CommonMethods.readInt(buf, intOffset);
+            int newInt = random.nextInt();
+            CommonMethods.writeInt(buf, intOffset, newInt);
+            crc = CommonMethods.adjustChecksum32(crc, oldInt, newInt);
+            assertEquals(CommonMethods.checksum(0, buf, 0, buf.length), crc);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.noharayh.otokit.vpn.tunnel.httpconnect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.noharayh.otokit.DataContext;
+import com.noharayh.otokit.vpn.core.EventLoop;
+import com.noharayh.otokit.vpn.core.LocalVpnService;
+import com.noharayh.otokit.vpn.core.ProxyConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the pool against local servers standing in for the proxy.
+ */
+public class HttpConnectPoolTest {
+
+    private static final int POOL_SIZE = 2;
+
+    private String m_SavedHost;
+    private int m_SavedPort;
+    private int m_SavedPoolSize;
+    private EventLoop m_EventLoop;
+    private HttpConnectPool m_Pool;
+    private final ArrayList<ServerSocket> m_Servers = new ArrayList<ServerSocket>();
+    private final ArrayList<Socket> m_Accepted = new ArrayList<Socket>();
+
+    @Before
+    public void setUp() throws Exception {
+        m_SavedHost = DataContext.ProxyHost;
+        m_SavedPort = DataContext.ProxyPort;
+        m_SavedPoolSize = ProxyConfig.Instance.getConnectPoolSize();
+        ProxyConfig.Instance.setConnectPoolSize(POOL_SIZE);
+        LocalVpnService.Instance = new LocalVpnService() {
+            @Override
+            public boolean protect(Socket socket) {
+                return true;
+            }
+        };
+        m_EventLoop = new EventLoop("HttpConnectPoolTest", null);
+        m_EventLoop.start();
+        m_Pool = new HttpConnectPool(m_EventLoop);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        onLoop(new Callable<Object>() {
+            @Override
+            public Object call() {
+                m_Pool.close();
+                return null;
+            }
+        });
+        m_EventLoop.stop();
+        for (Socket socket : m_Accepted) {
+            socket.close();
+        }
+        for (ServerSocket server : m_Servers) {
+            server.close();
+        }
+        DataContext.ProxyHost = m_SavedHost;
+        DataContext.ProxyPort = m_SavedPort;
+        ProxyConfig.Instance.setConnectPoolSize(m_SavedPoolSize);
+        LocalVpnService.Instance = null;
+    }
+
+    // Points the pool at a new stand-in proxy.
+    private ServerSocket useProxy() throws Exception {
+        ServerSocket server = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        server.setSoTimeout(5000);
+        m_Servers.add(server);
+        DataContext.ProxyHost = "127.0.0.1";
+        DataContext.ProxyPort = server.getLocalPort();
+        return server;
+    }
+
+    private Socket accept(ServerSocket server) throws Exception {
+        Socket socket = server.accept();
+        socket.setSoTimeout(5000);
+        m_Accepted.add(socket);
+        return socket;
+    }
+
+    private <T> T onLoop(final Callable<T> task) throws Exception {
+        final LinkedBlockingQueue<Object[]> result = new LinkedBlockingQueue<Object[]>();
+        m_EventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.add(new Object[]{task.call()});
+                } catch (Exception e) {
+                    result.add(new Object[]{null, e});
+                }
+            }
+        });
+        Object[] value = result.poll(5, TimeUnit.SECONDS);
+        assertNotNull("loop did not run the task", value);
+        if (value.length > 1) {
+            throw (Exception) value[1];
+        }
+        @SuppressWarnings("unchecked")
+        T t = (T) value[0];
+        return t;
+    }
+
+    private SocketChannel acquire(final long now) throws Exception {
+        return onLoop(new Callable<SocketChannel>() {
+            @Override
+            public SocketChannel call() {
+                return m_Pool.acquire(now);
+            }
+        });
+    }
+
+    // Acquires until the pool hands out a connection, the refill being asynchronous.
+    private SocketChannel acquireReady() throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            SocketChannel channel = acquire(System.nanoTime());
+            if (channel != null) {
+                return channel;
+            }
+            Thread.sleep(20);
+        }
+        throw new AssertionError("pool never filled");
+    }
+
+    private static void assertClosedByPool(Socket socket) throws Exception {
+        assertEquals(-1, socket.getInputStream().read());
+    }
+
+    private static void assertOpen(Socket socket) throws Exception {
+        socket.setSoTimeout(100);
+        try {
+            socket.getInputStream().read();
+            throw new AssertionError("connection closed");
+        } catch (SocketTimeoutException expected) {
+            // Still open.
+        } finally {
+            socket.setSoTimeout(5000);
+        }
+    }
+
+    @Test
+    public void warmsUpOnFirstMissAndHandsOutConnectedChannels() throws Exception {
+        ServerSocket proxy = useProxy();
+        assertNull(acquire(System.nanoTime()));
+        for (int i = 0; i < POOL_SIZE; i++) {
+            accept(proxy);
+        }
+
+        SocketChannel channel = acquireReady();
+        assertTrue(channel.isConnected());
+        assertEquals(proxy.getLocalPort(), ((InetSocketAddress) channel.getRemoteAddress()).getPort());
+        // The taken connection is replaced.
+        accept(proxy);
+        channel.close();
+    }
+
+    @Test
+    public void dropsIdleConnectionsPastTheirDeadline() throws Exception {
+        ServerSocket proxy = useProxy();
+        assertNull(acquire(System.nanoTime()));
+        Socket first = accept(proxy);
+        Socket second = accept(proxy);
+        SocketChannel taken = acquireReady();
+        Socket refill = accept(proxy);
+        Thread.sleep(100);
+
+        // Seen from past MAX_IDLE_NANOS, every idle connection is stale.
+        assertNull(acquire(System.nanoTime() + HttpConnectPool.MAX_IDLE_NANOS + 1));
+        int closed = 0;
+        for (Socket socket : new Socket[]{first, second, refill}) {
+            socket.setSoTimeout(1000);
+            try {
+                if (socket.getInputStream().read() == -1) {
+                    closed++;
+                }
+            } catch (SocketTimeoutException e) {
+                // The one handed out above.
+            }
+        }
+        assertEquals(POOL_SIZE, closed);
+        assertTrue(taken.isOpen());
+        taken.close();
+    }
+
+    @Test
+    public void proxyChangeInvalidatesIdleConnections() throws Exception {
+        ServerSocket oldProxy = useProxy();
+        assertNull(acquire(System.nanoTime()));
+        Socket first = accept(oldProxy);
+        Socket second = accept(oldProxy);
+        Thread.sleep(100);
+
+        ServerSocket newProxy = useProxy();
+        assertNull(acquire(System.nanoTime()));
+        assertClosedByPool(first);
+        assertClosedByPool(second);
+
+        for (int i = 0; i < POOL_SIZE; i++) {
+            accept(newProxy);
+        }
+        SocketChannel channel = acquireReady();
+        assertEquals(newProxy.getLocalPort(), ((InetSocketAddress) channel.getRemoteAddress()).getPort());
+        channel.close();
+    }
+
+    @Test
+    public void replacesConnectionsTheProxyCloses() throws Exception {
+        ServerSocket proxy = useProxy();
+        assertNull(acquire(System.nanoTime()));
+        Socket first = accept(proxy);
+        Socket second = accept(proxy);
+        Thread.sleep(100);
+
+        first.close();
+        Socket replacement = accept(proxy);
+        assertOpen(second);
+        assertOpen(replacement);
+
+        // The two live connections are handed out, the dead one is gone.
+        SocketChannel a = acquireReady();
+        SocketChannel b = acquireReady();
+        a.close();
+        b.close();
+    }
+}
@@ -0,0 +1,163 @@
+package com.noharayh.otokit.vpn.tunnel.httpconnect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class HttpConnectTunnelTest {
+
+    private static final String RESPONSE = "HTTP/1.1 200 Connection established\r\n"
+            + "Proxy-Agent: test\r\n"
+            + "\r\n";
+    private static final String DATA = "\u0016\u0003\u0001tunnel data";
+
+    private Selector m_Selector;
+
+    @Before
+    public void setUp() throws Exception {
+        m_Selector = Selector.open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        m_Selector.close();
+    }
+
+    private HttpConnectTunnel newTunnel() throws Exception {
+        return new HttpConnectTunnel(new HttpConnectConfig(), m_Selector);
+    }
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String remaining(ByteBuffer buffer) {
+        return new String(buffer.array(), buffer.position(), buffer.remaining(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static String encode(String host, int port, String userAgent, String installID) {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        HttpConnectTunnel.encodeRequest(buffer, host, port, userAgent, installID);
+        return new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+    }
+
+    private void assertRejected(String response, String message) throws Exception {
+        try {
+            newTunnel().parseResponse(bytes(response));
+            fail("accepted: " + response);
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    @Test
+    public void encodesConnectRequest() {
+        assertEquals("CONNECT www.example.com:443 HTTP/1.0\r\n"
+                        + "Proxy-Connection: keep-alive\r\n"
+                        + "User-Agent: agent/1.0\r\n"
+                        + "X-App-Install-ID: install-1\r\n\r\n",
+                encode("www.example.com", 443, "agent/1.0", "install-1"));
+        assertTrue(encode("2001:db8::1", 8443, "ua", "id").startsWith("CONNECT [2001:db8::1]:8443 HTTP/1.0\r\n"));
+        assertTrue(encode("10.0.0.1", 80, "ua", "id").startsWith("CONNECT 10.0.0.1:80 HTTP/1.0\r\n"));
+    }
+
+    @Test
+    public void parsesResponseInOneRead() throws Exception {
+        ByteBuffer buffer = bytes(RESPONSE + DATA);
+        assertTrue(newTunnel().parseResponse(buffer));
+        assertEquals(DATA, remaining(buffer));
+
+        buffer = bytes("HTTP/1.0 200 OK\n\n");
+        assertTrue(newTunnel().parseResponse(buffer));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void parsesResponseSplitAcrossReads() throws Exception {
+        byte[] data = (RESPONSE + DATA).getBytes(StandardCharsets.ISO_8859_1);
+        for (int cut = 1; cut < data.length; cut++) {
+            HttpConnectTunnel tunnel = newTunnel();
+            ByteBuffer first = ByteBuffer.wrap(Arrays.copyOfRange(data, 0, cut));
+            ByteBuffer second = ByteBuffer.wrap(Arrays.copyOfRange(data, cut, data.length));
+            if (cut < RESPONSE.length()) {
+                assertFalse("cut " + cut, tunnel.parseResponse(first));
+                assertFalse(first.hasRemaining());
+                assertTrue("cut " + cut, tunnel.parseResponse(second));
+                assertEquals("cut " + cut, DATA, remaining(second));
+            } else {
+                assertTrue("cut " + cut, tunnel.parseResponse(first));
+                assertEquals("cut " + cut, DATA.substring(0, cut - RESPONSE.length()), remaining(first));
+            }
+            tunnel.dispose();
+        }
+    }
+
+    @Test
+    public void parsesResponseOneByteAtATime() throws Exception {
+        HttpConnectTunnel tunnel = newTunnel();
+        byte[] data = RESPONSE.getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = 0; i < data.length; i++) {
+            boolean done = tunnel.parseResponse(ByteBuffer.wrap(data, i, 1));
+            assertEquals("byte " + i, i == data.length - 1, done);
+        }
+    }
+
+    @Test
+    public void rejectsNon200Responses() throws Exception {
+        assertRejected("HTTP/1.1 407 Proxy Authentication Required\r\n\r\n", "407");
+        assertRejected("HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\n\r\n", "502");
+        assertRejected("HTTP/2.0 200 OK\r\n\r\n", "HTTP/2.0");
+        assertRejected("HTTP/1.1 20\r\n\r\n", "HTTP/1.1 20");
+        assertRejected("SSH-2.0-OpenSSH\r\n\r\n", "SSH");
+
+        // A 407 split across reads fails once its headers are complete, not before.
+        HttpConnectTunnel tunnel = newTunnel();
+        assertFalse(tunnel.parseResponse(bytes("HTTP/1.1 407 Proxy Auth")));
+        assertFalse(tunnel.parseResponse(bytes("entication Required\r\nProxy-Authenticate: Basic\r\n")));
+        try {
+            tunnel.parseResponse(bytes("\r\n"));
+            fail("accepted a 407");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("407"));
+        }
+    }
+
+    @Test
+    public void rejectsOversizedResponses() throws Exception {
+        char[] filler = new char[HttpConnectTunnel.MAX_RESPONSE_LENGTH];
+        Arrays.fill(filler, 'x');
+        assertRejected("HTTP/1.1 200 OK\r\nX-Filler: " + new String(filler) + "\r\n\r\n", "too long");
+
+        // The limit counts across reads.
+        HttpConnectTunnel tunnel = newTunnel();
+        assertFalse(tunnel.parseResponse(bytes("HTTP/1.1 200 OK\r\n")));
+        String header = "X-Filler: " + new String(filler, 0, 1000) + "\r\n";
+        try {
+            for (int i = 0; i < 10; i++) {
+                assertFalse(tunnel.parseResponse(bytes(header)));
+            }
+            fail("accepted an endless response");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("too long"));
+        }
+
+        // Right at the limit is still fine.
+        StringBuilder sb = new StringBuilder("HTTP/1.1 200 OK\r\nX-Filler: ");
+        while (sb.length() < HttpConnectTunnel.MAX_RESPONSE_LENGTH - 4) {
+            sb.append('x');
+        }
+        sb.append("\r\n\r\n");
+        assertEquals(HttpConnectTunnel.MAX_RESPONSE_LENGTH, sb.length());
+        assertTrue(newTunnel().parseResponse(bytes(sb.toString())));
+    }
+}